@@ -0,0 +1,34 @@
+package it.polito.ezshop.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import it.polito.ezshop.data.BalanceOperation;
+
+// Reading the balance and the ledger, one entry per sale of the store
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LedgerBenchmark {
+
+    @Benchmark
+    public double computeBalance(ShopState state) throws Exception {
+        return state.shop.computeBalance();
+    }
+
+    @Benchmark
+    public List<BalanceOperation> getCreditsAndDebits(ShopState state) throws Exception {
+        return state.shop.getCreditsAndDebits(null, null);
+    }
+
+    // The first page of 100, as a till showing the ledger asks for it
+    @Benchmark
+    public List<BalanceOperation> getCreditsAndDebitsPage(ShopState state) throws Exception {
+        return state.shop.getCreditsAndDebits(null, null, null, 100);
+    }
+
+}
@@ -0,0 +1,33 @@
+package it.polito.ezshop.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SyntheticStore;
+
+// Loading the store when the shop starts: once per JVM, so each fork gives
+// one measure. Warmup iterations, if asked for, would load it before.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 5, jvmArgsAppend = "-Xmx3g")
+public class LoadBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    @Setup(Level.Trial)
+    public void install() throws Exception {
+        SyntheticStore.install(size);
+    }
+
+    @Benchmark
+    public DataManager coldLoad() {
+        return DataManager.getInstance();
+    }
+
+}
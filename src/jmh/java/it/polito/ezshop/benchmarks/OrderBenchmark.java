@@ -0,0 +1,45 @@
+package it.polito.ezshop.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import it.polito.ezshop.data.SyntheticStore;
+
+// Recording the arrival of orders of RFID products
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class OrderBenchmark {
+
+    private static final int QUANTITY = 10;
+
+    // An order paid and waiting, for each invocation, with the RFIDs after
+    // those of the store and of the orders before
+    @State(Scope.Thread)
+    public static class PaidOrder {
+
+        Integer id;
+        long nextRFID = -1;
+
+        @Setup(Level.Invocation)
+        public void issue(ShopState state) throws Exception {
+
+            if (nextRFID < 0) nextRFID = state.size;
+
+            id = state.shop.issueOrder(SyntheticStore.barCode(0), QUANTITY, 0.01);
+            state.shop.payOrder(id);
+        }
+    }
+
+    @Benchmark
+    public boolean recordOrderArrivalRFID(ShopState state, PaidOrder order) throws Exception {
+
+        String from = SyntheticStore.rfid((int)order.nextRFID);
+        order.nextRFID += QUANTITY;
+        return state.shop.recordOrderArrivalRFID(order.id, from);
+    }
+
+}
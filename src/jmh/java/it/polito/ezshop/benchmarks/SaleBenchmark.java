@@ -0,0 +1,99 @@
+package it.polito.ezshop.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import it.polito.ezshop.data.SyntheticStore;
+
+// Scanning, closing and paying sales
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SaleBenchmark {
+
+    // A sale open for an iteration
+    @State(Scope.Thread)
+    public static class OpenSale {
+
+        Integer id;
+        int nextRFID;
+
+        @Setup(Level.Iteration)
+        public void start(ShopState state) throws Exception {
+            id = state.shop.startSaleTransaction();
+        }
+
+        @TearDown(Level.Iteration)
+        public void delete(ShopState state) throws Exception {
+            state.shop.deleteSaleTransaction(id);
+        }
+    }
+
+    // A sale with a few products, for each invocation
+    @State(Scope.Thread)
+    public static class ScannedSale {
+
+        Integer id;
+
+        @Setup(Level.Invocation)
+        public void scan(ShopState state) throws Exception {
+            id = SaleBenchmark.scan(state);
+        }
+    }
+
+    // A closed sale waiting for its payment, for each invocation
+    @State(Scope.Thread)
+    public static class EndedSale {
+
+        Integer id;
+
+        @Setup(Level.Invocation)
+        public void end(ShopState state) throws Exception {
+
+            id = SaleBenchmark.scan(state);
+            state.shop.endSaleTransaction(id);
+        }
+    }
+
+    private static Integer scan(ShopState state) throws Exception {
+
+        Integer id = state.shop.startSaleTransaction();
+        for (int i = 0; i < 3; i++) {
+            state.shop.addProductToSale(id, SyntheticStore.barCode(state.anyProduct()), 1);
+        }
+
+        return id;
+    }
+
+    @Benchmark
+    public boolean addProductToSale(ShopState state, OpenSale sale) throws Exception {
+        return state.shop.addProductToSale(sale.id, SyntheticStore.barCode(state.anyProduct()), 1);
+    }
+
+    // Each RFID is sold once per sale: an iteration is a batch of as many as
+    // the smallest store has, put in a sale of its own
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5, batchSize = 1000)
+    @Measurement(iterations = 10, batchSize = 1000)
+    public boolean addProductToSaleRFID(ShopState state, OpenSale sale) throws Exception {
+
+        sale.nextRFID = (sale.nextRFID + 1) % state.size;
+        return state.shop.addProductToSaleRFID(sale.id, SyntheticStore.rfid(sale.nextRFID));
+    }
+
+    @Benchmark
+    public boolean endSaleTransaction(ShopState state, ScannedSale sale) throws Exception {
+        return state.shop.endSaleTransaction(sale.id);
+    }
+
+    @Benchmark
+    public double receiveCashPayment(ShopState state, EndedSale sale) throws Exception {
+        return state.shop.receiveCashPayment(sale.id, 1000.0);
+    }
+
+}
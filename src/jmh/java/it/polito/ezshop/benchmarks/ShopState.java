@@ -0,0 +1,39 @@
+package it.polito.ezshop.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import it.polito.ezshop.data.EZShop;
+import it.polito.ezshop.data.SyntheticStore;
+
+// The shop of a benchmark, loaded from a synthetic store of 'size' product
+// types and sales, with an administrator logged in
+@State(Scope.Benchmark)
+public class ShopState {
+
+    // Where the products of the orders are put on arrival
+    public static final String LOCATION = "1-a-1";
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    public EZShop shop;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        SyntheticStore.install(size);
+
+        shop = new EZShop();
+        shop.login(SyntheticStore.USERNAME, SyntheticStore.PASSWORD);
+        shop.updatePosition(1, LOCATION);
+    }
+
+    // Index of a product type of the store, spread over all of them
+    public int anyProduct() {
+        next = (next + 7919) % size;
+        return next;
+    }
+
+}
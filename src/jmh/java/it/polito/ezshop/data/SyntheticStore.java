@@ -0,0 +1,119 @@
+package it.polito.ezshop.data;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+import it.polito.ezshop.model.CreditTransaction;
+import it.polito.ezshop.model.Product;
+import it.polito.ezshop.model.ProductType;
+import it.polito.ezshop.model.Sale;
+import it.polito.ezshop.model.User;
+
+// Synthetic stores for the benchmarks: 'size' product types, each with an RFID
+// product and a sale of it paid in cash. A store is built once, by a JVM of
+// its own in stores/<size> under the working directory, and installed from
+// there as the snapshot the shop loads.
+public final class SyntheticStore {
+
+    public static final String USERNAME = "benchmark";
+    public static final String PASSWORD = "benchmark";
+
+    // Changes written to the log at once while building
+    private static final int CHUNK = 50_000;
+    // Written last, once the store is complete
+    private static final String BUILT = "built";
+
+    private SyntheticStore() {
+    }
+
+    // Bar code of the i-th product type, from 0: a GTIN-12
+    public static String barCode(int i) {
+
+        String digits = String.format("%011d", i);
+        int sum = 0;
+        for (int j = 0; j < digits.length(); j++) {
+            sum += (digits.charAt(j) - '0') * (j % 2 == 0 ? 3 : 1);
+        }
+
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    // RFID of the product of the i-th product type
+    public static String rfid(int i) {
+        return EZShop.formatRFID(i);
+    }
+
+    private static void build(int size) throws InterruptedException {
+
+        DataManager dm = DataManager.getInstance();
+        dm.insertUser(new User(1, USERNAME, PASSWORD, "Administrator"));
+
+        for (int from = 0; from < size; from += CHUNK) {
+            dm.beginUnitOfWork(ChangeLog.Durability.ASYNC);
+            try {
+                for (int i = from; i < Math.min(size, from + CHUNK); i++) {
+                    ProductType type = new ProductType(i + 1, barCode(i), "product " + i, 1.0 + i % 10, 1_000_000_000, 0.0, "", null);
+                    dm.insertProductType(type);
+                    dm.insertProduct(new Product(rfid(i), type));
+
+                    Sale sale = new Sale(i + 1, 0.0, null);
+                    sale.addProduct(type, 1);
+                    sale.setAsCommitted();
+                    dm.insertSale(sale);
+
+                    dm.insertBalanceTransaction(new CreditTransaction(i + 1, sale));
+                    sale.setPayment(i + 1, Sale.PaymentMethod.CASH);
+                    dm.updateSale(sale);
+                }
+            } finally {
+                dm.endUnitOfWork();
+            }
+        }
+
+        // Not taken while a compaction of the log is still being written
+        for (int tries = 0; !dm.checkpoint(); tries++) {
+            if (tries == 100) throw new IllegalStateException("snapshot not written");
+            Thread.sleep(100);
+        }
+    }
+
+    // Makes the store of 'size' the one the shop loads from the working
+    // directory, building it first if needed. To be called before the shop
+    // is used in this JVM.
+    public static void install(int size) throws IOException, InterruptedException {
+
+        Path store = Paths.get("stores", Integer.toString(size));
+        if (!Files.exists(store.resolve(BUILT))) {
+            Files.createDirectories(store);
+            Process builder = new ProcessBuilder(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Xmx" + Runtime.getRuntime().maxMemory(),
+                    "-cp", System.getProperty("java.class.path"),
+                    SyntheticStore.class.getName(), Integer.toString(size))
+                .directory(store.toFile())
+                .inheritIO()
+                .start();
+
+            if (builder.waitFor() != 0 || !Files.exists(store.resolve(BUILT))) {
+                throw new IOException("store of " + size + " not built");
+            }
+        }
+
+        Files.copy(store.resolve("ezshop.ser"), Paths.get("ezshop.ser"), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(Paths.get("ezshop.log"));
+        Files.deleteIfExists(Paths.get("ezshop.log.old"));
+    }
+
+    // Builds the store of the given size in the working directory
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        for (String file : new String[] { "ezshop.ser", "ezshop.log", "ezshop.log.old", BUILT }) {
+            Files.deleteIfExists(Paths.get(file));
+        }
+
+        build(Integer.parseInt(args[0]));
+        Files.createFile(Paths.get(BUILT));
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,131 @@
+package it.polito.ezshop.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static it.polito.ezshop.data.EZShop.*;
+
+// The gateway of the shop's own card system. Authorizations are answered at
+// once, from the balances in memory; captures and refunds go through a
+// settlement queue and are answered when their run is written. The money held
+// by open authorizations is kept here: the card system only knows balances.
+public class CardSystemGateway implements PaymentGateway {
+
+    private static final long SETTLEMENT_PERIOD_MILLIS = 10;
+
+    private static CardSystemGateway instance;
+
+    private final CreditCardSystem cards;
+    private final SettlementQueue settlement;
+    // Money held by the authorizations not captured or released yet, by key,
+    // and by card; guarded by this
+    private final Map<String, Double> open = new HashMap<>();
+    private final Map<String, Double> held = new HashMap<>();
+
+    public CardSystemGateway(CreditCardSystem cards) {
+        this(cards, new SettlementQueue(cards, SETTLEMENT_PERIOD_MILLIS));
+    }
+
+    public CardSystemGateway(CreditCardSystem cards, SettlementQueue settlement) {
+        this.cards = cards;
+        this.settlement = settlement;
+    }
+
+    static public synchronized CardSystemGateway getInstance() {
+
+        if (instance == null) {
+            instance = new CardSystemGateway(CreditCardSystem.getInstance());
+        }
+
+        return instance;
+    }
+
+    private double heldOn(String creditCard) {
+        return held.getOrDefault(creditCard, 0.0);
+    }
+
+    private void hold(Authorization authorization, double amount) {
+
+        String card = authorization.getCreditCard();
+        open.put(authorization.getKey(), amount);
+        held.put(card, getRightDoublePrecision(heldOn(card) + amount));
+    }
+
+    // False if the authorization is not open
+    private synchronized boolean unhold(Authorization authorization) {
+
+        Double amount = open.remove(authorization.getKey());
+        if (amount == null) return false;
+
+        String card = authorization.getCreditCard();
+        double left = getRightDoublePrecision(heldOn(card) - amount);
+        if (left <= 0) held.remove(card);
+        else held.put(card, left);
+        return true;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Authorization> authorize(String key, String creditCard, double amount) {
+
+        if (amount < 0 || open.containsKey(key) || !cards.isRegistered(creditCard)) return CompletableFuture.completedFuture(null);
+
+        // Charged before with this card and amount, e.g. when the payment was
+        // not recorded because of a crash: captured again without charging, so
+        // there is nothing to hold
+        Authorization authorization = new Authorization(key, creditCard, amount);
+        if (settlement.isSettled(key, creditCard, amount)) {
+            hold(authorization, 0.0);
+            return CompletableFuture.completedFuture(authorization);
+        }
+        // Charged with another card or amount: until that is cancelled
+        if (settlement.isSettled(key)) return CompletableFuture.completedFuture(null);
+
+        if (!cards.hasEnoughBalance(creditCard, heldOn(creditCard) + amount)) return CompletableFuture.completedFuture(null);
+
+        hold(authorization, amount);
+        return CompletableFuture.completedFuture(authorization);
+    }
+
+    // The money stays held until the run is written, then it is taken
+    @Override
+    public CompletableFuture<Boolean> capture(Authorization authorization) {
+
+        synchronized (this) {
+            if (!open.containsKey(authorization.getKey())) return CompletableFuture.completedFuture(false);
+        }
+
+        return settlement.submit(authorization.getKey(), authorization.getCreditCard(), authorization.getAmount())
+            .thenApply(captured -> {
+                unhold(authorization);
+                return captured;
+            });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> release(Authorization authorization) {
+        return CompletableFuture.completedFuture(unhold(authorization));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> refund(String key, String creditCard, double amount) {
+
+        if (amount < 0 || !cards.isRegistered(creditCard)) return CompletableFuture.completedFuture(false);
+
+        return settlement.submit(key, creditCard, -amount);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cancel(String key, String creditCard, double amount) {
+
+        if (amount < 0 || !cards.isRegistered(creditCard)) return CompletableFuture.completedFuture(false);
+
+        return settlement.cancel(key, creditCard, amount);
+    }
+
+    @Override
+    public boolean forgetKeys() {
+        return settlement.forgetSettled();
+    }
+
+}
@@ -0,0 +1,457 @@
+package it.polito.ezshop.data;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Append-only log of DataManager mutations. Every record is framed as
+// <length><crc32><payload> so a torn tail (crash during a write) is detected
+// and dropped on replay instead of corrupting the whole store.
+//
+// Records are encoded by the caller and written by a dedicated thread, in the
+// order they were synced.
+public class ChangeLog implements Closeable {
+
+    public enum Op { INSERT, UPDATE, DELETE }
+
+    // SYNC returns once the records are on disk, ASYNC as soon as they are
+    // queued: a crash can then lose them, along with anything synced after.
+    public enum Durability { SYNC, ASYNC }
+
+    // Batches waiting for the writer before sync() blocks the caller
+    private static final int QUEUE_CAPACITY = 64;
+
+    // How the log sees the entities stored by its owner: which table they live
+    // in, their primary key and whether they are currently stored.
+    public interface Entities {
+        String tableOf(Object o);
+        Object keyOf(Object o);
+        boolean isLive(Object o);
+        Object lookup(String table, Object key);
+    }
+
+    // Implemented by the entities that keep values worked out from their
+    // state, to drop them when copyState() or a rollback overwrites it.
+    public interface Derived {
+        void stateRestored();
+    }
+
+    // Applies a replayed record and returns the instance now stored under its key.
+    public interface Replayer {
+        Object apply(Op op, Object key, Object entity);
+    }
+
+    // Stand-in for a stored entity referenced by the record's root object.
+    static final class Ref implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String table;
+        final Object key;
+
+        Ref(String table, Object key) {
+            this.table = table;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return table.hashCode() * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Ref && ((Ref)obj).table.equals(table) && ((Ref)obj).key.equals(key);
+        }
+    }
+
+    // A record intact on disk that cannot be decoded, e.g. one written by a
+    // build with other classes. Unlike a torn tail it is not cut off.
+    public static final class UnreadableRecordException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnreadableRecordException(Path log, long offset, Throwable cause) {
+            super(log + ": record at " + offset + " cannot be read", cause);
+        }
+    }
+
+    private final Path path;
+    private final Entities entities;
+    private final ByteArrayOutputStream pending;
+    private FileChannel channel;
+    private int records;
+
+    private final BlockingQueue<Batch> queue;
+    private Batch lastQueued;
+    private boolean closed;
+    // Set by the writer when an ASYNC batch could not be written
+    private volatile IOException failure;
+
+    // Records synced together, or the log moved to 'rotateTo' once those
+    // before are on disk. A batch with neither stops the writer.
+    private static final class Batch {
+
+        final byte[] bytes;
+        final Path rotateTo;
+        final CompletableFuture<Void> written;
+
+        Batch(byte[] bytes) {
+            this(bytes, null);
+        }
+
+        Batch(byte[] bytes, Path rotateTo) {
+            this.bytes = bytes;
+            this.rotateTo = rotateTo;
+            this.written = new CompletableFuture<>();
+        }
+
+        boolean stops() {
+            return bytes.length == 0 && rotateTo == null;
+        }
+    }
+
+    public ChangeLog(Path path, Entities entities, int records) throws IOException {
+        this.path = path;
+        this.entities = entities;
+        this.pending = new ByteArrayOutputStream();
+        this.channel = open(path);
+        this.records = records;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        Thread writer = new Thread(this::write, "ezshop-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Number of records currently in the log
+    public int size() {
+        return this.records;
+    }
+
+    public synchronized void append(Op op, Object key, Object entity) throws IOException {
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new RecordOutputStream(payload, entity)) {
+            out.writeByte(op.ordinal());
+            out.writeObject(key);
+            // Only which entity goes is written for a deletion: once deleted
+            // the entities it refers to may no longer be stored either, and
+            // written in full they could lead back to it
+            out.writeObject(op == Op.DELETE ? new Ref(entities.tableOf(entity), key) : entity);
+        }
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        DataOutputStream frame = new DataOutputStream(pending);
+        frame.writeInt(bytes.length);
+        frame.writeInt((int)crc.getValue());
+        frame.write(bytes);
+        records++;
+    }
+
+    // Writes every appended record with a single write and forces it to disk
+    public void sync() throws IOException {
+        sync(Durability.SYNC);
+    }
+
+    // Hands every appended record to the writer as one batch. Waits for the
+    // queue to have room, and with SYNC for the batch and those before it to
+    // be on disk. A failed ASYNC write is reported by the next call.
+    public void sync(Durability durability) throws IOException {
+
+        synchronized (this) {
+            IOException failed = failure;
+            if (failed != null) {
+                failure = null;
+                throw failed;
+            }
+
+            if (pending.size() > 0) {
+                lastQueued = new Batch(pending.toByteArray());
+                pending.reset();
+                enqueue(lastQueued);
+            }
+        }
+
+        if (durability == Durability.SYNC) await();
+    }
+
+    // Waits for every batch synced so far to be on disk. Other threads keep
+    // appending in the meantime.
+    public void await() throws IOException {
+
+        Batch last;
+        synchronized (this) {
+            last = lastQueued;
+        }
+
+        if (last != null) await(last);
+    }
+
+    private void enqueue(Batch batch) throws IOException {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void await(Batch batch) throws IOException {
+        try {
+            batch.written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Writer thread: writes whatever is queued and forces it with one call
+    private void write() {
+
+        List<Batch> batches = new ArrayList<>();
+        while (true) {
+            try {
+                batches.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batches);
+
+            try {
+                for (Batch batch : batches) {
+                    if (batch.rotateTo != null) moveTo(batch.rotateTo);
+
+                    ByteBuffer buf = ByteBuffer.wrap(batch.bytes);
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                }
+                channel.force(false);
+
+                batches.forEach(batch -> batch.written.complete(null));
+            } catch (IOException e) {
+                failure = e;
+                batches.forEach(batch -> batch.written.completeExceptionally(e));
+            }
+
+            boolean stop = batches.stream().anyMatch(Batch::stops);
+            batches.clear();
+            if (stop) return;
+        }
+    }
+
+    // Moves the records appended so far to 'to' (appending if it already
+    // exists) and starts over with an empty log. The move is made by the
+    // writer once they are on disk: await() waits for it.
+    public synchronized void rotate(Path to) throws IOException {
+
+        sync(Durability.ASYNC);
+
+        lastQueued = new Batch(new byte[0], to);
+        enqueue(lastQueued);
+        records = 0;
+    }
+
+    // Writer thread
+    private void moveTo(Path to) throws IOException {
+
+        channel.force(false);
+        channel.close();
+
+        try {
+            if (Files.exists(to)) {
+                Files.write(to, Files.readAllBytes(path), StandardOpenOption.APPEND);
+                Files.delete(path);
+            } else {
+                Files.move(path, to, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            channel = open(path);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (closed) return;
+        closed = true;
+
+        try {
+            sync();
+        } finally {
+            Batch stop = new Batch(new byte[0]);
+            enqueue(stop);
+            await(stop);
+            channel.close();
+        }
+    }
+
+    // Replays every intact record of 'log' in order and returns how many were
+    // applied. A torn or corrupted tail is cut off so that later appends start
+    // from the last good record; a record whose frame and CRC are right but
+    // which cannot be decoded throws, leaving the log as it is.
+    public static int replay(Path log, Entities entities, Replayer replayer) throws IOException {
+
+        if (!Files.exists(log)) return 0;
+
+        Map<Ref, Object> registry = new HashMap<>();
+        int applied = 0;
+        long good = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+            while (true) {
+
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0) break;
+
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, bytes.length);
+                    if ((int)crc.getValue() != checksum) break;
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try (ObjectInputStream rec = new RecordInputStream(new ByteArrayInputStream(bytes), entities, registry)) {
+                    Op op = Op.values()[rec.readByte()];
+                    Object key = rec.readObject();
+                    Object entity = rec.readObject();
+
+                    // A deletion of an entity not stored changes nothing
+                    Object stored = entity == null ? null : replayer.apply(op, key, entity);
+                    if (stored != null) {
+                        registry.put(new Ref(entities.tableOf(stored), entities.keyOf(stored)), stored);
+                    }
+                } catch (ClassNotFoundException | ObjectStreamException e) {
+                    throw new UnreadableRecordException(log, good, e);
+                }
+
+                good += 8 + bytes.length;
+                applied++;
+            }
+        }
+
+        if (Files.size(log) > good) {
+            try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+            }
+        }
+
+        return applied;
+    }
+
+    // Overwrites the state of 'to' with the state of 'from', so that every
+    // object already pointing to 'to' sees the replayed values.
+    public static void copyState(Object from, Object to) {
+
+        for (Class<?> c = from.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+
+                if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers())) continue;
+
+                try {
+                    f.setAccessible(true);
+                    f.set(to, f.get(from));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        if (to instanceof Derived) ((Derived)to).stateRestored();
+    }
+
+    // Writes stored entities other than the root as references, so a record
+    // only carries the state of the entity it describes.
+    private final class RecordOutputStream extends ObjectOutputStream {
+
+        private final Object root;
+
+        RecordOutputStream(OutputStream out, Object root) throws IOException {
+            super(out);
+            this.root = root;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+
+            if (obj == root || obj == null) return obj;
+
+            String table = entities.tableOf(obj);
+            if (table == null || !entities.isLive(obj)) return obj;
+
+            return new Ref(table, entities.keyOf(obj));
+        }
+    }
+
+    // Resolves references to the stored instances and collapses every copy of
+    // the same entity read from the log onto a single instance. Copies of
+    // entities that were not stored yet when written are kept in the registry
+    // until their own INSERT record makes them live.
+    private static final class RecordInputStream extends CompatibleObjectInputStream {
+
+        private final Entities entities;
+        private final Map<Ref, Object> registry;
+
+        RecordInputStream(InputStream in, Entities entities, Map<Ref, Object> registry) throws IOException {
+            super(in);
+            this.entities = entities;
+            this.registry = registry;
+            enableResolveObject(true);
+        }
+
+        private Object canonical(Ref ref) {
+
+            Object found = registry.get(ref);
+            if (found == null) {
+                found = entities.lookup(ref.table, ref.key);
+                if (found != null) registry.put(ref, found);
+            }
+
+            return found;
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+
+            if (obj instanceof Ref) return canonical((Ref)obj);
+
+            String table = obj == null ? null : entities.tableOf(obj);
+            if (table == null) return obj;
+
+            Ref ref = new Ref(table, entities.keyOf(obj));
+            Object existing = canonical(ref);
+
+            if (existing == null || existing == obj || existing.getClass() != obj.getClass()) {
+                registry.put(ref, obj);
+                return obj;
+            }
+
+            copyState(obj, existing);
+            return existing;
+        }
+    }
+
+}
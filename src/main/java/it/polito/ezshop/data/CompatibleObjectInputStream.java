@@ -0,0 +1,58 @@
+package it.polito.ezshop.data;
+
+import java.io.*;
+import java.util.Objects;
+
+// Reads objects written by older builds. Their classes did not declare a
+// serialVersionUID, so the one in the stream is whatever the compiler derived
+// at the time: EZShop classes whose fields are unchanged are read with the
+// local class description instead of being rejected.
+class CompatibleObjectInputStream extends ObjectInputStream {
+
+    CompatibleObjectInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+
+        ObjectStreamClass written = super.readClassDescriptor();
+        ObjectStreamClass current = local(written.getName(), written.getSerialVersionUID());
+
+        return current != null && sameFields(written, current) ? current : written;
+    }
+
+    // Description of the local EZShop class named 'name', if its UID is not
+    // the one written
+    static ObjectStreamClass local(String name, long suid) {
+
+        if (!name.startsWith("it.polito.ezshop.")) return null;
+
+        Class<?> local;
+        try {
+            local = Class.forName(name, false, CompatibleObjectInputStream.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        ObjectStreamClass current = ObjectStreamClass.lookup(local);
+        return current == null || current.getSerialVersionUID() == suid ? null : current;
+    }
+
+    private static boolean sameFields(ObjectStreamClass a, ObjectStreamClass b) {
+
+        ObjectStreamField[] fa = a.getFields();
+        ObjectStreamField[] fb = b.getFields();
+        if (fa.length != fb.length) return false;
+
+        for (int i = 0; i < fa.length; i++) {
+            if (!fa[i].getName().equals(fb[i].getName()) || fa[i].getTypeCode() != fb[i].getTypeCode()
+                || !Objects.equals(fa[i].getTypeString(), fb[i].getTypeString())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
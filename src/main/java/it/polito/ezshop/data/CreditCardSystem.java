@@ -1,25 +1,81 @@
 package it.polito.ezshop.data;
 
-import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.List;
-import java.util.stream.Stream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.util.stream.Collectors.*;
 import static it.polito.ezshop.data.EZShop.*;
 
 public class CreditCardSystem {
-    
+
+    private static final Path CARDS = Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt");
+    // Changes are written to the card file once the journal holds this many
+    private static final int COMPACTION_THRESHOLD = 64;
+    private static final String BASE = "#base ";
+    // Keys of the operations settled, kept as a comment in the card file
+    private static final String SETTLED = "#settled ";
+    // Keys kept at most, the oldest forgotten first: a payment made again
+    // after that many others is charged again
+    private static final int SETTLED_KEYS = 1024;
+    // Journal entries for a run of changes, the amount taken from each card,
+    // and for forgetting the keys
+    private static final String RUN = "+";
+    private static final String RUN_END = "|end";
+    private static final String FORGET = "-";
+    // Journal entry for the file written with the changes before it
+    private static final String WRITTEN = "#written ";
+    // A key settled in a run is written with its charge, 'key:card:amount',
+    // a key cancelled with this in front
+    private static final String CANCELLED = "~";
+
     private static CreditCardSystem instance;
 
+    private final Path cards;
+    private final Path journalPath;
+    private final ExecutorService writer;
+
+    // Balances by card, read from the file once and then kept in memory. Each
+    // change is appended to the journal, and the file is replaced with the
+    // new balances once the journal has grown. A file changed from outside is
+    // read again, with the changes journaled and not written yet on top.
+    private final Map<String, Double> balances = new HashMap<>();
+    private final Set<String> changed = new HashSet<>();
+    // The charge each settled key stands for, 'card:amount', oldest first
+    private final Map<String, String> settled = new LinkedHashMap<>();
+    private boolean settledChanged;
+    private List<String> lines = Collections.emptyList();
+    // Size and modification time of the file when last read or written
+    private String stamp;
+    private FileChannel journal;
+    private int journaled;
+    private boolean writing;
+
     private CreditCardSystem() {
-        
+        this(CARDS);
     }
 
-    static public CreditCardSystem getInstance() {
-        
+    // A card system kept in 'cards', with its journal next to it
+    public CreditCardSystem(Path cards) {
+        this.cards = cards;
+        this.journalPath = Paths.get(cards + ".journal");
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ezshop-cards-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static public synchronized CreditCardSystem getInstance() {
+
         if (instance == null) {
             instance = new CreditCardSystem();
         }
@@ -28,104 +84,368 @@ public class CreditCardSystem {
     }
 
     public boolean isValidNumber(String creditCard) {
-
-        if (creditCard == null || creditCard.isEmpty() || !creditCard.chars().allMatch(ch -> ch >= '0' && ch <= '9')) return false;
         // if (creditCard.length() <13 || creditCard.length()>16) return false; TODO: check not requested, maybe?
+        return Validators.isValidLuhn(creditCard);
+    }
+
+    private static String stampOf(Path path) throws IOException {
+        return Files.size(path) + " " + Files.getLastModifiedTime(path);
+    }
+
+    // Reads the file if it was not read yet or has been changed since, with
+    // the changes journaled and not in it on top
+    private void refresh() throws IOException {
+
+        String current = stampOf(cards);
+        if (current.equals(stamp)) return;
 
-        int sum = 0;
-        boolean skip = false;
+        String text = new String(Files.readAllBytes(cards), StandardCharsets.UTF_8);
+        lines = new BufferedReader(new StringReader(text)).lines().collect(toList());
 
-        for (int i = creditCard.length() - 2; i >= 0; i--, skip ^= true) {
+        balances.clear();
+        changed.clear();
+        settled.clear();
+        settledChanged = false;
+        for (String line : lines) {
+            if (line.startsWith(SETTLED)) Arrays.stream(line.substring(SETTLED.length()).split(",")).forEach(this::applySettled);
+            if (line.startsWith("#")) continue;
 
-            int curr_digit = Integer.parseInt(creditCard.substring(i, i + 1));
-            int mul_2 = !skip ? curr_digit << 1 : curr_digit;
-            sum += (mul_2 % 10) + (mul_2 / 10);
+            String[] split = line.split(";");
+            if (split.length > 1) balances.putIfAbsent(split[0], getRightDoublePrecision(split[1]));
+        }
 
+        String journaledText = Files.exists(journalPath) ? new String(Files.readAllBytes(journalPath), StandardCharsets.UTF_8) : "";
+        List<String> entries = new BufferedReader(new StringReader(journaledText)).lines().collect(toList());
+        for (String entry : entries.subList(unwritten(entries, current), entries.size())) {
+            if (entry.startsWith(RUN) || entry.equals(FORGET)) replay(entry);
         }
 
-        return ((sum * 9) % 10) == Integer.parseInt(creditCard.substring(creditCard.length() - 1));
+        stamp = current;
+        if (!entries.isEmpty() && entries.get(0).equals(BASE + current) && entries.stream().noneMatch(e -> e.startsWith(WRITTEN))) {
+            continueJournal(entries.size() - 1, journaledText);
+        } else if (!changed.isEmpty() || settledChanged) {
+            // Changed from outside, or not written in full before a crash:
+            // written with the journal on top, which then starts over
+            continueJournal(entries.size() - 1, journaledText);
+            write();
+        } else {
+            startJournal(0);
+        }
     }
 
-    public boolean isRegistered(String creditCard) {
+    // Appends to the journal read as 'text', after its last entry if cut short
+    private void continueJournal(int entries, String text) throws IOException {
 
-        if (!isValidNumber(creditCard)) return false;
+        startJournal(entries);
+        if (entries > 0 && !text.endsWith("\n")) append("");
+    }
+
+    // Index of the first journal entry not in the file with stamp 'current'.
+    // The journal starts with the stamp of the file it was started for, and
+    // says which file it went into before that file replaced the old one.
+    private int unwritten(List<String> entries, String current) {
+
+        if (entries.isEmpty() || !entries.get(0).startsWith(BASE)) return entries.size();
+
+        for (int i = entries.size() - 1; i > 0; i--) {
+            if (!entries.get(i).startsWith(WRITTEN)) continue;
+            if (entries.get(i).equals(WRITTEN + current)) return i + 1;
+
+            // Changed from outside, but before or after the file was written?
+            if (!entries.get(0).equals(BASE + current)) {
+                throw new IllegalStateException(journalPath + ": cannot tell which changes " + cards + " has");
+            }
+            break;
+        }
+
+        return 1;
+    }
+
+    // Replays a run of changes, unless cut short by a crash, or the keys forgotten
+    private void replay(String entry) {
+
+        if (entry.equals(FORGET)) {
+            settled.clear();
+            settledChanged = true;
+            return;
+        }
+        if (!entry.endsWith(RUN_END)) return;
+
+        String[] fields = entry.substring(RUN.length(), entry.length() - RUN_END.length()).split("\\|");
+        for (int i = 1; i < fields.length; i++) {
+            String[] split = fields[i].split(";");
+
+            Double balance = balances.get(split[0]);
+            if (balance == null) throw new IllegalStateException(journalPath + ": card " + split[0] + " changed is not in " + cards);
+
+            balances.put(split[0], getRightDoublePrecision(balance - Double.parseDouble(split[1])));
+            changed.add(split[0]);
+        }
+        Arrays.stream(fields[0].split(",")).forEach(this::applySettled);
+        settledChanged = true;
+    }
+
+    private static String charge(String creditCard, double amount) {
+        return creditCard + ":" + getRightDoublePrecision(amount);
+    }
+
+    // Settles or cancels a key as written in the card file or the journal
+    private void applySettled(String entry) {
 
-        try (Stream<String> stream = Files.lines(Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt"))) {
+        if (entry.startsWith(CANCELLED)) {
+            settled.remove(entry.substring(CANCELLED.length()));
+            return;
+        }
+
+        int split = entry.indexOf(':');
+        if (split <= 0) return;
+
+        String key = entry.substring(0, split);
+        settled.remove(key);
+        settled.put(key, entry.substring(split + 1));
+        if (settled.size() > SETTLED_KEYS) settled.remove(settled.keySet().iterator().next());
+    }
+
+    private void startJournal(int entries) throws IOException {
+
+        if (journal != null) journal.close();
 
-            boolean result = stream
-                .filter(line -> !line.startsWith("#"))
-                .map(line -> line.split(";"))
-                .anyMatch(line -> line[0].equals(creditCard));
+        if (entries > 0) {
+            journal = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } else {
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            append(BASE + stamp);
+        }
+        journaled = entries;
+    }
+
+    private void append(String entry) throws IOException {
 
-            stream.close();
-            return result;
+        ByteBuffer bytes = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) journal.write(bytes);
+        journal.force(false);
+    }
+
+    // Balance of the card, null if it is not registered or the file cannot be read
+    private synchronized Double balanceOf(String creditCard) {
 
+        try {
+            refresh();
         } catch (IOException e) {
-            return false;
+            return null;
         }
 
+        return balances.get(creditCard);
+    }
+
+    public boolean isRegistered(String creditCard) {
+
+        if (!isValidNumber(creditCard)) return false;
+
+        return balanceOf(creditCard) != null;
     }
 
     public boolean hasEnoughBalance(String creditCard, double toRemove) {
-        
-        if (!isRegistered(creditCard) || Double.isNaN(toRemove) || Double.isInfinite(toRemove)) return false;
 
-        try (Stream<String> stream = Files.lines(Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt"))) {
+        if (!isValidNumber(creditCard) || Double.isNaN(toRemove) || Double.isInfinite(toRemove)) return false;
 
-            boolean result = stream
-                .filter(line -> !line.startsWith("#"))
-                .map(line -> line.split(";"))
-                .filter(line -> line[0].equals(creditCard))
-                .map(line -> getRightDoublePrecision(line[1]))
-                .allMatch(credit -> credit >= getRightDoublePrecision(toRemove));
+        Double credit = balanceOf(creditCard);
+        return credit != null && credit >= getRightDoublePrecision(toRemove);
+    }
+
+    // Synchronized: the balance is checked and changed together
+    public synchronized boolean updateBalance(String creditCard, double toRemove) {
 
-            stream.close();
-            return result;
+        if (!hasEnoughBalance(creditCard, toRemove)) return false;
 
+        double updated = getRightDoublePrecision(balances.get(creditCard) - toRemove);
+        try {
+            append(RUN + "|" + creditCard + ";" + getRightDoublePrecision(toRemove) + RUN_END);
         } catch (IOException e) {
             return false;
         }
 
+        balances.put(creditCard, updated);
+        changed.add(creditCard);
+        journaled();
+
+        return true;
     }
 
-    public boolean updateBalance(String creditCard, double toRemove) {
-        
-        if (!hasEnoughBalance(creditCard, toRemove)) return false;
+    private void journaled() {
 
-        try (Stream<String> stream = Files.lines(Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt"))) {
+        if (++journaled >= COMPACTION_THRESHOLD && !writing) {
+            writing = true;
+            writer.execute(this::flush);
+        }
+    }
+
+    // True if the operation with this key has been settled
+    public synchronized boolean isSettled(String key) {
 
-            List<String> lines = stream
-                .map(line -> {
-                    if (line.startsWith("#") || !line.startsWith(creditCard + ";")) return line;
+        try {
+            refresh();
+        } catch (IOException e) {
+            return false;
+        }
 
-                    String[] split = line.split(";");
-                    return split[0] + ";" + String.valueOf(getRightDoublePrecision(Double.valueOf(split[1]) - toRemove));
-                })
-                .collect(toList());
+        return settled.containsKey(key);
+    }
 
-            stream.close();
+    // True if the operation with this key has been settled taking 'amount'
+    // from the card, and not cancelled since
+    public synchronized boolean isSettled(String key, String creditCard, double amount) {
 
+        try {
+            refresh();
+        } catch (IOException e) {
+            return false;
+        }
 
-            FileWriter writer = new FileWriter("src/main/java/it/polito/ezshop/utils/CreditCards.txt");
-            boolean write_carriageret = false;
-            for (String line : lines) {
-                
-                if (write_carriageret) {
-                    writer.write("\n");
-                }
+        return charge(creditCard, amount).equals(settled.get(key));
+    }
 
-                writer.write(line);
-                write_carriageret = true;
+    public Set<String> settle(Map<String, Map<String, Double>> byCard) {
+        return settle(byCard, Collections.emptySet());
+    }
+
+    // Applies a settlement run: the amounts to take from each card, by the key
+    // of the operation. Those of a card are applied all or none, as the card
+    // cannot pay their sum or is not registered. A key stands for one charge
+    // until cancelled: made again with the same card and amount it is not
+    // applied again, with others it is not applied at all. The keys in
+    // 'cancelling' give that charge back, and are then no longer settled. The
+    // run is written to the journal in one entry. Returns the keys settled
+    // with the charge asked, now or before, and those cancelled now.
+    public synchronized Set<String> settle(Map<String, Map<String, Double>> byCard, Set<String> cancelling) {
+
+        Set<String> done = new HashSet<>();
+        try {
+            refresh();
+        } catch (IOException e) {
+            return done;
+        }
+
+        Map<String, Double> updated = new LinkedHashMap<>();
+        Map<String, Double> taken = new LinkedHashMap<>();
+        List<String> keys = new ArrayList<>();
+        List<String> entries = new ArrayList<>();
+        byCard.forEach((card, operations) -> {
+            double sum = 0;
+            List<String> fresh = new ArrayList<>();
+            List<String> applied = new ArrayList<>();
+            for (Map.Entry<String, Double> operation : operations.entrySet()) {
+                String key = operation.getKey();
+                String charge = settled.get(key);
+
+                if (cancelling.contains(key)) {
+                    if (!charge(card, -operation.getValue()).equals(charge)) continue;
+                    applied.add(CANCELLED + key);
+                } else if (charge != null) {
+                    if (charge.equals(charge(card, operation.getValue()))) done.add(key);
+                    continue;
+                } else {
+                    applied.add(key + ":" + charge(card, operation.getValue()));
+                }
+                sum += operation.getValue();
+                fresh.add(key);
             }
 
-            writer.close();
+            Double balance = balances.get(card);
+            if (fresh.isEmpty() || balance == null || Double.isNaN(sum) || Double.isInfinite(sum)) return;
+            if (balance < getRightDoublePrecision(sum)) return;
+
+            updated.put(card, getRightDoublePrecision(balance - sum));
+            taken.put(card, getRightDoublePrecision(sum));
+            keys.addAll(fresh);
+            entries.addAll(applied);
+        });
+        if (updated.isEmpty()) return done;
+
+        StringBuilder entry = new StringBuilder(RUN).append(String.join(",", entries));
+        taken.forEach((card, sum) -> entry.append('|').append(card).append(';').append(sum));
+        try {
+            append(entry.append(RUN_END).toString());
+        } catch (IOException e) {
+            return done;
+        }
+
+        balances.putAll(updated);
+        changed.addAll(updated.keySet());
+        entries.forEach(this::applySettled);
+        settledChanged = true;
+        done.addAll(keys);
+        journaled();
+
+        return done;
+    }
+
+    // Forgets the keys settled, when the ids they were made of start again
+    public synchronized boolean forgetSettled() {
 
+        try {
+            refresh();
+            if (settled.isEmpty()) return true;
+
+            append(FORGET);
         } catch (IOException e) {
             return false;
         }
 
+        settled.clear();
+        settledChanged = true;
+        journaled();
         return true;
+    }
+
+    // Writes the balances to the card file now, replacing it at once
+    public synchronized boolean flush() {
+
+        writing = false;
+        try {
+            // Changed from outside: read again, with the journal on top
+            refresh();
+            if (changed.isEmpty() && !settledChanged) return true;
+
+            write();
+            return true;
+        } catch (IOException e) {
+            // Still in the journal: written with the next changes
+            return false;
+        }
+    }
 
+    // Replaces the card file with the balances and keys now, and starts the
+    // journal over
+    private void write() throws IOException {
+
+        List<String> updated = lines.stream()
+            .filter(line -> !line.startsWith(SETTLED))
+            .map(line -> {
+                if (line.startsWith("#")) return line;
+
+                String card = line.split(";")[0];
+                return changed.contains(card) ? card + ";" + balances.get(card) : line;
+            })
+            .collect(toList());
+        if (!settled.isEmpty()) {
+            updated.add(SETTLED + settled.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(joining(",")));
+        }
+
+        Path tmp = Paths.get(cards + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            out.write(String.join("\n", updated).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        // Found again after a crash before the journal starts over
+        append(WRITTEN + stampOf(tmp));
+        Files.move(tmp, cards, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        lines = updated;
+        changed.clear();
+        settledChanged = false;
+        stamp = stampOf(cards);
+        startJournal(0);
     }
 
 }
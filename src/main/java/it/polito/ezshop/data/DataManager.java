@@ -1,339 +1,1460 @@
 package it.polito.ezshop.data;
 import it.polito.ezshop.model.*;
-import static java.util.stream.Collectors.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
 
-public class DataManager implements Serializable {
+public class DataManager implements Serializable, ChangeLog.Entities {
     
-    private static DataManager instance = null;
-
-    private Set<BalanceTransaction> balanceTransactions;
-    private Set<it.polito.ezshop.model.User> users;
-    private Set<it.polito.ezshop.model.ProductType> productTypes;
-    private Set<Product> products;
-    private Set<Position> positions;
-    private Set<it.polito.ezshop.model.Order> orders;
-    private Set<it.polito.ezshop.model.Customer> customers;
-    private Set<LoyaltyCard> loyaltyCards;
-    private Set<Sale> sales;
-    private Set<CReturn> cReturns;
-    private Set<DummyCredit> dummyCredits;
-    private Set<DummyDebit> dummyDebits;
-
-
-    private DataManager() {
-        users = new HashSet<>();
-        productTypes = new HashSet<>();
-        products = new HashSet<>();
-        positions = new HashSet<>();
-        orders = new HashSet<>();
-        customers = new HashSet<>();
-        loyaltyCards = new HashSet<>();
-        sales = new HashSet<>();
-        cReturns = new HashSet<>();
-        dummyCredits = new HashSet<>();
-        dummyDebits = new HashSet<>();
-        balanceTransactions = new HashSet<>();
-    }
-
-    private boolean save() {
+    private static final Path SNAPSHOT = Paths.get("ezshop.ser");
+    private static final Path LOG = Paths.get("ezshop.log");
+    private static final Path COMPACTING_LOG = Paths.get("ezshop.log.old");
+    private static final int COMPACTION_THRESHOLD = 5000;
+
+    private static volatile DataManager instance = null;
+
+    private Map<Integer, BalanceTransaction> balanceTransactions;
+    private Map<Integer, it.polito.ezshop.model.User> users;
+    private Map<Integer, it.polito.ezshop.model.ProductType> productTypes;
+    private Map<String, Product> products;
+    private Map<String, Position> positions;
+    private Map<Integer, it.polito.ezshop.model.Order> orders;
+    private Map<Integer, it.polito.ezshop.model.Customer> customers;
+    private Map<String, LoyaltyCard> loyaltyCards;
+    private Map<Integer, Sale> sales;
+    private Map<Integer, CReturn> cReturns;
+    private Map<Integer, DummyCredit> dummyCredits;
+    private Map<Integer, DummyDebit> dummyDebits;
+    // Last id handed out for each table. It moves past every id stored and
+    // only goes back with resetSequences(), so deleted ids are not reused.
+    private Map<String, AtomicInteger> sequences;
+    // Credits minus debits of the stored balance transactions, in thousandths
+    // (the precision EZShop rounds money to). Unknown after loading a store
+    // that did not save it, until rebuilt from the ledger on first use.
+    private transient volatile long balance;
+    private transient volatile boolean balanceKnown;
+
+    private transient ChangeLog changeLog;
+    // Held by the thread running a unit of work, from its beginning to the
+    // moment its records are queued for writing. Reads go to the tables
+    // directly, which are concurrent maps.
+    private final transient ReentrantLock lock;
+    private transient ExecutorService compactor;
+    private transient volatile boolean compacting;
+    // Positions are keyed by their "aisle-rack-level" string, which changes
+    // when they are edited: remember the key each one is stored under.
+    private transient Map<Position, String> positionKeys;
+    // Unit of work: records are collected here and written at its end
+    private transient int workDepth;
+    private transient ChangeLog.Durability durability;
+    private transient List<Pending> pending;
+    private transient Map<Object, Pending> pendingByEntity;
+    private transient Set<Object> unwritten;
+    // Transaction: state of the entities and table slots it touched, as
+    // they were when it began, so that it can be rolled back in memory
+    private transient int transactionDepth;
+    private transient boolean outermostWork;
+    private transient Map<Object, Map<Field, Object>> preImages;
+    private transient Map<String, Map<Object, Object>> preSlots;
+    private transient Map<String, Integer> preSequences;
+    private transient long preBalance;
+    private transient boolean preBalanceKnown;
+    // False for stores written before sales pointed to their payment, until
+    // the links have been worked out from the ledger
+    private transient volatile boolean paymentsLinked;
+    private transient volatile UniqueIndex<Long, it.polito.ezshop.model.ProductType> barCodes;
+    private transient volatile UniqueIndex<String, it.polito.ezshop.model.User> usernames;
+    // Ledger by date and then id, built by the first range query
+    private transient volatile UniqueIndex<Long, BalanceTransaction> ledger;
+
+
+    DataManager() {
+        users = new ConcurrentHashMap<>();
+        productTypes = new ConcurrentHashMap<>();
+        products = new ProductTable();
+        positions = new ConcurrentHashMap<>();
+        orders = new ConcurrentHashMap<>();
+        customers = new ConcurrentHashMap<>();
+        loyaltyCards = new ConcurrentHashMap<>();
+        sales = new ConcurrentHashMap<>();
+        cReturns = new ConcurrentHashMap<>();
+        dummyCredits = new ConcurrentHashMap<>();
+        dummyDebits = new ConcurrentHashMap<>();
+        balanceTransactions = new ConcurrentHashMap<>();
+        sequences = new ConcurrentHashMap<>();
+        lock = new ReentrantLock();
+        balanceKnown = true;
+        paymentsLinked = true;
+        initSequences();
+    }
+
+    private void initSequences() {
+        for (String table : Arrays.asList("users", "productTypes", "orders", "customers", "loyaltyCards", "sales", "cReturns", "dummyCredits", "dummyDebits", "balanceTransactions")) {
+            sequences.putIfAbsent(table, new AtomicInteger(0));
+            table(table).keySet().forEach(key -> advanceSequence(table, key));
+        }
+    }
+
+    private int nextId(String table) {
+        return sequences.get(table).incrementAndGet();
+    }
+
+    void advanceSequence(String table, Object key) {
+
+        AtomicInteger sequence = sequences.get(table);
+        if (sequence == null) return;
+
+        if (key instanceof Integer) {
+            sequence.accumulateAndGet((Integer)key, Math::max);
+        } else if (key instanceof String && ((String)key).matches("[0-9]{1,10}") && Long.parseLong((String)key) <= Integer.MAX_VALUE) {
+            sequence.accumulateAndGet(Integer.parseInt((String)key), Math::max);
+        }
+    }
+
+    // Last id handed out for 'table', or -1 if its ids are not generated
+    int lastId(String table) {
+
+        AtomicInteger sequence = sequences.get(table);
+        return sequence == null ? -1 : sequence.get();
+    }
+
+    // Starts the sequences over, past the ids still stored, once the shop has
+    // been emptied. Ids are never handed out again otherwise. The snapshot is
+    // written at once so that they stay so after a restart: if it is not, they
+    // only go on from where they were.
+    public void resetSequences() {
+
+        lock.lock();
         try {
-            FileOutputStream fileOut = new FileOutputStream("ezshop.ser");
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            
-            out.writeObject(this);
-            
-            out.close();
-            fileOut.close();
+            sequences.forEach((table, sequence) -> {
+                sequence.set(0);
+                table(table).keySet().forEach(key -> advanceSequence(table, key));
+            });
+        } finally {
+            lock.unlock();
+        }
 
-            return true;
+        checkpoint();
+    }
 
-        } catch (Exception e) {
+    // Adds (sign 1) or removes (sign -1) what 'o' counts for in the balance
+    private void book(Object o, int sign) {
+
+        if (!(o instanceof BalanceTransaction)) return;
+
+        if (balanceTransactions.isEmpty()) {
+            balance = 0;
+            balanceKnown = true;
+        } else {
+            balance += sign * thousandths((BalanceTransaction)o);
+        }
+    }
+
+    private static long thousandths(BalanceTransaction b) {
+
+        long value = BigDecimal.valueOf(b.getValue()).setScale(3, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        return b instanceof CreditTransaction ? value : -value;
+    }
+
+    // Credits minus debits, without going through the ledger
+    public double getBalance() {
+
+        if (!balanceKnown) rebuildBalance();
+        return balance / 1000.0;
+    }
+
+    // Recomputes the balance from the ledger; false if the one kept differed
+    public boolean rebuildBalance() {
+
+        lock.lock();
+        try {
+            long sum = 0;
+            for (BalanceTransaction b : balanceTransactions.values()) {
+                sum += thousandths(b);
+            }
+
+            boolean matched = balanceKnown && sum == balance;
+            balance = sum;
+            balanceKnown = true;
+            return matched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Position of a ledger entry: the day in the high half, the id in the low
+    // one. Days are clamped to 30 bits, so that the day after still fits.
+    private static long ledgerKey(LocalDate day, int id) {
+
+        long epochDay = Math.max(-(1L << 30), Math.min(1L << 30, day.toEpochDay()));
+        return epochDay << 32 | (id & 0xFFFFFFFFL);
+    }
+
+    private static long ledgerKey(BalanceTransaction b) {
+        return ledgerKey(b.getDate(), b.getBalanceId());
+    }
+
+    private UniqueIndex<Long, BalanceTransaction> ledger() {
+
+        UniqueIndex<Long, BalanceTransaction> ledger = this.ledger;
+        if (ledger != null) return ledger;
+
+        lock.lock();
+        try {
+            if (this.ledger == null) {
+                ledger = UniqueIndex.sorted(DataManager::ledgerKey);
+                ledger.rebuild(balanceTransactions.values());
+                this.ledger = ledger;
+            }
+            return this.ledger;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ledger entries dated 'from' to 'to' (both included, null for no bound)
+    // coming after 'after' (null to start from the first), by date and then id
+    public Stream<BalanceTransaction> streamBalanceTransactions(LocalDate from, LocalDate to, BalanceOperation after) {
+
+        long lower = from == null ? Long.MIN_VALUE : ledgerKey(from, 0);
+        long upper = to == null ? Long.MAX_VALUE : ledgerKey(to, 0) + (1L << 32);
+        if (after != null) lower = Math.max(lower, ledgerKey(after.getDate(), after.getBalanceId()) + 1);
+
+        if (lower >= upper) return Stream.empty();
+        return ledger().range(lower, upper).stream();
+    }
+
+    public List<BalanceTransaction> findBalanceTransactions(LocalDate from, LocalDate to) {
+        return streamBalanceTransactions(from, to, null).collect(Collectors.toList());
+    }
+
+    // One page of findBalanceTransactions(): the next one follows its last entry
+    public List<BalanceTransaction> findBalanceTransactions(LocalDate from, LocalDate to, BalanceOperation after, int limit) {
+        return streamBalanceTransactions(from, to, after).limit(Math.max(limit, 0)).collect(Collectors.toList());
+    }
+
+    // True if a product is stored with any of the 'count' RFIDs from 'from' on
+    public boolean anyProductInRFIDRange(long from, int count) {
+        return count > 0 && ((ProductTable)products).anyInRange(from, count);
+    }
+
+    // Balance to save with a snapshot, Long.MIN_VALUE if unknown
+    long savedBalance() {
+        return balanceKnown ? balance : Long.MIN_VALUE;
+    }
+
+    void restoreBalance(long saved) {
+        balance = saved == Long.MIN_VALUE ? 0 : saved;
+        balanceKnown = saved != Long.MIN_VALUE;
+    }
+
+    boolean paymentsLinked() {
+        return paymentsLinked;
+    }
+
+    void restorePaymentLinks(boolean linked) {
+        paymentsLinked = linked;
+    }
+
+    // Points the sale paid by 'bt' to it, or (paid false) clears the link;
+    // false if there was nothing to change
+    private boolean linkPayment(BalanceTransaction bt, boolean paid) {
+
+        if (!(bt instanceof CreditTransaction)) return false;
+        if (!(((CreditTransaction)bt).getRelatedCreditOperation() instanceof Sale)) return false;
+
+        Sale sale = (Sale)((CreditTransaction)bt).getRelatedCreditOperation();
+        if (findSaleById(sale.getTicketNumber()).orElse(null) != sale) return false;
+
+        if (paid) {
+            if (sale.getPaymentId() != null) return false;
+            sale.setPayment(bt.getBalanceId(), null);
+        } else {
+            if (!Integer.valueOf(bt.getBalanceId()).equals(sale.getPaymentId())) return false;
+            sale.setPayment(null, null);
+        }
+
+        return updateSale(sale);
+    }
+
+    // Links every paid sale still stored; the number of sales linked
+    private int linkPayments() {
+
+        int linked = 0;
+        for (BalanceTransaction bt : balanceTransactions.values()) {
+            if (linkPayment(bt, true)) linked++;
+        }
+
+        paymentsLinked = true;
+        return linked;
+    }
+
+    // Replays the change log over the loaded snapshot and opens it for appending
+    private void openStore() throws IOException {
+
+        pending = new ArrayList<>();
+        pendingByEntity = new IdentityHashMap<>();
+        unwritten = Collections.newSetFromMap(new IdentityHashMap<>());
+        preImages = new IdentityHashMap<>();
+        preSlots = new HashMap<>();
+        preSequences = new HashMap<>();
+
+        if (sequences == null) {
+            sequences = new HashMap<>();
+            initSequences();
+        }
+
+        positionKeys = new IdentityHashMap<>();
+        positions.forEach((key, p) -> positionKeys.put(p, key));
+
+        ChangeLog.replay(COMPACTING_LOG, this, this::replay);
+        int replayed = ChangeLog.replay(LOG, this, this::replay);
+
+        changeLog = new ChangeLog(LOG, this, replayed);
+
+        // Records written with ASYNC durability may still be queued
+        ChangeLog log = changeLog;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // Nothing left to do: the next start replays what reached the disk
+            }
+        }, "ezshop-log-flush"));
+
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "ezshop-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // A previous compaction did not complete
+        if (Files.exists(COMPACTING_LOG)) {
+            compact();
+        }
+    }
+
+    // Secondary indexes are not persisted: they are built from the tables
+    // once the snapshot and the log have been loaded. They are replaced only
+    // once complete, for the lookups made meanwhile by other threads.
+    private void buildIndexes() {
+
+        UniqueIndex<Long, it.polito.ezshop.model.ProductType> barCodes = new UniqueIndex<>(pt -> pt.getBarCodeValue() < 0 ? null : pt.getBarCodeValue());
+        barCodes.rebuild(productTypes.values());
+        this.barCodes = barCodes;
+
+        UniqueIndex<String, it.polito.ezshop.model.User> usernames = new UniqueIndex<>(it.polito.ezshop.model.User::getUsername);
+        usernames.rebuild(users.values());
+        this.usernames = usernames;
+
+        // Left to the first range query, so that the ledger can stay in the
+        // snapshot until then
+        this.ledger = null;
+    }
+
+    // A change waiting for the end of the unit of work
+    private static final class Pending {
+
+        ChangeLog.Op op;
+        final Object key;
+        final Object entity;
+
+        Pending(ChangeLog.Op op, Object key, Object entity) {
+            this.op = op;
+            this.key = key;
+            this.entity = entity;
+        }
+    }
+
+    // Every change made until the matching endUnitOfWork() is written to the
+    // log with a single durable write. Units of work can be nested: only the
+    // outermost one writes, and waits for the write unless all of them were
+    // begun with ASYNC durability.
+    public void beginUnitOfWork() {
+        beginUnitOfWork(ChangeLog.Durability.SYNC);
+    }
+
+    public void beginUnitOfWork(ChangeLog.Durability durability) {
+
+        lock.lock();
+        if (workDepth++ == 0 || durability == ChangeLog.Durability.SYNC) this.durability = durability;
+    }
+
+    public boolean endUnitOfWork() {
+
+        if (workDepth == 0 || !lock.isHeldByCurrentThread()) throw new IllegalStateException();
+
+        ChangeLog.Durability durability = this.durability;
+        boolean queued;
+        try {
+            if (--workDepth > 0) return true;
+            queued = flush(ChangeLog.Durability.ASYNC);
+        } finally {
+            lock.unlock();
+        }
+
+        // Other threads can use the store while this one waits for the disk
+        return queued && (durability == ChangeLog.Durability.ASYNC || awaitLog());
+    }
+
+    private boolean awaitLog() {
+
+        if (changeLog == null) return true;
+
+        try {
+            changeLog.await();
+            return true;
+        } catch (IOException e) {
             return false;
         }
     }
 
-    private <T> boolean insertIntoAndSave(Set<T> list, T o) {
+    // Changes made until the matching commit() are written with a single
+    // durable write, like a unit of work, and can be undone in memory with
+    // rollback(). Transactions can be nested: they all commit or roll back
+    // together with the outermost one. Other threads wait for the outermost
+    // one to commit before changing the store.
+    public void beginTransaction() {
+        beginTransaction(ChangeLog.Durability.SYNC);
+    }
+
+    public void beginTransaction(ChangeLog.Durability durability) {
+
+        lock.lock();
+        try {
+            if (transactionDepth++ == 0) {
+                // Changes recorded outside any unit of work are not part of it
+                if (workDepth == 0) flush(ChangeLog.Durability.SYNC);
+
+                outermostWork = workDepth == 0;
+                sequences.forEach((table, sequence) -> preSequences.put(table, sequence.get()));
+                preBalance = balance;
+                preBalanceKnown = balanceKnown;
+            }
+
+            beginUnitOfWork(durability);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean commit() {
+
+        if (transactionDepth == 0 || !lock.isHeldByCurrentThread()) throw new IllegalStateException();
+
+        if (--transactionDepth == 0) forget();
+        return endUnitOfWork();
+    }
+
+    // Brings every entity and table touched since the outermost
+    // beginTransaction() back to its state at that point. The transaction
+    // stays open: the matching commit() then has nothing left to write.
+    public void rollback() {
+
+        if (transactionDepth == 0 || !lock.isHeldByCurrentThread()) throw new IllegalStateException();
+
+        preImages.forEach(DataManager::restoreState);
+        preImages.keySet().forEach(o -> {
+            if (o instanceof ChangeLog.Derived) ((ChangeLog.Derived)o).stateRestored();
+        });
+
+        preSlots.forEach((name, slots) -> slots.forEach((key, o) -> {
+            Object current = o == null ? table(name).remove(key) : table(name).put(key, o);
+
+            if (outermostWork) return;
+            if (o == null) {
+                if (current != null) record(ChangeLog.Op.DELETE, key, current);
+            } else {
+                record(current == null ? ChangeLog.Op.INSERT : ChangeLog.Op.UPDATE, key, o);
+            }
+        }));
+
+        preSequences.forEach((table, value) -> sequences.get(table).set(value));
+        balance = preBalance;
+        balanceKnown = preBalanceKnown;
+
+        // Nothing done since the transaction began is left to write
+        if (outermostWork) {
+            pending.clear();
+            pendingByEntity.clear();
+        }
+
+        positionKeys.clear();
+        positions.forEach((key, p) -> positionKeys.put(p, key));
+        buildIndexes();
+
+        preImages.clear();
+        preSlots.clear();
+    }
+
+    private void forget() {
+        preImages.clear();
+        preSlots.clear();
+        preSequences.clear();
+    }
+
+    // Remembers what is stored under 'key' before a transaction changes it
+    private void touch(String table, Object key) {
+
+        if (transactionDepth == 0) return;
+
+        Map<Object, Object> slots = preSlots.computeIfAbsent(table, t -> new HashMap<>());
+        if (!slots.containsKey(key)) slots.put(key, table(table).get(key));
+    }
+
+    // Records that a stored entity is about to change. Model classes call it
+    // before mutating themselves, so that a transaction can save their state.
+    public void markDirty(Object o) {
+
+        // Values are only stored by updating them
+        if (o == null || tableOf(o) == null || keepsValues(tableOf(o))) return;
+
+        lock.lock();
+        try {
+            Object key = o instanceof Position ? positionKeys.get(o) : keyOf(o);
+            if (key == null || (!(o instanceof Position) && table(tableOf(o)).get(key) != o)) return;
+
+            if (transactionDepth > 0 && !preImages.containsKey(o)) preImages.put(o, stateOf(o));
+
+            // The new state is written by the next save or at the end of the unit of work
+            record(ChangeLog.Op.UPDATE, key, o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs 'change', which gives 'o' another key, and moves 'o' to it if 'o'
+    // is stored; false, with 'o' left as it was, if the new key is taken.
+    // Model classes call it from the setters of their id.
+    public boolean changeKey(Object o, Runnable change) {
+
+        lock.lock();
+        try {
+            String table = tableOf(o);
+            if (table == null || o instanceof Position || keepsValues(table) || !isStored(o)) {
+                change.run();
+                return true;
+            }
 
-        if (o == null) return false;
+            Object key = keyOf(o);
+            Map<Field, Object> state = stateOf(o);
+            change.run();
+
+            Object newKey = keyOf(o);
+            if (key.equals(newKey)) return true;
+            if (newKey == null || table(table).containsKey(newKey)) {
+                restoreState(o, state);
+                return false;
+            }
 
-        if (list.add(o)) {
-            return this.save();
+            if (transactionDepth > 0 && !preImages.containsKey(o)) preImages.put(o, state);
+            touch(table, key);
+            touch(table, newKey);
+
+            table(table).remove(key);
+            table(table).put(newKey, o);
+            advanceSequence(table, newKey);
+            if (o instanceof BalanceTransaction && ledger != null) ledger.put((BalanceTransaction)o);
+
+            // Replayed as a move: the record for the old key stores 'o' under
+            // the key it has when written
+            return save(ChangeLog.Op.UPDATE, key, o);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return false;
+    // Runs 'change', which edits the value or the date of 'b', and moves a
+    // stored 'b' in the balance and in the ledger by what actually changed
+    public void changeEntry(BalanceTransaction b, Runnable change) {
+
+        lock.lock();
+        try {
+            if (!isStored(b)) {
+                change.run();
+                return;
+            }
+
+            markDirty(b);
+            long counted = thousandths(b);
+            LocalDate date = b.getDate();
+            change.run();
+
+            balance += thousandths(b) - counted;
+            if (ledger != null && !b.getDate().equals(date)) ledger.put(b);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private <T> boolean updateIntoAndSave(Set<T> list, T o) {
-        
-        if (deleteIntoAndSave(list, o, false)) {
-            if (list.add(o)) {
-                return this.save();
+    private static Map<Field, Object> stateOf(Object o) {
+
+        Map<Field, Object> state = new HashMap<>();
+        for (Class<?> c = o.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+
+                if (Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers())) continue;
+
+                try {
+                    f.setAccessible(true);
+                    state.put(f, copyOf(f.get(o)));
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
             }
         }
 
-        return false;
+        return state;
     }
 
-    private <T> boolean deleteIntoAndSave(Set<T> list, T o) {
-        return deleteIntoAndSave(list, o, true);
+    // Collections held by the entities are edited in place: keep a copy of them
+    private static Object copyOf(Object value) throws ReflectiveOperationException {
+
+        if (!(value instanceof Collection || value instanceof Map) || !(value instanceof Cloneable)) return value;
+
+        return value.getClass().getMethod("clone").invoke(value);
     }
 
-    private <T> boolean deleteIntoAndSave(Set<T> list, T o, boolean commit) {
-        
-        if (!list.contains(o)) {
+    private static void restoreState(Object o, Map<Field, Object> state) {
+
+        state.forEach((f, value) -> {
+            try {
+                f.set(o, copyOf(value));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private boolean save(ChangeLog.Op op, Object key, Object o) {
+        record(op, key, o);
+        return workDepth > 0 || flush(ChangeLog.Durability.SYNC);
+    }
+
+    private void record(ChangeLog.Op op, Object key, Object o) {
+
+        if (changeLog == null) return;
+
+        Pending p = pendingByEntity.get(o);
+        if (p == null) {
+            p = new Pending(op, key, o);
+            pending.add(p);
+            pendingByEntity.put(o, p);
+        } else if (op == ChangeLog.Op.DELETE) {
+            // Nothing to write for an entity both inserted and deleted here
+            p.op = p.op == ChangeLog.Op.INSERT ? null : op;
+        } else if (p.op == ChangeLog.Op.DELETE) {
+            p.op = ChangeLog.Op.UPDATE;
+        } else if (p.op == null) {
+            p.op = op;
+        }
+    }
+
+    // Writes the collected records, each with the state its entity has now
+    private boolean flush(ChangeLog.Durability durability) {
+
+        if (pending.isEmpty()) return true;
+
+        // Entities inserted in this unit of work are written inline by the
+        // records preceding their own insertion
+        pending.stream().filter(p -> p.op == ChangeLog.Op.INSERT).forEach(p -> unwritten.add(p.entity));
+
+        try {
+            for (Pending p : pending) {
+                if (p.op == null) continue;
+
+                changeLog.append(p.op, p.key, p.entity);
+                unwritten.remove(p.entity);
+            }
+
+            changeLog.sync(durability);
+        } catch (IOException e) {
             return false;
+        } finally {
+            pending.clear();
+            pendingByEntity.clear();
+            unwritten.clear();
         }
 
-        if (list.remove(o)) {
-            if (commit) return this.save();
-            return true;
+        if (changeLog.size() >= COMPACTION_THRESHOLD && !compacting) {
+            compact();
         }
 
-        return false;
+        return true;
     }
 
-    public static DataManager getInstance() {
-        
-        if (instance == null) {
-            
+    // Writes the current state as the new snapshot and waits for it
+    boolean checkpoint() {
+
+        if (changeLog == null) return false;
+
+        lock.lock();
+        try {
+            if (compacting) return false;
+            compact();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            compactor.submit(() -> { }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+
+        return !Files.exists(COMPACTING_LOG);
+    }
+
+    // Sets the records written so far aside and lets the compactor write the
+    // snapshot they lead to. Only the ids handed out are read from the store:
+    // the state is rebuilt from the files, off the lock.
+    private void compact() {
+
+        Map<String, Integer> lastIds = new HashMap<>();
+        sequences.forEach((table, sequence) -> lastIds.put(table, sequence.get()));
+
+        try {
+            changeLog.rotate(COMPACTING_LOG);
+        } catch (IOException e) {
+            return;
+        }
+
+        ChangeLog log = changeLog;
+        compacting = true;
+        compactor.execute(() -> {
             try {
-                FileInputStream fileIn = new FileInputStream("ezshop.ser");
-                ObjectInputStream in = new ObjectInputStream(fileIn);
-                
-                instance = (DataManager)in.readObject();
-                
-                in.close();
-                fileIn.close();
-
-                // Cleaning not-committed sales
-                instance.getSales()
-                    .stream()
-                    .filter(sale -> !sale.isCommitted())
-                    .forEach(sale -> {
-                        
-                        for (it.polito.ezshop.data.ProductType prod : sale.getProductsList()) {
-                            it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
-                
-                            xProd.addQuantityOffset(sale.getQuantityByProduct(xProd));
-                            DataManager.getInstance().updateProductType(xProd);
-                        }
-
-                        instance.deleteSale(sale);
-                    });
-
-            } catch (Exception e) {
-                instance = new DataManager();
+                log.await();
+                byte[] image = SnapshotCodec.encode(readCompacted(lastIds));
+
+                Path tmp = Paths.get(SNAPSHOT + ".tmp");
+                try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile())) {
+                    fileOut.write(image);
+                    fileOut.getFD().sync();
+                }
+
+                Files.move(tmp, SNAPSHOT, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(COMPACTING_LOG);
+            } catch (IOException | RuntimeException e) {
+                // The set-aside records are replayed and compacted again on the next start
+            } finally {
+                compacting = false;
+            }
+        });
+    }
+
+    // The snapshot on disk with the records set aside replayed over it, read
+    // the way load() reads the store, and the ids handed out when they were
+    private static DataManager readCompacted(Map<String, Integer> lastIds) throws IOException {
+
+        DataManager compacted;
+        try {
+            compacted = readSnapshot(SNAPSHOT);
+        } catch (Exception e) {
+            compacted = new DataManager();
+        }
+
+        DataManager image = compacted;
+        image.positionKeys = new IdentityHashMap<>();
+        image.positions.forEach((key, p) -> image.positionKeys.put(p, key));
+        ChangeLog.replay(COMPACTING_LOG, image, image::replay);
+
+        lastIds.forEach((table, id) -> image.sequences.put(table, new AtomicInteger(id)));
+        return image;
+    }
+
+    private <K, T> boolean insertIntoAndSave(Map<K, T> table, T o, Function<T, K> key) {
+        return insertIntoAndSave(table, o, key, null);
+    }
+
+    private <K, T> boolean insertIntoAndSave(Map<K, T> table, T o, Function<T, K> key, UniqueIndex<?, T> index) {
+
+        lock.lock();
+        try {
+            if (o == null || key.apply(o) == null || table.containsKey(key.apply(o))) return false;
+            if (index != null && !index.accepts(o, null)) return false;
+
+            touch(tableOf(o), key.apply(o));
+            table.put(key.apply(o), o);
+            if (index != null) index.put(o);
+            advanceSequence(tableOf(o), key.apply(o));
+            book(o, 1);
+            return this.save(ChangeLog.Op.INSERT, key.apply(o), o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <K, T> boolean updateIntoAndSave(Map<K, T> table, T o, Function<T, K> key) {
+        return updateIntoAndSave(table, o, key, null);
+    }
+
+    private <K, T> boolean updateIntoAndSave(Map<K, T> table, T o, Function<T, K> key, UniqueIndex<?, T> index) {
+
+        lock.lock();
+        try {
+            if (o == null || key.apply(o) == null || !table.containsKey(key.apply(o))) return false;
+
+            T stored = table.get(key.apply(o));
+            if (index != null && !index.accepts(o, stored)) return false;
+
+            touch(tableOf(o), key.apply(o));
+            table.put(key.apply(o), o);
+            if (index != null) {
+                index.remove(stored);
+                index.put(o);
+            }
+            // Edited in place, it was booked by its setters as it changed
+            if (stored != o) {
+                book(stored, -1);
+                book(o, 1);
+            }
+            return this.save(ChangeLog.Op.UPDATE, key.apply(o), o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <K, T> boolean deleteIntoAndSave(Map<K, T> table, T o, Function<T, K> key) {
+        return deleteIntoAndSave(table, o, key, null);
+    }
+
+    private <K, T> boolean deleteIntoAndSave(Map<K, T> table, T o, Function<T, K> key, UniqueIndex<?, T> index) {
+
+        lock.lock();
+        try {
+            if (o == null || key.apply(o) == null || !table.containsKey(key.apply(o))) return false;
+
+            touch(tableOf(o), key.apply(o));
+            T stored = table.remove(key.apply(o));
+
+            if (index != null) index.remove(stored);
+            book(stored, -1);
+            return this.save(ChangeLog.Op.DELETE, key.apply(o), o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<Object, Object> table(String name) {
+        switch (name) {
+            case "users": return (Map<Object, Object>)(Map<?, ?>)users;
+            case "productTypes": return (Map<Object, Object>)(Map<?, ?>)productTypes;
+            case "products": return (Map<Object, Object>)(Map<?, ?>)products;
+            case "positions": return (Map<Object, Object>)(Map<?, ?>)positions;
+            case "orders": return (Map<Object, Object>)(Map<?, ?>)orders;
+            case "customers": return (Map<Object, Object>)(Map<?, ?>)customers;
+            case "loyaltyCards": return (Map<Object, Object>)(Map<?, ?>)loyaltyCards;
+            case "sales": return (Map<Object, Object>)(Map<?, ?>)sales;
+            case "cReturns": return (Map<Object, Object>)(Map<?, ?>)cReturns;
+            case "dummyCredits": return (Map<Object, Object>)(Map<?, ?>)dummyCredits;
+            case "dummyDebits": return (Map<Object, Object>)(Map<?, ?>)dummyDebits;
+            case "balanceTransactions": return (Map<Object, Object>)(Map<?, ?>)balanceTransactions;
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void setTable(String name, Map<Object, Object> table) {
+        switch (name) {
+            case "users": users = (Map<Integer, it.polito.ezshop.model.User>)(Map<?, ?>)table; break;
+            case "productTypes": productTypes = (Map<Integer, it.polito.ezshop.model.ProductType>)(Map<?, ?>)table; break;
+            case "products": products = (Map<?, ?>)table instanceof ProductTable ? (ProductTable)(Map<?, ?>)table : new ProductTable((Map<String, Product>)(Map<?, ?>)table); break;
+            case "positions": positions = (Map<String, Position>)(Map<?, ?>)table; break;
+            case "orders": orders = (Map<Integer, it.polito.ezshop.model.Order>)(Map<?, ?>)table; break;
+            case "customers": customers = (Map<Integer, it.polito.ezshop.model.Customer>)(Map<?, ?>)table; break;
+            case "loyaltyCards": loyaltyCards = (Map<String, LoyaltyCard>)(Map<?, ?>)table; break;
+            case "sales": sales = (Map<Integer, Sale>)(Map<?, ?>)table; break;
+            case "cReturns": cReturns = (Map<Integer, CReturn>)(Map<?, ?>)table; break;
+            case "dummyCredits": dummyCredits = (Map<Integer, DummyCredit>)(Map<?, ?>)table; break;
+            case "dummyDebits": dummyDebits = (Map<Integer, DummyDebit>)(Map<?, ?>)table; break;
+            case "balanceTransactions": balanceTransactions = (Map<Integer, BalanceTransaction>)(Map<?, ?>)table; break;
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+
+    // The sales in memory, without decoding the ones still in the snapshot
+    private Collection<Sale> residentSales() {
+        return sales instanceof LazyTable ? ((LazyTable<Integer, Sale>)sales).resident() : sales.values();
+    }
+
+    @Override
+    public String tableOf(Object o) {
+        if (o instanceof it.polito.ezshop.model.User) return "users";
+        if (o instanceof it.polito.ezshop.model.ProductType) return "productTypes";
+        if (o instanceof Product) return "products";
+        if (o instanceof Position) return "positions";
+        if (o instanceof it.polito.ezshop.model.Order) return "orders";
+        if (o instanceof it.polito.ezshop.model.Customer) return "customers";
+        if (o instanceof LoyaltyCard) return "loyaltyCards";
+        if (o instanceof Sale) return "sales";
+        if (o instanceof CReturn) return "cReturns";
+        if (o instanceof DummyCredit) return "dummyCredits";
+        if (o instanceof DummyDebit) return "dummyDebits";
+        if (o instanceof BalanceTransaction) return "balanceTransactions";
+        return null;
+    }
+
+    @Override
+    public Object keyOf(Object o) {
+        if (o instanceof it.polito.ezshop.model.User) return ((it.polito.ezshop.model.User)o).getId();
+        if (o instanceof it.polito.ezshop.model.ProductType) return ((it.polito.ezshop.model.ProductType)o).getId();
+        if (o instanceof Product) return ((Product)o).getRFID();
+        if (o instanceof Position) return o.toString();
+        if (o instanceof it.polito.ezshop.model.Order) return ((it.polito.ezshop.model.Order)o).getOrderId();
+        if (o instanceof it.polito.ezshop.model.Customer) return ((it.polito.ezshop.model.Customer)o).getId();
+        if (o instanceof LoyaltyCard) return ((LoyaltyCard)o).getID();
+        if (o instanceof Sale) return ((Sale)o).getTicketNumber();
+        if (o instanceof CReturn) return ((CReturn)o).getReturnId();
+        if (o instanceof DummyCredit) return ((DummyCredit)o).getId();
+        if (o instanceof DummyDebit) return ((DummyDebit)o).getId();
+        if (o instanceof BalanceTransaction) return ((BalanceTransaction)o).getBalanceId();
+        return null;
+    }
+
+    @Override
+    public boolean isLive(Object o) {
+
+        if (unwritten.contains(o)) return false;
+        if (o instanceof Position) return positionKeys.containsKey(o);
+
+        return table(tableOf(o)).containsKey(keyOf(o));
+    }
+
+    // Tables whose entities are stored as values, and made again when looked
+    // up: a change to one is only stored by updating it
+    boolean keepsValues(String table) {
+        return table.equals("products");
+    }
+
+    // True if 'o' is the entity stored under its key or, for the tables
+    // keeping values, if anything is
+    boolean isStored(Object o) {
+
+        String table = tableOf(o);
+        Object key = keyOf(o);
+        if (table == null || key == null) return false;
+
+        return keepsValues(table) ? table(table).containsKey(key) : lookup(table, key) == o;
+    }
+
+    @Override
+    public Object lookup(String table, Object key) {
+        return table(table).get(key);
+    }
+
+    private Object replay(ChangeLog.Op op, Object key, Object o) {
+
+        Map<Object, Object> table = table(tableOf(o));
+        Object stored = table.remove(key);
+
+        if (stored instanceof Position) positionKeys.remove(stored);
+        book(stored, -1);
+
+        if (op == ChangeLog.Op.DELETE) return null;
+
+        if (stored != null && stored != o && stored.getClass() == o.getClass()) {
+            // Keep the instance other entities already point to
+            ChangeLog.copyState(o, stored);
+            o = stored;
+        }
+
+        table.put(keyOf(o), o);
+        advanceSequence(tableOf(o), keyOf(o));
+        if (o instanceof Position) positionKeys.put((Position)o, o.toString());
+        book(o, 1);
+
+        return o;
+    }
+
+    // Loads a snapshot written by SnapshotCodec or, by older builds, with
+    // Java serialization. SnapshotCodec files are mapped rather than read, so
+    // that the history is only decoded if it is ever needed.
+    static DataManager readSnapshot(Path path) throws IOException {
+
+        DataManager loaded = new DataManager();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (SnapshotCodec.isSnapshot(snapshot)) {
+                SnapshotCodec.read(snapshot, loaded);
+            } else {
+                SnapshotMigrator.readLegacy(new BufferedInputStream(Files.newInputStream(path)), loaded);
+            }
+        }
+
+        return loaded;
+    }
+
+    public static DataManager getInstance() {
+
+        DataManager loaded = instance;
+        if (loaded != null) return loaded;
+
+        synchronized (DataManager.class) {
+            if (instance == null) load();
+            return instance;
+        }
+    }
+
+    private static void load() {
+
+        DataManager loaded;
+        try {
+            loaded = readSnapshot(SNAPSHOT);
+        } catch (Exception e) {
+            loaded = new DataManager();
+        }
+
+        try {
+            loaded.openStore();
+        } catch (ChangeLog.UnreadableRecordException e) {
+            // Starting without the changes it holds would lose them for good
+            throw new UncheckedIOException(e);
+        } catch (IOException e) {
+            // Keep working in memory only
+            loaded.changeLog = null;
+        }
+
+        loaded.buildIndexes();
+
+        // Other threads can see the store from now on, but not change it
+        // before the cleanup is done
+        loaded.beginUnitOfWork();
+        instance = loaded;
+
+        // Cleaning not-committed sales. Committed ones may still be in the
+        // snapshot, open ones never are.
+        List<Sale> open = loaded.residentSales()
+            .stream()
+            .filter(sale -> !sale.isCommitted())
+            .collect(Collectors.toList());
+
+        for (Sale sale : open) {
+
+            for (it.polito.ezshop.data.ProductType prod : sale.getProductsList()) {
+                it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
+
+                xProd.addQuantityOffset(sale.getQuantityByProduct(xProd));
+                loaded.updateProductType(xProd);
             }
 
+            loaded.deleteSale(sale);
         }
 
-        return instance;
+        boolean migrated = !loaded.paymentsLinked && loaded.linkPayments() > 0;
+        loaded.endUnitOfWork();
+
+        // Written with the links, so that the ledger is not gone through again
+        if (migrated) loaded.checkpoint();
     }
 
     public List<it.polito.ezshop.model.User> getUsers() {
-        return users.stream()
-            .collect(toList());
+        return new ArrayList<>(users.values());
     }
 
     public List<it.polito.ezshop.model.ProductType> getProductTypes() {
-        return productTypes.stream()
-            .collect(toList());
+        return new ArrayList<>(productTypes.values());
     }
 
     public List<Product> getProducts() {
-        return products.stream()
-            .collect(toList());
+        return new ArrayList<>(products.values());
     }
 
     public List<Position> getPositions() {
-        return positions.stream()
-            .collect(toList());
+        return new ArrayList<>(positions.values());
     }
 
     public List<it.polito.ezshop.model.Order> getOrders() {
-        return orders.stream()
-            .collect(toList());
+        return new ArrayList<>(orders.values());
     }
 
     public List<it.polito.ezshop.model.Customer> getCustomers() {
-        return customers.stream()
-            .collect(toList());
+        return new ArrayList<>(customers.values());
     }
 
     public List<LoyaltyCard> getLoyaltyCards() {
-        return loyaltyCards.stream()
-            .collect(toList());
+        return new ArrayList<>(loyaltyCards.values());
     }
 
     public List<Sale> getSales() {
-        return sales.stream()
-            .collect(toList());
+        return new ArrayList<>(sales.values());
     }
 
     public List<CReturn> getReturns() {
-        return cReturns.stream()
-            .collect(toList());
+        return new ArrayList<>(cReturns.values());
     }
 
     public List<DummyCredit> getDummyCredits() {
-        return dummyCredits.stream()
-            .collect(toList());
+        return new ArrayList<>(dummyCredits.values());
     }
 
     public List<DummyDebit> getDummyDebits() {
-        return dummyDebits.stream()
-            .collect(toList());
+        return new ArrayList<>(dummyDebits.values());
     }
 
     public List<BalanceTransaction> getBalanceTransactions() {
-        return balanceTransactions.stream()
-            .collect(toList());
+        return new ArrayList<>(balanceTransactions.values());
+    }
+
+    public int nextUserId() {
+        return nextId("users");
+    }
+
+    public int nextProductTypeId() {
+        return nextId("productTypes");
+    }
+
+    public int nextOrderId() {
+        return nextId("orders");
+    }
+
+    public int nextCustomerId() {
+        return nextId("customers");
+    }
+
+    public int nextLoyaltyCardId() {
+        return nextId("loyaltyCards");
+    }
+
+    public int nextSaleId() {
+        return nextId("sales");
+    }
+
+    public int nextReturnId() {
+        return nextId("cReturns");
+    }
+
+    public int nextDummyCreditId() {
+        return nextId("dummyCredits");
+    }
+
+    public int nextDummyDebitId() {
+        return nextId("dummyDebits");
+    }
+
+    public int nextBalanceTransactionId() {
+        return nextId("balanceTransactions");
+    }
+
+    public Optional<it.polito.ezshop.model.User> findUserById(Integer id) {
+        return Optional.ofNullable(id == null ? null : users.get(id));
+    }
+
+    public Optional<it.polito.ezshop.model.ProductType> findProductTypeById(Integer id) {
+        return Optional.ofNullable(id == null ? null : productTypes.get(id));
+    }
+
+    public Optional<it.polito.ezshop.model.Order> findOrderById(Integer id) {
+        return Optional.ofNullable(id == null ? null : orders.get(id));
+    }
+
+    public Optional<it.polito.ezshop.model.Customer> findCustomerById(Integer id) {
+        return Optional.ofNullable(id == null ? null : customers.get(id));
+    }
+
+    public Optional<LoyaltyCard> findLoyaltyCardById(String id) {
+        return Optional.ofNullable(id == null ? null : loyaltyCards.get(id));
+    }
+
+    // The credit transaction that paid 'sale', through the link the sale keeps
+    public Optional<CreditTransaction> findPaymentBySale(Sale sale) {
+
+        if (sale == null || sale.getPaymentId() == null) return Optional.empty();
+
+        return findBalanceTransactionById(sale.getPaymentId())
+            .filter(bt -> bt instanceof CreditTransaction)
+            .map(bt -> (CreditTransaction)bt)
+            .filter(ct -> ct.getRelatedCreditOperation() instanceof Sale && sale.equals(ct.getRelatedCreditOperation()));
+    }
+
+    // The debit transaction that paid 'cReturn' back, through the link the return keeps
+    public Optional<DebitTransaction> findRefundByReturn(CReturn cReturn) {
+
+        if (cReturn == null || cReturn.getBalanceId() == null) return Optional.empty();
+
+        return findBalanceTransactionById(cReturn.getBalanceId())
+            .filter(bt -> bt instanceof DebitTransaction)
+            .map(bt -> (DebitTransaction)bt)
+            .filter(dt -> cReturn.equals(dt.getRelatedDebitOperation()));
+    }
+
+    public Optional<Sale> findSaleById(Integer ticketNumber) {
+        return Optional.ofNullable(ticketNumber == null ? null : sales.get(ticketNumber));
+    }
+
+    public Optional<CReturn> findReturnById(Integer returnId) {
+        return Optional.ofNullable(returnId == null ? null : cReturns.get(returnId));
+    }
+
+    public Optional<it.polito.ezshop.model.User> findUserByUsername(String username) {
+        return Optional.ofNullable(usernames.get(username));
+    }
+
+    public Optional<it.polito.ezshop.model.ProductType> findProductTypeByBarCode(String barCode) {
+
+        long value = Validators.parseGTIN(barCode);
+        return value < 0 ? Optional.empty() : Optional.ofNullable(barCodes.get(value));
+    }
+
+    public Optional<Product> findProductByRFID(String RFID) {
+        return Optional.ofNullable(RFID == null ? null : products.get(RFID));
+    }
+
+    public Optional<Position> findPositionByLocation(String location) {
+        return Optional.ofNullable(location == null ? null : positions.get(location));
+    }
+
+    public Optional<BalanceTransaction> findBalanceTransactionById(Integer balanceId) {
+        return Optional.ofNullable(balanceId == null ? null : balanceTransactions.get(balanceId));
     }
 
     public boolean insertUser(it.polito.ezshop.model.User o) {
-        return insertIntoAndSave(users, o);
+        return insertIntoAndSave(users, o, it.polito.ezshop.model.User::getId, usernames);
     }
 
     public boolean insertProductType(it.polito.ezshop.model.ProductType o) {
-        return insertIntoAndSave(productTypes, o);
+        return insertIntoAndSave(productTypes, o, it.polito.ezshop.model.ProductType::getId, barCodes);
     }
 
     public boolean insertProduct(Product o) {
-        return insertIntoAndSave(products, o);
+        return insertIntoAndSave(products, o, Product::getRFID);
+    }
+
+    // Inserts all the products with a single durable write, or none of them
+    // if any is already stored or repeated
+    public boolean insertProducts(Collection<Product> batch) {
+
+        boolean inserted = false;
+        beginUnitOfWork();
+        try {
+            Set<String> rfids = new HashSet<>();
+            inserted = batch.stream()
+                .allMatch(o -> o != null && o.getRFID() != null && !products.containsKey(o.getRFID()) && rfids.add(o.getRFID()));
+
+            if (inserted) batch.forEach(o -> insertIntoAndSave(products, o, Product::getRFID));
+        } finally {
+            inserted = endUnitOfWork() && inserted;
+        }
+
+        return inserted;
     }
 
     public boolean insertPosition(Position o) {
-        return insertIntoAndSave(positions, o);
+
+        lock.lock();
+        try {
+            if (o == null || positionKeys.containsKey(o) || positions.containsKey(o.toString())) return false;
+
+            touch("positions", o.toString());
+            positions.put(o.toString(), o);
+            positionKeys.put(o, o.toString());
+            return this.save(ChangeLog.Op.INSERT, o.toString(), o);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean insertOrder(it.polito.ezshop.model.Order o) {
-        return insertIntoAndSave(orders, o);
+        return insertIntoAndSave(orders, o, it.polito.ezshop.model.Order::getOrderId);
     }
 
     public boolean insertCustomer(it.polito.ezshop.model.Customer o) {
-        return insertIntoAndSave(customers, o);
+        return insertIntoAndSave(customers, o, it.polito.ezshop.model.Customer::getId);
     }
 
     public boolean insertLoyaltyCard(LoyaltyCard o) {
-        return insertIntoAndSave(loyaltyCards, o);
+        return insertIntoAndSave(loyaltyCards, o, LoyaltyCard::getID);
     }
 
     public boolean insertSale(Sale o) {
-        return insertIntoAndSave(sales, o);
+        return insertIntoAndSave(sales, o, Sale::getTicketNumber);
     }
 
     public boolean insertReturn(CReturn o) {
-        return insertIntoAndSave(cReturns, o);
+        return insertIntoAndSave(cReturns, o, CReturn::getReturnId);
     }
 
     public boolean insertDummyCredit(DummyCredit o) {
-        return insertIntoAndSave(dummyCredits, o);
+        return insertIntoAndSave(dummyCredits, o, DummyCredit::getId);
     }
 
     public boolean insertDummyDebit(DummyDebit o) {
-        return insertIntoAndSave(dummyDebits, o);
+        return insertIntoAndSave(dummyDebits, o, DummyDebit::getId);
     }
 
     public boolean insertBalanceTransaction(BalanceTransaction o) {
-        return insertIntoAndSave(balanceTransactions, o);
+
+        // The ledger index is read under the lock, or one built meanwhile
+        // would miss the change. A sale paid by it is linked to it.
+        lock.lock();
+        try {
+            if (!insertIntoAndSave(balanceTransactions, o, BalanceTransaction::getBalanceId, ledger)) return false;
+
+            linkPayment(o, true);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean updateUser(it.polito.ezshop.model.User o) {
-        return updateIntoAndSave(users, o);
+        return updateIntoAndSave(users, o, it.polito.ezshop.model.User::getId, usernames);
     }
     
     public boolean updateProductType(it.polito.ezshop.model.ProductType o) {
-        return updateIntoAndSave(productTypes, o);
+        return updateIntoAndSave(productTypes, o, it.polito.ezshop.model.ProductType::getId, barCodes);
     }
     
     public boolean updateProduct(Product o) {
-        return updateIntoAndSave(products, o);
+        return updateIntoAndSave(products, o, Product::getRFID);
     }
 
     public boolean updatePosition(Position o) {
-        return updateIntoAndSave(positions, o);
+
+        lock.lock();
+        try {
+            String key = o == null ? null : positionKeys.get(o);
+            if (key == null) return false;
+
+            // The position was edited into one that is already stored
+            if (!key.equals(o.toString()) && positions.containsKey(o.toString())) return false;
+
+            touch("positions", key);
+            touch("positions", o.toString());
+            positions.remove(key);
+            positions.put(o.toString(), o);
+            positionKeys.put(o, o.toString());
+            return this.save(ChangeLog.Op.UPDATE, key, o);
+        } finally {
+            lock.unlock();
+        }
     }
     
     public boolean updateOrder(it.polito.ezshop.model.Order o) {
-        return updateIntoAndSave(orders, o);
+        return updateIntoAndSave(orders, o, it.polito.ezshop.model.Order::getOrderId);
     }
     
     public boolean updateCustomer(it.polito.ezshop.model.Customer o) {
-        return updateIntoAndSave(customers, o);
+        return updateIntoAndSave(customers, o, it.polito.ezshop.model.Customer::getId);
     }
     
     public boolean updateLoyaltyCard(LoyaltyCard o) {
-        return updateIntoAndSave(loyaltyCards, o);
+        return updateIntoAndSave(loyaltyCards, o, LoyaltyCard::getID);
     }
     
     public boolean updateSale(Sale o) {
-        return updateIntoAndSave(sales, o);
+        return updateIntoAndSave(sales, o, Sale::getTicketNumber);
     }
     
     public boolean updateReturn(CReturn o) {
-        return updateIntoAndSave(cReturns, o);
+        return updateIntoAndSave(cReturns, o, CReturn::getReturnId);
     }
     
     public boolean updateDummyCredit(DummyCredit o) {
-        return updateIntoAndSave(dummyCredits, o);
+        return updateIntoAndSave(dummyCredits, o, DummyCredit::getId);
     }
     
     public boolean updateDummyDebit(DummyDebit o) {
-        return updateIntoAndSave(dummyDebits, o);
+        return updateIntoAndSave(dummyDebits, o, DummyDebit::getId);
     }
     
     public boolean updateBalanceTransaction(BalanceTransaction o) {
-        return updateIntoAndSave(balanceTransactions, o);
+
+        // The ledger index is read under the lock, or one built meanwhile
+        // would miss the change
+        lock.lock();
+        try {
+            return updateIntoAndSave(balanceTransactions, o, BalanceTransaction::getBalanceId, ledger);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean deleteUser(it.polito.ezshop.model.User o) {
-        return deleteIntoAndSave(users, o);
+        return deleteIntoAndSave(users, o, it.polito.ezshop.model.User::getId, usernames);
     }
 
     public boolean deleteProductType(it.polito.ezshop.model.ProductType o) {
-        return deleteIntoAndSave(productTypes, o);
+        return deleteIntoAndSave(productTypes, o, it.polito.ezshop.model.ProductType::getId, barCodes);
     }
     
     public boolean deleteProduct(Product o) {
-        return deleteIntoAndSave(products, o);
+        return deleteIntoAndSave(products, o, Product::getRFID);
     }
 
     public boolean deletePosition(Position o) {
-        return deleteIntoAndSave(positions, o);
+
+        lock.lock();
+        try {
+            String key = o == null ? null : positionKeys.remove(o);
+            if (key == null) return false;
+
+            touch("positions", key);
+            positions.remove(key);
+            return this.save(ChangeLog.Op.DELETE, key, o);
+        } finally {
+            lock.unlock();
+        }
     }
     
     public boolean deleteOrder(it.polito.ezshop.model.Order o) {
-        return deleteIntoAndSave(orders, o);
+        return deleteIntoAndSave(orders, o, it.polito.ezshop.model.Order::getOrderId);
     }
     
     public boolean deleteCustomer(it.polito.ezshop.model.Customer o) {
-        return deleteIntoAndSave(customers, o);
+        return deleteIntoAndSave(customers, o, it.polito.ezshop.model.Customer::getId);
     }
     
     public boolean deleteLoyaltyCard(LoyaltyCard o) {
-        return deleteIntoAndSave(loyaltyCards, o);
+        return deleteIntoAndSave(loyaltyCards, o, LoyaltyCard::getID);
     }
     
     public boolean deleteSale(Sale o) {
-        return deleteIntoAndSave(sales, o);
+        return deleteIntoAndSave(sales, o, Sale::getTicketNumber);
     }
     
     public boolean deleteReturn(CReturn o) {
-        return deleteIntoAndSave(cReturns, o);
+        return deleteIntoAndSave(cReturns, o, CReturn::getReturnId);
     }
     
     public boolean deleteDummyCredit(DummyCredit o) {
-        return deleteIntoAndSave(dummyCredits, o);
+        return deleteIntoAndSave(dummyCredits, o, DummyCredit::getId);
     }
     
     public boolean deleteDummyDebit(DummyDebit o) {
-        return deleteIntoAndSave(dummyDebits, o);
+        return deleteIntoAndSave(dummyDebits, o, DummyDebit::getId);
     }
     
     public boolean deleteBalanceTransaction(BalanceTransaction o) {
-        return deleteIntoAndSave(balanceTransactions, o);
+
+        // The ledger index is read under the lock, or one built meanwhile
+        // would miss the change. A sale paid by it is unlinked.
+        lock.lock();
+        try {
+            if (!deleteIntoAndSave(balanceTransactions, o, BalanceTransaction::getBalanceId, ledger)) return false;
+
+            linkPayment(o, false);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
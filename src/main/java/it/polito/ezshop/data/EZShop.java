@@ -5,6 +5,7 @@ import it.polito.ezshop.model.*;
 
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.stream.Collectors.*;
 
@@ -14,122 +15,165 @@ import java.math.RoundingMode;
 
 public class EZShop implements EZShopInterface {
 
+    // The session this instance logged in with, if it did
+    private volatile Session session;
+    // Where the card payments of this instance go
+    private final PaymentGateway gateway;
+
+    public EZShop() {
+        this(null);
+    }
+
+    // An instance working for a session opened elsewhere, e.g. found by token
+    public EZShop(Session session) {
+        this(session, CardSystemGateway.getInstance());
+    }
+
+    public EZShop(Session session, PaymentGateway gateway) {
+        this.session = session;
+        this.gateway = gateway;
+    }
+
+    public Session getSession() {
+        return session();
+    }
+
+    // Instances that did not log in on their own share the LoginManager one
+    private Session session() {
+
+        Session own = session;
+        return own != null && own.isOpen() ? own : LoginManager.getInstance().getDefaultSession();
+    }
 
     @Override
     public void reset() {
 
-        for (it.polito.ezshop.model.User u : DataManager.getInstance().getUsers()) {
-            DataManager.getInstance().deleteUser(u);
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            for (it.polito.ezshop.model.User u : DataManager.getInstance().getUsers()) {
+                DataManager.getInstance().deleteUser(u);
+            }
 
-        for (it.polito.ezshop.model.Customer u : DataManager.getInstance().getCustomers()) {
-            DataManager.getInstance().deleteCustomer(u);
-        }
+            for (it.polito.ezshop.model.Customer u : DataManager.getInstance().getCustomers()) {
+                DataManager.getInstance().deleteCustomer(u);
+            }
 
-        for (LoyaltyCard u : DataManager.getInstance().getLoyaltyCards()) {
-            DataManager.getInstance().deleteLoyaltyCard(u);
-        }
+            for (LoyaltyCard u : DataManager.getInstance().getLoyaltyCards()) {
+                DataManager.getInstance().deleteLoyaltyCard(u);
+            }
 
-        for (it.polito.ezshop.model.ProductType u : DataManager.getInstance().getProductTypes()) {
-            DataManager.getInstance().deleteProductType(u);
-        }
+            for (it.polito.ezshop.model.ProductType u : DataManager.getInstance().getProductTypes()) {
+                DataManager.getInstance().deleteProductType(u);
+            }
 
-        for (Position u : DataManager.getInstance().getPositions()) {
-            DataManager.getInstance().deletePosition(u);
-        }
+            for (Position u : DataManager.getInstance().getPositions()) {
+                DataManager.getInstance().deletePosition(u);
+            }
 
-        for (it.polito.ezshop.model.Order u : DataManager.getInstance().getOrders()) {
-            DataManager.getInstance().deleteOrder(u);
-        }
+            for (it.polito.ezshop.model.Order u : DataManager.getInstance().getOrders()) {
+                DataManager.getInstance().deleteOrder(u);
+            }
 
-        for (Sale u : DataManager.getInstance().getSales()) {
-            DataManager.getInstance().deleteSale(u);
-        }
+            for (Sale u : DataManager.getInstance().getSales()) {
+                DataManager.getInstance().deleteSale(u);
+            }
 
-        for (CReturn u : DataManager.getInstance().getReturns()) {
-            DataManager.getInstance().deleteReturn(u);
-        }
+            for (CReturn u : DataManager.getInstance().getReturns()) {
+                DataManager.getInstance().deleteReturn(u);
+            }
 
-        for (DummyCredit u : DataManager.getInstance().getDummyCredits()) {
-            DataManager.getInstance().deleteDummyCredit(u);
-        }
+            for (DummyCredit u : DataManager.getInstance().getDummyCredits()) {
+                DataManager.getInstance().deleteDummyCredit(u);
+            }
 
-        for (DummyDebit u : DataManager.getInstance().getDummyDebits()) {
-            DataManager.getInstance().deleteDummyDebit(u);
-        }
+            for (DummyDebit u : DataManager.getInstance().getDummyDebits()) {
+                DataManager.getInstance().deleteDummyDebit(u);
+            }
 
-        for (BalanceTransaction u : DataManager.getInstance().getBalanceTransactions()) {
-            DataManager.getInstance().deleteBalanceTransaction(u);
-        }
+            for (BalanceTransaction u : DataManager.getInstance().getBalanceTransactions()) {
+                DataManager.getInstance().deleteBalanceTransaction(u);
+            }
 
-        for (Product p : DataManager.getInstance().getProducts()) {
-            DataManager.getInstance().deleteProduct(p);
+            for (Product p : DataManager.getInstance().getProducts()) {
+                DataManager.getInstance().deleteProduct(p);
+            }
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
         }
 
+        // Ids start from 1 again, sales and returns included, once the payment
+        // keys made of them are forgotten: if they cannot be, they go on
+        if (gateway.forgetKeys()) DataManager.getInstance().resetSequences();
     }
 
     @Override
     public Integer createUser(String username, String password, String role) throws InvalidUsernameException, InvalidPasswordException, InvalidRoleException {
-        
-        if (role == null || role.isEmpty() || !(role.equals("Administrator") || role.equals("Cashier") || role.equals("ShopManager"))) {
-            throw new InvalidRoleException();
-        }
 
-        if (username == null || username.isEmpty()) {
-            throw new InvalidUsernameException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (role == null || role.isEmpty() || !(role.equals("Administrator") || role.equals("Cashier") || role.equals("ShopManager"))) {
+                throw new InvalidRoleException();
+            }
 
-        if (password == null || password.isEmpty()) {
-            throw new InvalidPasswordException();
-        }
+            if (username == null || username.isEmpty()) {
+                throw new InvalidUsernameException();
+            }
 
-        boolean usernameExists = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .anyMatch(user -> user.getUsername().equals(username));
+            if (password == null || password.isEmpty()) {
+                throw new InvalidPasswordException();
+            }
 
-        if (usernameExists) {
-            return -1;
-        }
+            boolean usernameExists = DataManager.getInstance().findUserByUsername(username).isPresent();
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .mapToInt(it.polito.ezshop.model.User::getId)
-            .max();
+            if (usernameExists) {
+                return -1;
+            }
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        if (!DataManager.getInstance().insertUser(new it.polito.ezshop.model.User(newId, username, password, role))) {
-            return -1;
-        }
+            int newId = DataManager.getInstance().nextUserId();
+            if (!DataManager.getInstance().insertUser(new it.polito.ezshop.model.User(newId, username, password, role))) {
+                return -1;
+            }
 
-        return newId;
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteUser(Integer id) throws InvalidUserIdException, UnauthorizedException {
-        
-        if (id == null || id <= 0) throw new InvalidUserIdException();
 
-        if (!RightsManager.getInstance().canManageUsers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (id == null || id <= 0) throw new InvalidUserIdException();
 
-        Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .filter(u -> u.getId().equals(id))
-            .findFirst();
+            if (!RightsManager.getInstance().canManageUsers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!optUser.isPresent()) return false; 
-        
-        return DataManager.getInstance().deleteUser(optUser.get());
+            Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance().findUserById(id);
+
+            if (!optUser.isPresent()) return false; 
+
+            return DataManager.getInstance().deleteUser(optUser.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public List<User> getAllUsers() throws UnauthorizedException {
 
-        if (!RightsManager.getInstance().canManageUsers(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageUsers(session())) {
             throw new UnauthorizedException();
         }
 
@@ -145,44 +189,44 @@ public class EZShop implements EZShopInterface {
         
         if (id == null || id <= 0) throw new InvalidUserIdException();
 
-        if (!RightsManager.getInstance().canManageUsers(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageUsers(session())) {
             throw new UnauthorizedException();
         }
 
-        Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .filter(u -> u.getId().equals(id))
-            .findFirst();
+        Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance().findUserById(id);
 
         return optUser.orElse(null);
     }
 
     @Override
     public boolean updateUserRights(Integer id, String role) throws InvalidUserIdException, InvalidRoleException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageUsers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (id == null || id <= 0) throw new InvalidUserIdException();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageUsers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (role == null || role.isEmpty() || !(role.equals("Administrator") || role.equals("Cashier") || role.equals("ShopManager"))) {
-            throw new InvalidRoleException();
-        }
+            if (id == null || id <= 0) throw new InvalidUserIdException();
 
-        Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .filter(u -> u.getId().equals(id))
-            .findFirst();
+            if (role == null || role.isEmpty() || !(role.equals("Administrator") || role.equals("Cashier") || role.equals("ShopManager"))) {
+                throw new InvalidRoleException();
+            }
 
-        optUser.ifPresent(u -> {
-            u.setRole(role);
-            DataManager.getInstance().updateUser(u);
-        });
+            Optional<it.polito.ezshop.model.User> optUser = DataManager.getInstance().findUserById(id);
 
-        return optUser.isPresent();       
+            optUser.ifPresent(u -> {
+                u.setRole(role);
+                DataManager.getInstance().updateUser(u);
+            });
+
+            return optUser.isPresent();       
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
@@ -196,130 +240,146 @@ public class EZShop implements EZShopInterface {
             throw new InvalidPasswordException();
         }
 
-        if (!LoginManager.getInstance().tryLogin(username, password)) {
+        Session opened = LoginManager.getInstance().openSession(username, password);
+        if (opened == null) {
             return null;
         }
 
-        return (User)LoginManager.getInstance().getLoggedUser();
+        LoginManager.getInstance().closeSession(session);
+        session = opened;
+        return (User)opened.getUser();
     }
 
     @Override
     public boolean logout() {
-        return LoginManager.getInstance().tryLogout();
+
+        Session own = session;
+        if (own == null || !own.isOpen()) return LoginManager.getInstance().tryLogout();
+
+        session = null;
+        return LoginManager.getInstance().closeSession(own);
     }
 
     @Override
     public Integer createProductType(String description, String productCode, double pricePerUnit, String note) throws InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
-        
-        if (description == null || description.isEmpty()) {
-            throw new InvalidProductDescriptionException();
-        }
 
-        if (productCode == null || productCode.isEmpty() || !isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (pricePerUnit <= 0.0) {
-            throw new InvalidPricePerUnitException();
-        }
+            if (description == null || description.isEmpty()) {
+                throw new InvalidProductDescriptionException();
+            }
 
-        if (DataManager.getInstance().getProductTypes().stream().anyMatch(p -> p.getBarCode().equals(productCode))) {
-            return -1;
-        }
+            if (productCode == null || productCode.isEmpty() || !isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .mapToInt(it.polito.ezshop.model.ProductType::getId)
-            .max();
+            if (pricePerUnit <= 0.0) {
+                throw new InvalidPricePerUnitException();
+            }
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        it.polito.ezshop.model.ProductType newProd = new it.polito.ezshop.model.ProductType(newId, productCode, description, pricePerUnit, 0, 0.0, note, null);
-        if (!DataManager.getInstance().insertProductType(newProd)) {
-            return -1;
-        }
+            if (DataManager.getInstance().findProductTypeByBarCode(productCode).isPresent()) {
+                return -1;
+            }
+
+            int newId = DataManager.getInstance().nextProductTypeId();
+            it.polito.ezshop.model.ProductType newProd = new it.polito.ezshop.model.ProductType(newId, productCode, description, pricePerUnit, 0, 0.0, note, null);
+            if (!DataManager.getInstance().insertProductType(newProd)) {
+                return -1;
+            }
 
-        return newId;
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean updateProduct(Integer id, String newDescription, String newCode, double newPrice, String newNote) throws InvalidProductIdException, InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (id == null || id <= 0) {
-            throw new InvalidProductIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (newDescription == null || newDescription.isEmpty()) {
-            throw new InvalidProductDescriptionException();
-        }
+            if (id == null || id <= 0) {
+                throw new InvalidProductIdException();
+            }
 
-        if (newCode == null || newCode.isEmpty() || !isValidBarcode(newCode)) {
-            throw new InvalidProductCodeException();
-        }
+            if (newDescription == null || newDescription.isEmpty()) {
+                throw new InvalidProductDescriptionException();
+            }
 
-        if (newPrice <= 0.0) {
-            throw new InvalidPricePerUnitException();
-        }
+            if (newCode == null || newCode.isEmpty() || !isValidBarcode(newCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getId() == id)
-            .findFirst();
+            if (newPrice <= 0.0) {
+                throw new InvalidPricePerUnitException();
+            }
 
-        if (!prod.isPresent()) return false;
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeById(id);
 
-        boolean isNewCodeAlreadyUsed = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> !p.equals(prod.get()))
-            .anyMatch(p -> p.getBarCode().equals(newCode));
-            
+            if (!prod.isPresent()) return false;
 
-        if (isNewCodeAlreadyUsed) return false;
+            boolean isNewCodeAlreadyUsed = DataManager.getInstance()
+                .findProductTypeByBarCode(newCode)
+                .filter(p -> !p.equals(prod.get()))
+                .isPresent();
 
-        prod.get().setBarCode(newCode);
-        prod.get().setProductDescription(newDescription);
-        prod.get().setPricePerUnit(newPrice);
-        prod.get().setNote(newNote);
+            if (isNewCodeAlreadyUsed) return false;
 
-        return DataManager.getInstance().updateProductType(prod.get());
+            prod.get().setBarCode(newCode);
+            prod.get().setProductDescription(newDescription);
+            prod.get().setPricePerUnit(newPrice);
+            prod.get().setNote(newNote);
+
+            return DataManager.getInstance().updateProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteProductType(Integer id) throws InvalidProductIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (id == null || id <= 0) {
-            throw new InvalidProductIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getId() == id)
-            .findFirst();
+            if (id == null || id <= 0) {
+                throw new InvalidProductIdException();
+            }
+
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeById(id);
 
-        if (!(prod.isPresent())) return false;
+            if (!(prod.isPresent())) return false;
 
-        return DataManager.getInstance().deleteProductType(prod.get());
+            return DataManager.getInstance().deleteProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public List<ProductType> getAllProductTypes() throws UnauthorizedException {
 
-        if (!RightsManager.getInstance().canListAllProductTypes(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canListAllProductTypes(session())) {
             throw new UnauthorizedException();
         }
 
@@ -332,7 +392,7 @@ public class EZShop implements EZShopInterface {
     @Override
     public ProductType getProductTypeByBarCode(String barCode) throws InvalidProductCodeException, UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
             throw new UnauthorizedException();
         }
 
@@ -340,18 +400,14 @@ public class EZShop implements EZShopInterface {
             throw new InvalidProductCodeException();
         }
 
-        return DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getBarCode().equals(barCode))
-            .findFirst()
+        return DataManager.getInstance().findProductTypeByBarCode(barCode)
             .orElse(null);
     }
 
     @Override
     public List<ProductType> getProductTypesByDescription(String description) throws UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
             throw new UnauthorizedException();
         }
 
@@ -364,328 +420,333 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public boolean updateQuantity(Integer productId, int toBeAdded) throws InvalidProductIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (productId == null || productId <= 0) {
-            throw new InvalidProductIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getId() == productId)
-            .findFirst();
+            if (productId == null || productId <= 0) {
+                throw new InvalidProductIdException();
+            }
 
-        if (!prod.isPresent()) return false;
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeById(productId);
 
-        if (prod.get().getQuantity() + toBeAdded < 0) return false;
+            if (!prod.isPresent()) return false;
 
-        if (prod.get().getLocation() == "") return false;
+            if (prod.get().getQuantity() + toBeAdded < 0) return false;
 
-        prod.get().addQuantityOffset(toBeAdded);
-        return DataManager.getInstance().updateProductType(prod.get());
+            if (prod.get().getLocation() == "") return false;
+
+            prod.get().addQuantityOffset(toBeAdded);
+            return DataManager.getInstance().updateProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean updatePosition(Integer productId, String newPos) throws InvalidProductIdException, InvalidLocationException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (productId == null || productId <= 0) {
-            throw new InvalidProductIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getId() == productId)
-            .findFirst();
+            if (productId == null || productId <= 0) {
+                throw new InvalidProductIdException();
+            }
 
-        if (newPos == null || newPos.isEmpty()) {
-            
-            Position oldpos = prod.get().getAssignedPosition();
-            prod.get().setLocation("");
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeById(productId);
 
-            DataManager.getInstance().updateProductType(prod.get());
-            DataManager.getInstance().updatePosition(oldpos);
+            if (newPos == null || newPos.isEmpty()) {
 
-            return true;
-        }
+                Position oldpos = prod.get().getAssignedPosition();
+                prod.get().setLocation("");
 
-        if (!(newPos.matches("[1-9][0-9]*-[a-zA-Z]+-[1-9][0-9]*"))) {
-            throw new InvalidLocationException();
-        }
+                DataManager.getInstance().updateProductType(prod.get());
+                DataManager.getInstance().updatePosition(oldpos);
 
-        Optional<Position> pos = DataManager.getInstance()
-            .getPositions()
-            .stream()
-            .filter(ps -> ps.toString().equals(newPos))
-            .findFirst();
-        
-        String[] pieces = newPos.split("-");
-        Position actualPos = !(pos.isPresent()) ? new Position(Integer.valueOf(pieces[0]),pieces[1],Integer.valueOf(pieces[2]), null) : pos.get();
+                return true;
+            }
 
-        if (!(pos.isPresent())) {
-            DataManager.getInstance().insertPosition(actualPos);
-        }
+            if (!(newPos.matches("[1-9][0-9]*-[a-zA-Z]+-[1-9][0-9]*"))) {
+                throw new InvalidLocationException();
+            }
 
-        if (!prod.get().assingToPosition(actualPos)) {
-            return false;
-        }
+            Optional<Position> pos = DataManager.getInstance().findPositionByLocation(newPos);
+
+            String[] pieces = newPos.split("-");
+            Position actualPos = !(pos.isPresent()) ? new Position(Integer.valueOf(pieces[0]),pieces[1],Integer.valueOf(pieces[2]), null) : pos.get();
+
+            if (!(pos.isPresent())) {
+                DataManager.getInstance().insertPosition(actualPos);
+            }
+
+            if (!prod.get().assingToPosition(actualPos)) {
+                DataManager.getInstance().rollback();
+                return false;
+            }
 
-        DataManager.getInstance().updatePosition(actualPos);
-        return DataManager.getInstance().updateProductType(prod.get());
+            DataManager.getInstance().updatePosition(actualPos);
+            return DataManager.getInstance().updateProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public Integer issueOrder(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (productCode == null ||  productCode.isEmpty() || !isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (quantity <= 0){
-            throw new InvalidQuantityException();
-        }
+            if (productCode == null ||  productCode.isEmpty() || !isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        if (pricePerUnit <= 0){
-            throw new InvalidPricePerUnitException();
-        }
+            if (quantity <= 0){
+                throw new InvalidQuantityException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-                .getProductTypes()
-                .stream()
-                .filter(p -> p.getBarCode().equals(productCode))
-                .findFirst();
+            if (pricePerUnit <= 0){
+                throw new InvalidPricePerUnitException();
+            }
 
-        if(!(prod.isPresent())) {
-            return -1;
-        }
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
 
-        OptionalInt maxId = DataManager.getInstance()
-                .getOrders()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.Order::getOrderId)
-                .max();
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
+            if(!(prod.isPresent())) {
+                return -1;
+            }
+
+            int newId = DataManager.getInstance().nextOrderId();
 
-        it.polito.ezshop.model.Order newOrder = new it.polito.ezshop.model.Order(newId, pricePerUnit, quantity, prod.get(), EOrderStatus.ISSUED);
-        if(!DataManager.getInstance().insertOrder(newOrder)){
-            return -1;
+            it.polito.ezshop.model.Order newOrder = new it.polito.ezshop.model.Order(newId, pricePerUnit, quantity, prod.get(), EOrderStatus.ISSUED);
+            if(!DataManager.getInstance().insertOrder(newOrder)){
+                return -1;
+            }
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
         }
-        return newId;
     }
 
     @Override
     public Integer payOrderFor(String productCode, int quantity, double pricePerUnit) throws InvalidProductCodeException, InvalidQuantityException, InvalidPricePerUnitException, UnauthorizedException {
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (productCode == null ||  productCode.isEmpty() || !isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (quantity <= 0){
-            throw new InvalidQuantityException();
-        }
+            if (productCode == null ||  productCode.isEmpty() || !isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        if (pricePerUnit <= 0){
-            throw new InvalidPricePerUnitException();
-        }
+            if (quantity <= 0){
+                throw new InvalidQuantityException();
+            }
 
-        if ((quantity*pricePerUnit > this.computeBalance())){
-            return -1;
-        }
+            if (pricePerUnit <= 0){
+                throw new InvalidPricePerUnitException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-                .getProductTypes()
-                .stream()
-                .filter(p -> p.getBarCode() == productCode)
-                .findFirst();
+            if ((quantity*pricePerUnit > this.computeBalance())){
+                return -1;
+            }
 
-        if(!(prod.isPresent())) {
-            return -1;
-        }
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
 
-        OptionalInt maxOrdId = DataManager.getInstance()
-                .getOrders()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.Order::getOrderId)
-                .max();
-        int newOrdId = !maxOrdId.isPresent() ? 1 : (maxOrdId.getAsInt() + 1);
+            if(!(prod.isPresent())) {
+                return -1;
+            }
 
-        it.polito.ezshop.model.Order newOrder = new it.polito.ezshop.model.Order(newOrdId, pricePerUnit, quantity, prod.get(), EOrderStatus.PAYED);
-        if(!DataManager.getInstance().insertOrder(newOrder)){
-            return -1;
-        }
+            int newOrdId = DataManager.getInstance().nextOrderId();
 
-        OptionalInt maxBalId = DataManager.getInstance()
-                .getBalanceTransactions()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-                .max();
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
+            it.polito.ezshop.model.Order newOrder = new it.polito.ezshop.model.Order(newOrdId, pricePerUnit, quantity, prod.get(), EOrderStatus.PAYED);
+            if(!DataManager.getInstance().insertOrder(newOrder)){
+                return -1;
+            }
 
-        newOrder.setBalanceId(newBalId);
-        DebitTransaction newDebT = new DebitTransaction(newBalId, newOrder);
-        if(!DataManager.getInstance().insertBalanceTransaction(newDebT)){
-            return -1;
-        }
+            int newBalId = DataManager.getInstance().nextBalanceTransactionId();
 
-        return newOrdId;
+            newOrder.setBalanceId(newBalId);
+            DebitTransaction newDebT = new DebitTransaction(newBalId, newOrder);
+            if(!DataManager.getInstance().insertBalanceTransaction(newDebT)){
+                DataManager.getInstance().rollback();
+                return -1;
+            }
+
+            return newOrdId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean payOrder(Integer orderId) throws InvalidOrderIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
-        
-        if (orderId == null || orderId <= 0){
-            throw new InvalidOrderIdException();
-        }
 
-        Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance()
-                .getOrders()
-                .stream()
-                .filter(p -> p.getOrderId() == orderId)
-                .findFirst();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!(ord.isPresent())){
-            return false;
-        }
+            if (orderId == null || orderId <= 0){
+                throw new InvalidOrderIdException();
+            }
 
-        if (!(ord.get().getStatus().equals(EOrderStatus.ISSUED.toString()) || ord.get().getStatus().equals(EOrderStatus.PAYED.toString()))){
-            return false;
-        }
+            Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance().findOrderById(orderId);
+
+            if (!(ord.isPresent())){
+                return false;
+            }
 
-        if (ord.get().getTotalValue() > computeBalance()) return false;
+            if (!(ord.get().getStatus().equals(EOrderStatus.ISSUED.toString()) || ord.get().getStatus().equals(EOrderStatus.PAYED.toString()))){
+                return false;
+            }
 
-        ord.get().setAsPayed();
+            if (ord.get().getTotalValue() > computeBalance()) return false;
 
-        OptionalInt maxBalId = DataManager.getInstance()
-                .getBalanceTransactions()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-                .max();
+            ord.get().setAsPayed();
 
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
+            int newBalId = DataManager.getInstance().nextBalanceTransactionId();
 
-        ord.get().setBalanceId(newBalId);
-        DebitTransaction newDebT = new DebitTransaction(newBalId, ord.get());
-        if (!DataManager.getInstance().insertBalanceTransaction(newDebT)){
-            return false;
-        }
+            ord.get().setBalanceId(newBalId);
+            DebitTransaction newDebT = new DebitTransaction(newBalId, ord.get());
+            if (!DataManager.getInstance().insertBalanceTransaction(newDebT)){
+                DataManager.getInstance().rollback();
+                return false;
+            }
 
-        return DataManager.getInstance().updateOrder(ord.get());
+            return DataManager.getInstance().updateOrder(ord.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean recordOrderArrival(Integer orderId) throws InvalidOrderIdException, UnauthorizedException, InvalidLocationException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
-        
-        if (orderId == null || orderId <= 0) {
-            throw new InvalidOrderIdException();
-        }
 
-        Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance()
-            .getOrders()
-            .stream()
-            .filter(p -> p.getOrderId() == orderId)
-            .findFirst();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!(ord.isPresent())){
-            return false;
-        }
+            if (orderId == null || orderId <= 0) {
+                throw new InvalidOrderIdException();
+            }
 
-        if (ord.get().getRelatedProduct().getAssignedPosition() == null) {
-            throw new InvalidLocationException();
-        }
+            Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance().findOrderById(orderId);
 
-        if (!(ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) || ord.get().getStatus().equals(EOrderStatus.COMPLETED.toString())) {
-            return false;
-        }
+            if (!(ord.isPresent())){
+                return false;
+            }
 
-        if (ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) {
-            ord.get().setAsCompleted();
-            ord.get().getRelatedProduct().addQuantityOffset(ord.get().getQuantity());
-            DataManager.getInstance().updateProductType(ord.get().getRelatedProduct());
-        }
+            if (ord.get().getRelatedProduct().getAssignedPosition() == null) {
+                throw new InvalidLocationException();
+            }
+
+            if (!(ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) || ord.get().getStatus().equals(EOrderStatus.COMPLETED.toString())) {
+                return false;
+            }
+
+            if (ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) {
+                ord.get().setAsCompleted();
+                ord.get().getRelatedProduct().addQuantityOffset(ord.get().getQuantity());
+                DataManager.getInstance().updateProductType(ord.get().getRelatedProduct());
+            }
 
-        return DataManager.getInstance().updateOrder(ord.get());
+            return DataManager.getInstance().updateOrder(ord.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean recordOrderArrivalRFID(Integer orderId, String RFIDfrom) throws InvalidOrderIdException, UnauthorizedException, InvalidLocationException, InvalidRFIDException {
-        
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (orderId == null || orderId <= 0) {
-            throw new InvalidOrderIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance()
-            .getOrders()
-            .stream()
-            .filter(p -> p.getOrderId() == orderId)
-            .findFirst();
+            if (orderId == null || orderId <= 0) {
+                throw new InvalidOrderIdException();
+            }
 
-        if (!ord.isPresent()) return false;
+            Optional<it.polito.ezshop.model.Order> ord = DataManager.getInstance().findOrderById(orderId);
 
-        if (ord.get().getRelatedProduct().getAssignedPosition() == null) {
-            throw new InvalidLocationException();
-        }
+            if (!ord.isPresent()) return false;
 
-        if(!isValidRFID(RFIDfrom)) throw new InvalidRFIDException();
+            if (ord.get().getRelatedProduct().getAssignedPosition() == null) {
+                throw new InvalidLocationException();
+            }
 
-        List<String> allRFIDs = new ArrayList<>();
-        for (int i = 0; i < ord.get().getQuantity(); i++) {
-            allRFIDs.add(String.format("%012d", Long.parseLong(RFIDfrom) + i));
-        }
+            if(!isValidRFID(RFIDfrom)) throw new InvalidRFIDException();
 
-        boolean anyDuplicate = DataManager.getInstance()
-            .getProducts()
-            .stream()
-            .map(Product::getRFID)
-            .anyMatch(rfid -> allRFIDs.contains(rfid));
+            // The whole range must fit in 12 digits and be free
+            long first = parseRFID(RFIDfrom);
+            int quantity = ord.get().getQuantity();
+            if (first + quantity > 1_000_000_000_000L) throw new InvalidRFIDException();
 
-        if (anyDuplicate) throw new InvalidRFIDException();
+            if (DataManager.getInstance().anyProductInRFIDRange(first, quantity)) throw new InvalidRFIDException();
 
-        if (!(ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) || ord.get().getStatus().equals(EOrderStatus.COMPLETED.toString())) { //TODO: what should this if check?
-            return false;
-        }
+            if (!(ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) || ord.get().getStatus().equals(EOrderStatus.COMPLETED.toString())) { //TODO: what should this if check?
+                return false;
+            }
 
-        if (ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) {
-        
-            allRFIDs.forEach(rfid -> DataManager.getInstance().insertProduct(new Product(rfid, ord.get().getRelatedProduct())));
-            
-            ord.get().setAsCompleted();
-            ord.get().getRelatedProduct().addQuantityOffset(ord.get().getQuantity());
-            DataManager.getInstance().updateProductType(ord.get().getRelatedProduct());
-        }
+            if (ord.get().getStatus().equals(EOrderStatus.PAYED.toString())) {
+
+                List<Product> arrived = new ArrayList<>(quantity);
+                for (int i = 0; i < quantity; i++) {
+                    arrived.add(new Product(formatRFID(first + i), ord.get().getRelatedProduct()));
+                }
+                if (!DataManager.getInstance().insertProducts(arrived)) return false;
+
+                ord.get().setAsCompleted();
+                ord.get().getRelatedProduct().addQuantityOffset(ord.get().getQuantity());
+                DataManager.getInstance().updateProductType(ord.get().getRelatedProduct());
+            }
 
-        return DataManager.getInstance().updateOrder(ord.get()); 
+            return DataManager.getInstance().updateOrder(ord.get()); 
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public List<Order> getAllOrders() throws UnauthorizedException {
-        if (!RightsManager.getInstance().canManageProductsCatalogue(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageProductsCatalogue(session())) {
             throw new UnauthorizedException();
         }
 
@@ -694,113 +755,119 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public Integer defineCustomer(String customerName) throws InvalidCustomerNameException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (customerName == null || customerName.isEmpty()) {
-            throw new InvalidCustomerNameException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (DataManager.getInstance().getCustomers().stream().anyMatch(c -> c.getCustomerName().equals(customerName))) {
-            return -1;
-        }
+            if (customerName == null || customerName.isEmpty()) {
+                throw new InvalidCustomerNameException();
+            }
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getCustomers()
-            .stream()
-            .mapToInt(it.polito.ezshop.model.Customer::getId)
-            .max();
+            if (DataManager.getInstance().getCustomers().stream().anyMatch(c -> c.getCustomerName().equals(customerName))) {
+                return -1;
+            }
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        it.polito.ezshop.model.Customer newCustomer = new it.polito.ezshop.model.Customer(newId, customerName, null);
-        if (!DataManager.getInstance().insertCustomer(newCustomer)) {
-            return -1;
-        }
+            int newId = DataManager.getInstance().nextCustomerId();
+            it.polito.ezshop.model.Customer newCustomer = new it.polito.ezshop.model.Customer(newId, customerName, null);
+            if (!DataManager.getInstance().insertCustomer(newCustomer)) {
+                return -1;
+            }
 
-        return newId;
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean modifyCustomer(Integer id, String newCustomerName, String newCustomerCard) throws InvalidCustomerNameException, InvalidCustomerCardException, InvalidCustomerIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (id == null || id <= 0) {
-            throw new InvalidCustomerIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (newCustomerName == null || newCustomerName.isEmpty()) {
-            throw new InvalidCustomerNameException();
-        }
+            if (id == null || id <= 0) {
+                throw new InvalidCustomerIdException();
+            }
 
-        if (newCustomerCard != null && !newCustomerCard.isEmpty() && (newCustomerCard.length() != 10 || !newCustomerCard.chars().allMatch(ch -> ch >= '0' && ch <= '9'))) {  
-            throw new InvalidCustomerCardException();
-        }
+            if (newCustomerName == null || newCustomerName.isEmpty()) {
+                throw new InvalidCustomerNameException();
+            }
 
-        Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance()
-            .getCustomers()
-            .stream()
-            .filter(s -> s.getId() == id)
-            .findFirst();
-        
-        if (!customer.isPresent()) return false;
+            if (newCustomerCard != null && !newCustomerCard.isEmpty() && !Validators.isDigits(newCustomerCard, 10)) {
+                throw new InvalidCustomerCardException();
+            }
 
-        if (newCustomerCard !=null) {
-            if (newCustomerCard.isEmpty()) { 
+            Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance().findCustomerById(id);
 
-                LoyaltyCard card = customer.get().getLoyaltyCard();
+            if (!customer.isPresent()) return false;
 
-                customer.get().setCustomerCard("");
-                DataManager.getInstance().updateLoyaltyCard(card);
-            } else {
+            if (newCustomerCard !=null) {
+                if (newCustomerCard.isEmpty()) { 
 
-                Optional<LoyaltyCard> card = DataManager.getInstance()
-                    .getLoyaltyCards()
-                    .stream()
-                    .filter(c -> c.getID().equals(newCustomerCard))
-                    .findFirst();
-    
-                if (!card.isPresent() || card.get().getCustomer() != null) return false;
+                    LoyaltyCard card = customer.get().getLoyaltyCard();
 
-                customer.get().setCustomerCard(newCustomerCard);
-                DataManager.getInstance().updateLoyaltyCard(customer.get().getLoyaltyCard());
+                    customer.get().setCustomerCard("");
+                    DataManager.getInstance().updateLoyaltyCard(card);
+                } else {
+
+                    Optional<LoyaltyCard> card = DataManager.getInstance().findLoyaltyCardById(newCustomerCard);
+
+                    if (!card.isPresent() || card.get().getCustomer() != null) return false;
+
+                    customer.get().setCustomerCard(newCustomerCard);
+                    DataManager.getInstance().updateLoyaltyCard(customer.get().getLoyaltyCard());
+                }
             }
-        }
 
-        customer.get().setCustomerName(newCustomerName);
-        return DataManager.getInstance().updateCustomer(customer.get());
+            customer.get().setCustomerName(newCustomerName);
+            return DataManager.getInstance().updateCustomer(customer.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteCustomer(Integer id) throws InvalidCustomerIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (id == null || id <= 0) {
-            throw new InvalidCustomerIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance()
-            .getCustomers()
-            .stream()
-            .filter(s -> s.getId() == id)
-            .findFirst();
+            if (id == null || id <= 0) {
+                throw new InvalidCustomerIdException();
+            }
+
+            Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance().findCustomerById(id);
 
-        if (!(customer.isPresent())) return false;
+            if (!(customer.isPresent())) return false;
 
-        return DataManager.getInstance().deleteCustomer(customer.get());
+            return DataManager.getInstance().deleteCustomer(customer.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public Customer getCustomer(Integer id) throws InvalidCustomerIdException, UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageCustomers(session())) {
             throw new UnauthorizedException();
         }
 
@@ -808,11 +875,7 @@ public class EZShop implements EZShopInterface {
             throw new InvalidCustomerIdException();
         }
 
-        Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance()
-            .getCustomers()
-            .stream()
-            .filter(s -> s.getId() == id)
-            .findFirst();
+        Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance().findCustomerById(id);
 
         return customer.orElse(null);
     }
@@ -820,7 +883,7 @@ public class EZShop implements EZShopInterface {
     @Override
     public List<Customer> getAllCustomers() throws UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageCustomers(session())) {
             throw new UnauthorizedException();
         }
 
@@ -832,356 +895,368 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public String createCard() throws UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getLoyaltyCards()
-            .stream()
-            .mapToInt(c -> Integer.parseInt(c.getID()))
-            .max();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        String newIdAsStr = String.format("%010d", newId);
-        LoyaltyCard newCard = new LoyaltyCard(newIdAsStr, 0, null);
+            int newId = DataManager.getInstance().nextLoyaltyCardId();
+            String newIdAsStr = String.format("%010d", newId);
+            LoyaltyCard newCard = new LoyaltyCard(newIdAsStr, 0, null);
 
-        return DataManager.getInstance().insertLoyaltyCard(newCard) ? newIdAsStr : "";
+            return DataManager.getInstance().insertLoyaltyCard(newCard) ? newIdAsStr : "";
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean attachCardToCustomer(String customerCard, Integer customerId) throws InvalidCustomerIdException, InvalidCustomerCardException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (customerId == null || customerId <= 0) {
-            throw new InvalidCustomerIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (customerCard == null || customerCard.isEmpty() || customerCard.length() != 10 || !customerCard.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
-            throw new InvalidCustomerCardException();
-        }
+            if (customerId == null || customerId <= 0) {
+                throw new InvalidCustomerIdException();
+            }
 
-        Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance()
-            .getCustomers()
-            .stream()
-            .filter(s -> s.getId() == customerId)
-            .findFirst();
+            if (!Validators.isDigits(customerCard, 10)) {
+                throw new InvalidCustomerCardException();
+            }
 
-        Optional<LoyaltyCard> card = DataManager.getInstance()
-            .getLoyaltyCards()
-            .stream()
-            .filter(c -> c.getID().equals(customerCard))
-            .findFirst();
+            Optional<it.polito.ezshop.model.Customer> customer = DataManager.getInstance().findCustomerById(customerId);
 
-        if (!(customer.isPresent()) || !(card.isPresent()) || card.get().getCustomer() != null) {
-            return false;
-        }
+            Optional<LoyaltyCard> card = DataManager.getInstance().findLoyaltyCardById(customerCard);
 
-        customer.get().setCustomerCard(customerCard);
+            if (!(customer.isPresent()) || !(card.isPresent()) || card.get().getCustomer() != null) {
+                return false;
+            }
 
-        return DataManager.getInstance().updateLoyaltyCard(card.get()) && DataManager.getInstance().updateCustomer(customer.get());
+            customer.get().setCustomerCard(customerCard);
+
+            return DataManager.getInstance().updateLoyaltyCard(card.get()) && DataManager.getInstance().updateCustomer(customer.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean modifyPointsOnCard(String customerCard, int pointsToBeAdded) throws InvalidCustomerCardException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageCustomers(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
- 
-        if (customerCard == null || customerCard.isEmpty() || customerCard.length() != 10) {
-            throw new InvalidCustomerCardException();
-        } else if (!customerCard.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
-            throw new InvalidCustomerCardException();
-        }
 
-        Optional<LoyaltyCard> card = DataManager.getInstance()
-            .getLoyaltyCards()
-            .stream()
-            .filter(c -> c.getID().equals(customerCard))
-            .findFirst();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageCustomers(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!card.isPresent() || (pointsToBeAdded < 0 && card.get().getPoints() < -pointsToBeAdded)) {
-            return false;
-        }
+            if (!Validators.isDigits(customerCard, 10)) {
+                throw new InvalidCustomerCardException();
+            }
+
+            Optional<LoyaltyCard> card = DataManager.getInstance().findLoyaltyCardById(customerCard);
+
+            if (!card.isPresent() || (pointsToBeAdded < 0 && card.get().getPoints() < -pointsToBeAdded)) {
+                return false;
+            }
 
-        card.get().addPoints(pointsToBeAdded);
-        return DataManager.getInstance().updateLoyaltyCard(card.get());
+            card.get().addPoints(pointsToBeAdded);
+            return DataManager.getInstance().updateLoyaltyCard(card.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public Integer startSaleTransaction() throws UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .mapToInt(Sale::getTicketNumber)
-            .max();
+        // Edits of open sales and returns do not wait for the disk: losing the
+        // last ones in a crash only reopens an earlier cart, and open sales
+        // are dropped at restart anyway
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        Sale newSale = new Sale(newId, 0.0, null);
+            int newId = DataManager.getInstance().nextSaleId();
+            Sale newSale = new Sale(newId, 0.0, null);
 
-        DataManager.getInstance().insertSale(newSale);
-        return newId;
+            DataManager.getInstance().insertSale(newSale);
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean addProductToSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (amount < 0) {
-            throw new InvalidQuantityException();
-        }
+            if (!isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getBarCode().equals(productCode))
-            .findFirst();
+            if (amount < 0) {
+                throw new InvalidQuantityException();
+            }
 
-        if (!(prod.isPresent()) || prod.get().getQuantity() < amount) return false;
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (!(prod.isPresent()) || prod.get().getQuantity() < amount) return false;
 
-        if (!sale.isPresent() || sale.get().isCommitted()) {
-            return false;
-        }
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
-        sale.get().addProduct(prod.get(), amount);
-        prod.get().addQuantityOffset(-amount);
+            if (!sale.isPresent() || sale.get().isCommitted()) {
+                return false;
+            }
+
+            sale.get().addProduct(prod.get(), amount);
+            prod.get().addQuantityOffset(-amount);
 
-        return DataManager.getInstance().updateSale(sale.get()) && DataManager.getInstance().updateProductType(prod.get());
+            return DataManager.getInstance().updateSale(sale.get()) && DataManager.getInstance().updateProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean addProductToSaleRFID(Integer transactionId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, InvalidQuantityException, UnauthorizedException{
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!isValidRFID(RFID)) {
-            throw new InvalidRFIDException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        Optional<Product> prod = DataManager.getInstance()
-            .getProducts()
-            .stream()
-            .filter(p -> p.getRFID().equals(RFID))
-            .findFirst();
+            if (!isValidRFID(RFID)) {
+                throw new InvalidRFIDException();
+            }
 
-        if (!prod.isPresent() || !prod.get().isAvailable()) return false;
+            Optional<Product> prod = DataManager.getInstance().findProductByRFID(RFID);
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (!prod.isPresent() || !prod.get().isAvailable()) return false;
 
-        if (!sale.isPresent() || sale.get().isCommitted()) return false;
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
-        sale.get().addProductRFID(prod.get());
-        prod.get().setAvailable(false);
-        prod.get().getRelativeProductType().addQuantityOffset(-1);
-        
-        DataManager.getInstance().updateProductType(prod.get().getRelativeProductType());
-        DataManager.getInstance().updateProduct(prod.get());
-        DataManager.getInstance().updateSale(sale.get());
+            if (!sale.isPresent() || sale.get().isCommitted()) return false;
+
+            sale.get().addProductRFID(prod.get());
+            prod.get().setAvailable(false);
+            prod.get().getRelativeProductType().addQuantityOffset(-1);
 
-        return true;
+            DataManager.getInstance().updateProductType(prod.get().getRelativeProductType());
+            DataManager.getInstance().updateProduct(prod.get());
+            DataManager.getInstance().updateSale(sale.get());
+
+            return true;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
     
     @Override
     public boolean deleteProductFromSale(Integer transactionId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (amount < 0) {
-            throw new InvalidQuantityException();
-        }
+            if (!isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getBarCode().equals(productCode))
-            .findFirst();
+            if (amount < 0) {
+                throw new InvalidQuantityException();
+            }
 
-        if (!(prod.isPresent())) return false;
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (!(prod.isPresent())) return false;
 
-        if (!sale.isPresent() || sale.get().isCommitted()) {
-            return false;
-        }
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
+
+            if (!sale.isPresent() || sale.get().isCommitted()) {
+                return false;
+            }
 
-        sale.get().addProduct(prod.get(), -amount);
-        prod.get().addQuantityOffset(amount);
+            sale.get().addProduct(prod.get(), -amount);
+            prod.get().addQuantityOffset(amount);
 
-        return DataManager.getInstance().updateSale(sale.get()) && DataManager.getInstance().updateProductType(prod.get());
+            return DataManager.getInstance().updateSale(sale.get()) && DataManager.getInstance().updateProductType(prod.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteProductFromSaleRFID(Integer transactionId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, InvalidQuantityException, UnauthorizedException{
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!isValidRFID(RFID)) {
-            throw new InvalidRFIDException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        Optional<Product> prod = DataManager.getInstance()
-            .getProducts()
-            .stream()
-            .filter(p -> p.getRFID().equals(RFID))
-            .findFirst();
+            if (!isValidRFID(RFID)) {
+                throw new InvalidRFIDException();
+            }
 
-        if (!prod.isPresent() || prod.get().isAvailable()) return false;
+            Optional<Product> prod = DataManager.getInstance().findProductByRFID(RFID);
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (!prod.isPresent() || prod.get().isAvailable()) return false;
 
-        if (!sale.isPresent() || sale.get().isCommitted() || !sale.get().getProducRFIDs().contains(prod.get())) {
-            return false;
-        }
-        
-        sale.get().deleteProductRFID(prod.get());
-        prod.get().setAvailable(true);
-        prod.get().getRelativeProductType().addQuantityOffset(+1);
-        
-        DataManager.getInstance().updateProductType(prod.get().getRelativeProductType());
-        DataManager.getInstance().updateProduct(prod.get());
-        DataManager.getInstance().updateSale(sale.get());
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
+
+            if (!sale.isPresent() || sale.get().isCommitted() || !sale.get().containsProductRFID(prod.get())) {
+                return false;
+            }
+
+            sale.get().deleteProductRFID(prod.get());
+            prod.get().setAvailable(true);
+            prod.get().getRelativeProductType().addQuantityOffset(+1);
 
-        return true;
+            DataManager.getInstance().updateProductType(prod.get().getRelativeProductType());
+            DataManager.getInstance().updateProduct(prod.get());
+            DataManager.getInstance().updateSale(sale.get());
+
+            return true;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean applyDiscountRateToProduct(Integer transactionId, String productCode, double discountRate) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidDiscountRateException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (discountRate < 0.0 || discountRate >= 1.0) {
-            throw new InvalidDiscountRateException();
-        }
+            if (!isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
 
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getBarCode().equals(productCode))
-            .findFirst();
+            if (discountRate < 0.0 || discountRate >= 1.0) {
+                throw new InvalidDiscountRateException();
+            }
 
-        if (!(prod.isPresent())) return false;
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (!(prod.isPresent())) return false;
 
-        if (!sale.isPresent() || sale.get().isCommitted() || !sale.get().getProductsList().contains(prod.get()) ) {
-            return false;
-        }
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
+
+            if (!sale.isPresent() || sale.get().isCommitted() || !sale.get().getProductsList().contains(prod.get()) ) {
+                return false;
+            }
 
-        sale.get().applyDiscountRateToProductGroup(prod.get(), discountRate);
+            sale.get().applyDiscountRateToProductGroup(prod.get(), discountRate);
 
-        return DataManager.getInstance().updateSale(sale.get());
+            return DataManager.getInstance().updateSale(sale.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean applyDiscountRateToSale(Integer transactionId, double discountRate) throws InvalidTransactionIdException, InvalidDiscountRateException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (discountRate < 0.0 || discountRate >= 1.0) {
-            throw new InvalidDiscountRateException();
-        }
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (discountRate < 0.0 || discountRate >= 1.0) {
+                throw new InvalidDiscountRateException();
+            }
 
-        if (!sale.isPresent() || sale.get().isCommitted()) {
-            return false;
-        }
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
-        sale.get().setDiscountRate(discountRate);
+            if (!sale.isPresent() || sale.get().isCommitted()) {
+                return false;
+            }
 
-        return DataManager.getInstance().updateSale(sale.get());
+            sale.get().setDiscountRate(discountRate);
 
+            return DataManager.getInstance().updateSale(sale.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public int computePointsForSale(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
             throw new UnauthorizedException();
         }
 
@@ -1189,11 +1264,7 @@ public class EZShop implements EZShopInterface {
             throw new InvalidTransactionIdException();
         }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+        Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
         if (!sale.isPresent()) return -1;
 
@@ -1202,78 +1273,79 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public boolean endSaleTransaction(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .findFirst();
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (!sale.isPresent() || sale.get().isCommitted()) return false;
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
-        sale.get().setAsCommitted();
-        return DataManager.getInstance().updateSale(sale.get());
+            if (!sale.isPresent() || sale.get().isCommitted()) return false;
+
+            sale.get().setAsCommitted();
+            return DataManager.getInstance().updateSale(sale.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteSaleTransaction(Integer saleNumber) throws InvalidTransactionIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (saleNumber == null || saleNumber <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == saleNumber)
-            .findFirst();
+            if (saleNumber == null || saleNumber <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (!sale.isPresent()) return false;
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(saleNumber);
 
-        boolean isPaid = DataManager.getInstance()
-            .getBalanceTransactions()
-            .stream()
-            .filter(bt -> bt instanceof CreditTransaction)
-            .map(bt -> (CreditTransaction)bt)
-            .filter(ct -> ct.getRelatedCreditOperation() instanceof it.polito.ezshop.model.Sale)
-            .filter(ct -> ((it.polito.ezshop.model.Sale)ct.getRelatedCreditOperation()).equals(sale.get()))
-            .count() == 1;
+            if (!sale.isPresent()) return false;
 
-        if (isPaid) return false;
+            boolean isPaid = DataManager.getInstance().findPaymentBySale(sale.get()).isPresent();
 
-        for (it.polito.ezshop.data.ProductType prod : sale.get().getProductsList()) {
-            it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
+            if (isPaid) return false;
 
-            xProd.addQuantityOffset(sale.get().getQuantityByProduct(xProd));
-            DataManager.getInstance().updateProductType(xProd);
-        }
+            for (it.polito.ezshop.data.ProductType prod : sale.get().getProductsList()) {
+                it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
 
-        for (Product prod : sale.get().getProducRFIDs()) {
-            prod.getRelativeProductType().addQuantityOffset(1);
-            prod.setAvailable(true);
+                xProd.addQuantityOffset(sale.get().getQuantityByProduct(xProd));
+                DataManager.getInstance().updateProductType(xProd);
+            }
 
-            DataManager.getInstance().updateProduct(prod);
-        }
+            for (Product prod : sale.get().getProducRFIDs()) {
+                prod.getRelativeProductType().addQuantityOffset(1);
+                prod.setAvailable(true);
 
-        return DataManager.getInstance().deleteSale(sale.get());
+                DataManager.getInstance().updateProduct(prod);
+            }
+
+            return DataManager.getInstance().deleteSale(sale.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public SaleTransaction getSaleTransaction(Integer transactionId) throws InvalidTransactionIdException, UnauthorizedException {
         
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
             throw new UnauthorizedException();
         }
 
@@ -1281,151 +1353,137 @@ public class EZShop implements EZShopInterface {
             throw new InvalidTransactionIdException();
         }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(s -> s.getTicketNumber() == transactionId)
-            .filter(s -> s.isCommitted())
-            .findFirst();
+        Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId).filter(Sale::isCommitted);
 
         return sale.orElse(null);
     }
 
     @Override
     public Integer startReturnTransaction(Integer transactionId) throws /*InvalidTicketNumberException,*/InvalidTransactionIdException, UnauthorizedException {
-    	 
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (transactionId == null || transactionId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
-        
-        Optional<Sale> sale = DataManager.getInstance()
-                .getSales()
-                .stream()
-                .filter(s -> s.getTicketNumber().equals(transactionId))
-                .findFirst();
-        
-        if (!sale.isPresent() || !sale.get().isCommitted()) return -1;
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        boolean isPaid = DataManager.getInstance()
-            .getBalanceTransactions()
-            .stream()
-            .filter(bt -> bt instanceof CreditTransaction)
-            .map(bt -> (CreditTransaction)bt)
-            .filter(ct -> ct.getRelatedCreditOperation() instanceof it.polito.ezshop.model.Sale)
-            .filter(ct -> ((it.polito.ezshop.model.Sale)ct.getRelatedCreditOperation()).equals(sale.get()))
-            .count() == 1;
+            if (transactionId == null || transactionId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        if (!isPaid) return -1;
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(transactionId);
 
-        OptionalInt maxId = DataManager.getInstance()
-            .getReturns()
-            .stream()
-            .mapToInt(CReturn::getReturnId)
-            .max();
+            if (!sale.isPresent() || !sale.get().isCommitted()) return -1;
 
-        int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-        CReturn newCReturn = new CReturn(newId, sale.get());
-        DataManager.getInstance().insertReturn(newCReturn);
-            
-        return newId;
+            boolean isPaid = DataManager.getInstance().findPaymentBySale(sale.get()).isPresent();
+
+            if (!isPaid) return -1;
+
+            int newId = DataManager.getInstance().nextReturnId();
+            CReturn newCReturn = new CReturn(newId, sale.get());
+            DataManager.getInstance().insertReturn(newCReturn);
+
+            return newId;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
 
     @Override
     public boolean returnProduct(Integer returnId, String productCode, int amount) throws InvalidTransactionIdException, InvalidProductCodeException, InvalidQuantityException, UnauthorizedException {
 
-    	if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
-    	
-        if (returnId == null || returnId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
-    	
-        if (!isValidBarcode(productCode)) {
-            throw new InvalidProductCodeException();
-        }
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+        	if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (amount <= 0) {
-            throw new InvalidQuantityException();
-        }
-    	 
-    	 
-        Optional<CReturn> Creturn = DataManager.getInstance()
-            .getReturns()
-            .stream()
-            .filter(r -> r.getReturnId() == returnId)
-            .findFirst();    
-                
-        Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .filter(p -> p.getBarCode().equals(productCode))
-            .findFirst();
-                
-                
-        if (!Creturn.isPresent() || !prod.isPresent()) return false;
-        
+            if (returnId == null || returnId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
+
+            if (!isValidBarcode(productCode)) {
+                throw new InvalidProductCodeException();
+            }
+
+            if (amount <= 0) {
+                throw new InvalidQuantityException();
+            }
 
-        Sale sale = Creturn.get().getSaleTransaction();
-        if (!sale.getProductsList().contains(prod.get())) return false;
-        if (sale.getQuantityByProduct(prod.get()) - Creturn.get().getQuantityByProduct(prod.get()) < amount) return false;
 
-    	Creturn.get().addProduct(prod.get(), amount);
-    	
-        return DataManager.getInstance().updateReturn(Creturn.get());
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);    
+
+            Optional<it.polito.ezshop.model.ProductType> prod = DataManager.getInstance().findProductTypeByBarCode(productCode);
+
+
+            if (!Creturn.isPresent() || !prod.isPresent()) return false;
+
+
+            Sale sale = Creturn.get().getSaleTransaction();
+            if (!sale.getProductsList().contains(prod.get())) return false;
+            if (sale.getQuantityByProduct(prod.get()) - Creturn.get().getQuantityByProduct(prod.get()) < amount) return false;
+
+        	Creturn.get().addProduct(prod.get(), amount);
+
+            return DataManager.getInstance().updateReturn(Creturn.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean returnProductRFID(Integer returnId, String RFID) throws InvalidTransactionIdException, InvalidRFIDException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (returnId == null || returnId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
-    	
-        if (!isValidRFID(RFID)) {
-            throw new InvalidRFIDException();
-        }
-        
-        Optional<Product> prod = DataManager.getInstance()
-            .getProducts()
-            .stream()
-            .filter(p -> p.getRFID().equals(RFID))
-            .findFirst();
+        DataManager.getInstance().beginTransaction(ChangeLog.Durability.ASYNC);
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!prod.isPresent() || prod.get().isAvailable()) return false;
-        
-        // boolean prodAlreadyReturned = DataManager.getInstance()
-        //     .getReturns()
-        //     .stream()
-        //     .filter(ret -> ret.isCommitted())
-        //     .anyMatch(ret -> ret.getProducRFIDs().contains(prod.get()));
+            if (returnId == null || returnId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        // if (prodAlreadyReturned) return false;
+            if (!isValidRFID(RFID)) {
+                throw new InvalidRFIDException();
+            }
 
-        Optional<CReturn> ret = DataManager.getInstance()
-            .getReturns()
-            .stream()
-            .filter(r -> r.getReturnId() == returnId)
-            .findFirst();
+            Optional<Product> prod = DataManager.getInstance().findProductByRFID(RFID);
 
-        if (!ret.isPresent() || ret.get().isCommitted() || ret.get().getProducRFIDs().contains(prod.get())) {
-            return false;
-        } else if (!ret.get().getSaleTransaction().getProducRFIDs().contains(prod.get())) {
-            return false;
-        }
+            if (!prod.isPresent() || prod.get().isAvailable()) return false;
+
+            // boolean prodAlreadyReturned = DataManager.getInstance()
+            //     .getReturns()
+            //     .stream()
+            //     .filter(ret -> ret.isCommitted())
+            //     .anyMatch(ret -> ret.getProducRFIDs().contains(prod.get()));
 
-        ret.get().addProductRFID(prod.get());
+            // if (prodAlreadyReturned) return false;
+
+            Optional<CReturn> ret = DataManager.getInstance().findReturnById(returnId);
+
+            if (!ret.isPresent() || ret.get().isCommitted() || ret.get().containsProductRFID(prod.get())) {
+                return false;
+            } else if (!ret.get().getSaleTransaction().containsProductRFID(prod.get())) {
+                return false;
+            }
 
-        return DataManager.getInstance().updateReturn(ret.get());
+            ret.get().addProductRFID(prod.get());
+
+            return DataManager.getInstance().updateReturn(ret.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
 
@@ -1437,137 +1495,156 @@ public class EZShop implements EZShopInterface {
 
     @Override
     public boolean endReturnTransaction(Integer returnId, boolean commit) throws InvalidTransactionIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (returnId == null || returnId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
+
+            if (returnId == null || returnId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
+
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);
 
-        Optional<CReturn> Creturn = DataManager.getInstance()
-                .getReturns()
-                .stream()
-                .filter(r -> r.getReturnId() == returnId)
-                .findFirst();
-    	 
-
-        if (!Creturn.isPresent() || Creturn.get().isCommitted()) return false;
-
-        if (commit) {
-
-            boolean cannotBeCommitted = Creturn.get()
-                .getProductsList()
-                .stream()
-                .anyMatch(prod -> Creturn.get().getSaleTransaction().getQuantityByProduct(prod) - Creturn.get().getSaleTransaction().getReturnedQuantityByProduct((it.polito.ezshop.model.ProductType)prod) < Creturn.get().getQuantityByProduct(prod));
-
-            cannotBeCommitted |= Creturn.get()
-                .getProducRFIDs()
-                .stream()
-                .anyMatch(p -> !Creturn.get().getSaleTransaction().isProductRFIDReturned(p));
-
-            if (cannotBeCommitted) return false;
-            
-            Creturn.get()
-                .getProductsList()
-                .forEach(p -> {
-                    it.polito.ezshop.model.ProductType rightP = (it.polito.ezshop.model.ProductType)p;
-                    
-                    rightP.addQuantityOffset(Creturn.get().getQuantityByProduct(rightP));
-                    DataManager.getInstance().updateProductType(rightP);
-                });
-            
-            // Sale1 ..
-            // Ret1, not committed, latte1, latte2, latte3
-            // Ret2, not committed, latte 2
-
-            //Ret2.commit()
-            //Sale2.sell(latte2)
-            //Ret1.commit() -> latte1, latte3
-
-            Creturn.get()
-                .getProducRFIDs()
-                .stream()
-                //.filter(p -> !Creturn.get().getSaleTransaction().isProductRFIDReturned(p))
-                .forEach(p -> {
-                    p.setAvailable(true);
-                    p.getRelativeProductType().addQuantityOffset(1);
-                    DataManager.getInstance().updateProduct(p);
-                });
-
-        } else {
-            return DataManager.getInstance().deleteReturn(Creturn.get());
-        }
 
-        Creturn.get().setAsCommitted();
-        return DataManager.getInstance().updateReturn(Creturn.get());
+            if (!Creturn.isPresent() || Creturn.get().isCommitted()) return false;
+
+            if (commit) {
+
+                boolean cannotBeCommitted = Creturn.get()
+                    .getProductsList()
+                    .stream()
+                    .anyMatch(prod -> Creturn.get().getSaleTransaction().getQuantityByProduct(prod) - Creturn.get().getSaleTransaction().getReturnedQuantityByProduct((it.polito.ezshop.model.ProductType)prod) < Creturn.get().getQuantityByProduct(prod));
+
+                cannotBeCommitted |= Creturn.get()
+                    .getProducRFIDs()
+                    .stream()
+                    .anyMatch(p -> !Creturn.get().getSaleTransaction().isProductRFIDReturned(p));
+
+                if (cannotBeCommitted) return false;
+
+                Creturn.get()
+                    .getProductsList()
+                    .forEach(p -> {
+                        it.polito.ezshop.model.ProductType rightP = (it.polito.ezshop.model.ProductType)p;
+
+                        rightP.addQuantityOffset(Creturn.get().getQuantityByProduct(rightP));
+                        DataManager.getInstance().updateProductType(rightP);
+                    });
+
+                // Sale1 ..
+                // Ret1, not committed, latte1, latte2, latte3
+                // Ret2, not committed, latte 2
+
+                //Ret2.commit()
+                //Sale2.sell(latte2)
+                //Ret1.commit() -> latte1, latte3
+
+                Creturn.get()
+                    .getProducRFIDs()
+                    .stream()
+                    //.filter(p -> !Creturn.get().getSaleTransaction().isProductRFIDReturned(p))
+                    .forEach(p -> {
+                        p.setAvailable(true);
+                        p.getRelativeProductType().addQuantityOffset(1);
+                        DataManager.getInstance().updateProduct(p);
+                    });
+
+            } else {
+                return DataManager.getInstance().deleteReturn(Creturn.get());
+            }
+
+            Creturn.get().setAsCommitted();
+            return DataManager.getInstance().updateReturn(Creturn.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean deleteReturnTransaction(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
-     
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (returnId == null || returnId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
-        
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
+
+            if (returnId == null || returnId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
+
+
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);
 
-        Optional<CReturn> Creturn = DataManager.getInstance()
-                .getReturns()
-                .stream()
-                .filter(r -> r.getReturnId() == returnId)
- 	            .findFirst();
-        
 
-        if (!Creturn.isPresent() || Creturn.get().isCommitted()) return false;
- 
-        return DataManager.getInstance().deleteReturn(Creturn.get());
+            if (!Creturn.isPresent() || Creturn.get().isCommitted()) return false;
+
+            return DataManager.getInstance().deleteReturn(Creturn.get());
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
     
     @Override
     public double receiveCashPayment(Integer ticketNumber, double cash) throws InvalidTransactionIdException, InvalidPaymentException, UnauthorizedException {
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (ticketNumber == null || ticketNumber <= 0) {
-            throw new InvalidTransactionIdException();
-        }
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (cash <= 0) {
-            throw new InvalidPaymentException();
-        }
+            if (ticketNumber == null || ticketNumber <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        Optional<Sale> sale = DataManager.getInstance()
-            .getSales()
-            .stream()
-            .filter(r -> r.getTicketNumber() == ticketNumber)
-            .findFirst();
+            if (cash <= 0) {
+                throw new InvalidPaymentException();
+            }
 
-        if(!sale.isPresent() || !sale.get().isCommitted()) return -1;
-        if(sale.get().getTotalValue() > cash) return -1;
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(ticketNumber);
 
-        OptionalInt maxBalId = DataManager.getInstance()
-            .getBalanceTransactions()
-            .stream()
-            .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-            .max();
-        
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
-        
-        BalanceTransaction bt = new CreditTransaction(newBalId, sale.get());
-        if(!DataManager.getInstance().insertBalanceTransaction(bt)) return -1;
+            if(!sale.isPresent() || !sale.get().isCommitted()) return -1;
+            if(DataManager.getInstance().findPaymentBySale(sale.get()).isPresent()) return -1;
+            if(sale.get().getTotalValue() > cash) return -1;
+
+            int newBalId = DataManager.getInstance().nextBalanceTransactionId();
+
+            BalanceTransaction bt = new CreditTransaction(newBalId, sale.get());
+            if(!DataManager.getInstance().insertBalanceTransaction(bt)) return -1;
+
+            sale.get().setPayment(newBalId, Sale.PaymentMethod.CASH);
+            DataManager.getInstance().updateSale(sale.get());
 
-        return cash - sale.get().getTotalValue();
+            return cash - sale.get().getTotalValue();
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public boolean receiveCreditCardPayment(Integer ticketNumber, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
+        return receiveCreditCardPaymentAsync(ticketNumber, creditCard).join();
+    }
+
+    // As receiveCreditCardPayment, but returns once the gateway is asked so the
+    // till can go on with the next customer. The store is not locked while the
+    // gateway answers: the sale is recorded as paid after the card is charged.
+    public CompletableFuture<Boolean> receiveCreditCardPaymentAsync(Integer ticketNumber, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
+
+        if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
             throw new UnauthorizedException();
         }
 
@@ -1579,74 +1656,121 @@ public class EZShop implements EZShopInterface {
             throw new InvalidCreditCardException();
         }
 
-        Optional<Sale> sale = DataManager.getInstance()
-                                .getSales()
-                                .stream()
-                                .filter(r -> r.getTicketNumber() == ticketNumber)
-                                .findFirst();
+        Optional<Sale> sale = DataManager.getInstance().findSaleById(ticketNumber);
+
+        if(!sale.isPresent() || !sale.get().isCommitted()) return CompletableFuture.completedFuture(false);
+        if(DataManager.getInstance().findPaymentBySale(sale.get()).isPresent()) return CompletableFuture.completedFuture(false);
+
+        double amount = sale.get().getTotalValue();
+
+        return gateway.authorize(paymentKey(ticketNumber), creditCard, amount)
+            .thenCompose(authorization -> authorization == null ? CompletableFuture.completedFuture(false) : gateway.capture(authorization)
+                .handle((captured, e) -> {
+                    if (e == null && captured) return true;
+
+                    gateway.release(authorization);
+                    return false;
+                }))
+            .thenCompose(charged -> charged ? recordCreditCardPayment(ticketNumber, creditCard, amount) : CompletableFuture.completedFuture(false))
+            // No answer from the gateway: not charged
+            .exceptionally(e -> false);
+    }
+
+    // The key of the card payment of a sale: paid again, e.g. because it was not
+    // recorded before a crash, it is not charged twice
+    private static String paymentKey(Integer ticketNumber) {
+        return "sale-" + ticketNumber;
+    }
+
+    // Records the sale as paid with the 'amount' charged on the card. If it
+    // cannot be, e.g. another till has been paid for it meanwhile, the charge
+    // is cancelled: the card gets the money back, and paid again the sale is
+    // charged again. Not if the sale is paid by card already: a key stands for
+    // one charge, so that is the one the payment recorded stands on.
+    private CompletableFuture<Boolean> recordCreditCardPayment(Integer ticketNumber, String creditCard, double amount) {
+
+        boolean paidByCard = false;
+
+        DataManager.getInstance().beginTransaction();
+        try {
+            Optional<Sale> sale = DataManager.getInstance().findSaleById(ticketNumber);
+            boolean paid = sale.isPresent() && DataManager.getInstance().findPaymentBySale(sale.get()).isPresent();
+            paidByCard = paid && sale.get().getPaymentMethod() == Sale.PaymentMethod.CREDIT_CARD;
 
-        if(!sale.isPresent() || !sale.get().isCommitted()) return false;
+            if (sale.isPresent() && sale.get().isCommitted() && sale.get().getTotalValue() == amount && !paid) {
 
-        if(!CreditCardSystem.getInstance().isRegistered(creditCard)) return false;
-        if(!CreditCardSystem.getInstance().hasEnoughBalance(creditCard, sale.get().getTotalValue())) return false;
+                int newBalId = DataManager.getInstance().nextBalanceTransactionId();
 
-        OptionalInt maxBalId = DataManager.getInstance()
-                 .getBalanceTransactions()
-                 .stream()
-                 .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-                 .max();
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
+                BalanceTransaction bt = new CreditTransaction(newBalId, sale.get());
 
-        BalanceTransaction bt = new CreditTransaction(newBalId, sale.get());
-         
-        if(!DataManager.getInstance().insertBalanceTransaction(bt)) return false;
-         
-        CreditCardSystem.getInstance().updateBalance(creditCard, sale.get().getTotalValue());
+                if (DataManager.getInstance().insertBalanceTransaction(bt)) {
+                    sale.get().setPayment(newBalId, Sale.PaymentMethod.CREDIT_CARD);
+                    DataManager.getInstance().updateSale(sale.get());
+                    return CompletableFuture.completedFuture(true);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Not recorded either
+            DataManager.getInstance().rollback();
+        } finally {
+            DataManager.getInstance().commit();
+        }
 
-        return true;
+        if (paidByCard) return CompletableFuture.completedFuture(false);
+
+        return gateway.cancel(paymentKey(ticketNumber), creditCard, amount).handle((cancelled, e) -> false);
     }
 
     @Override
     public double returnCashPayment(Integer returnId) throws InvalidTransactionIdException, UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        if (returnId == null || returnId <= 0) {
-            throw new InvalidTransactionIdException();
-        }
-        
-        Optional<CReturn> Creturn = DataManager.getInstance()
-                .getReturns()
-                .stream()
-                .filter(r -> r.getReturnId() == returnId)
-                .findFirst();
-        
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (!Creturn.isPresent() || !Creturn.get().isCommitted()) return -1;
-        
-        OptionalInt maxBalId = DataManager.getInstance()
-                .getBalanceTransactions()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-                .max();
+            if (returnId == null || returnId <= 0) {
+                throw new InvalidTransactionIdException();
+            }
 
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);
 
-        Creturn.get().setBalanceId(newBalId);
-        DataManager.getInstance().updateReturn(Creturn.get());
-    
-        BalanceTransaction bt = new DebitTransaction(newBalId,Creturn.get());
-        DataManager.getInstance().insertBalanceTransaction(bt);
-        	  
-    	return Creturn.get().getTotalValue();
+
+            if (!Creturn.isPresent() || !Creturn.get().isCommitted()) return -1;
+            // Paid back already
+            if (DataManager.getInstance().findRefundByReturn(Creturn.get()).isPresent()) return -1;
+
+            int newBalId = DataManager.getInstance().nextBalanceTransactionId();
+
+            Creturn.get().setBalanceId(newBalId);
+            DataManager.getInstance().updateReturn(Creturn.get());
+
+            BalanceTransaction bt = new DebitTransaction(newBalId,Creturn.get());
+            if(!DataManager.getInstance().insertBalanceTransaction(bt)) {
+                DataManager.getInstance().rollback();
+                return -1;
+            }
+
+        	return Creturn.get().getTotalValue();
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public double returnCreditCardPayment(Integer returnId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
-    	 
-        if (!RightsManager.getInstance().canManageSaleTransactions(LoginManager.getInstance().getLoggedUser())) {
+        return returnCreditCardPaymentAsync(returnId, creditCard).join();
+    }
+
+    // As returnCreditCardPayment, but returns once the gateway is asked. The
+    // refund is recorded first and undone again if the gateway does not make it.
+    public CompletableFuture<Double> returnCreditCardPaymentAsync(Integer returnId, String creditCard) throws InvalidTransactionIdException, InvalidCreditCardException, UnauthorizedException {
+
+        if (!RightsManager.getInstance().canManageSaleTransactions(session())) {
             throw new UnauthorizedException();
         }
 
@@ -1658,158 +1782,176 @@ public class EZShop implements EZShopInterface {
             throw new InvalidCreditCardException();
         }
 
-        if (!CreditCardSystem.getInstance().isRegistered(creditCard)) return -1;
-        
-        Optional<CReturn> Creturn = DataManager.getInstance()
-                .getReturns()
-                .stream()
-                .filter(r -> r.getReturnId() == returnId)
-                .findFirst();
-        
+        BalanceTransaction bt;
+        Integer previousBalId;
+        double amount;
 
-        if (!Creturn.isPresent() || !Creturn.get().isCommitted()) return -1;
+        DataManager.getInstance().beginTransaction();
+        try {
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);
 
-    
-        OptionalInt maxBalId = DataManager.getInstance()
-                .getBalanceTransactions()
-                .stream()
-                .mapToInt(it.polito.ezshop.model.BalanceTransaction::getBalanceId)
-                .max();
-        int newBalId = !maxBalId.isPresent() ? 1 : (maxBalId.getAsInt() + 1);
-        
-        Creturn.get().setBalanceId(newBalId);
-    
-        BalanceTransaction bt = new DebitTransaction(newBalId,Creturn.get());
-        
-        if(!DataManager.getInstance().insertBalanceTransaction(bt)) return -1;
-        
-        if(!CreditCardSystem.getInstance().updateBalance(creditCard, -Creturn.get().getTotalValue())) return -1;
-        
-        return Creturn.get().getTotalValue();
+
+            if (!Creturn.isPresent() || !Creturn.get().isCommitted()) return CompletableFuture.completedFuture(-1.0);
+            // Paid back already, or being paid back
+            if (DataManager.getInstance().findRefundByReturn(Creturn.get()).isPresent()) return CompletableFuture.completedFuture(-1.0);
+
+
+            int newBalId = DataManager.getInstance().nextBalanceTransactionId();
+
+            previousBalId = Creturn.get().getBalanceId();
+            Creturn.get().setBalanceId(newBalId);
+
+            bt = new DebitTransaction(newBalId,Creturn.get());
+            amount = Creturn.get().getTotalValue();
+
+            if(!DataManager.getInstance().insertBalanceTransaction(bt)) {
+                DataManager.getInstance().rollback();
+                return CompletableFuture.completedFuture(-1.0);
+            }
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
+
+        return gateway.refund("return-" + returnId, creditCard, amount)
+            .handle((refunded, e) -> {
+                if (e == null && refunded) return amount;
+
+                undoReturnPayment(returnId, bt, previousBalId);
+                return -1.0;
+            });
+    }
+
+    // Drops the refund 'bt' recorded for a return, and points the return back
+    // to the payment it had before unless it has been paid again meanwhile
+    private void undoReturnPayment(Integer returnId, BalanceTransaction bt, Integer previousBalId) {
+
+        DataManager.getInstance().beginTransaction();
+        try {
+            DataManager.getInstance().deleteBalanceTransaction(bt);
+
+            Optional<CReturn> Creturn = DataManager.getInstance().findReturnById(returnId);
+            if (Creturn.isPresent() && Integer.valueOf(bt.getBalanceId()).equals(Creturn.get().getBalanceId())) {
+                Creturn.get().setBalanceId(previousBalId);
+                DataManager.getInstance().updateReturn(Creturn.get());
+            }
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override 
     public boolean recordBalanceUpdate(double toBeAdded) throws UnauthorizedException {
-        
-        if (!RightsManager.getInstance().canManageBalanceTransactions(LoginManager.getInstance().getLoggedUser())) {
-            throw new UnauthorizedException();
-        }
 
-        double totalBalance = computeBalance();
+        DataManager.getInstance().beginTransaction();
+        try {
+            if (!RightsManager.getInstance().canManageBalanceTransactions(session())) {
+                throw new UnauthorizedException();
+            }
 
-        if (totalBalance + toBeAdded >= 0) {
+            double totalBalance = computeBalance();
 
-            OptionalInt maxId = DataManager.getInstance()
-                .getBalanceTransactions()
-                .stream()
-                .mapToInt(BalanceTransaction::getBalanceId)
-                .max();
+            if (totalBalance + toBeAdded >= 0) {
 
-            int id = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
-            BalanceTransaction bt = null;
+                int id = DataManager.getInstance().nextBalanceTransactionId();
+                BalanceTransaction bt = null;
 
-            if (toBeAdded >= 0) {
+                if (toBeAdded >= 0) {
 
-                maxId = DataManager.getInstance()
-                    .getDummyCredits()
-                    .stream()
-                    .mapToInt(DummyCredit::getId)
-                    .max();
-        
-                int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
+                    int newId = DataManager.getInstance().nextDummyCreditId();
 
-                DummyCredit dc = new DummyCredit(newId, toBeAdded);
-                CreditTransaction ct = new CreditTransaction(id, dc);
+                    DummyCredit dc = new DummyCredit(newId, toBeAdded);
+                    CreditTransaction ct = new CreditTransaction(id, dc);
 
-                bt = ct;
-                DataManager.getInstance().insertDummyCredit(dc);
-            } else {
+                    bt = ct;
+                    DataManager.getInstance().insertDummyCredit(dc);
+                } else {
 
-                maxId = DataManager.getInstance()
-                    .getDummyDebits()
-                    .stream()
-                    .mapToInt(DummyDebit::getId)
-                    .max();
-        
-                int newId = !maxId.isPresent() ? 1 : (maxId.getAsInt() + 1);
+                    int newId = DataManager.getInstance().nextDummyDebitId();
 
-                DummyDebit dd = new DummyDebit(newId, -toBeAdded);
-                DebitTransaction dt = new DebitTransaction(id, dd);
+                    DummyDebit dd = new DummyDebit(newId, -toBeAdded);
+                    DebitTransaction dt = new DebitTransaction(id, dd);
 
-                bt = dt;
-                DataManager.getInstance().insertDummyDebit(dd);
+                    bt = dt;
+                    DataManager.getInstance().insertDummyDebit(dd);
+                }
+
+                if (!DataManager.getInstance().insertBalanceTransaction(bt)) {
+                    DataManager.getInstance().rollback();
+                    return false;
+                }
+
+                return true;
             }
-            
-            return DataManager.getInstance().insertBalanceTransaction(bt);
-        }
 
-        return false;
+            return false;
+        } catch (RuntimeException e) {
+            DataManager.getInstance().rollback();
+            throw e;
+        } finally {
+            DataManager.getInstance().commit();
+        }
     }
 
     @Override
     public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to) throws UnauthorizedException {
 
-        if (!RightsManager.getInstance().canManageBalanceTransactions(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageBalanceTransactions(session())) {
             throw new UnauthorizedException();
         }
         
-        List<BalanceOperation> returnList = new ArrayList<BalanceOperation>();
-            
-        for (int i=0; i < DataManager.getInstance().getBalanceTransactions().size(); i++){
-            LocalDate date = DataManager.getInstance().getBalanceTransactions().get(i).getDate();
-            if ((from == null || !date.isBefore(from)) && (to == null || !date.isAfter(to))){
-                returnList.add(DataManager.getInstance().getBalanceTransactions().get(i));
-            }
+        return new ArrayList<BalanceOperation>(DataManager.getInstance().findBalanceTransactions(from, to));
+    }
+
+    // Like getCreditsAndDebits(), a page at a time: pass the last operation
+    // of a page (null for the first) to get the next one
+    public List<BalanceOperation> getCreditsAndDebits(LocalDate from, LocalDate to, BalanceOperation after, int limit) throws UnauthorizedException {
+
+        if (!RightsManager.getInstance().canManageBalanceTransactions(session())) {
+            throw new UnauthorizedException();
         }
 
-        return returnList;
+        return new ArrayList<BalanceOperation>(DataManager.getInstance().findBalanceTransactions(from, to, after, limit));
     }
 
     @Override
     public double computeBalance() throws UnauthorizedException {
 
-        if (!RightsManager.getInstance().canManageBalanceTransactions(LoginManager.getInstance().getLoggedUser())) {
+        if (!RightsManager.getInstance().canManageBalanceTransactions(session())) {
             throw new UnauthorizedException();
         }
 
-        double balance = 0;
-        
-        for(BalanceTransaction b : DataManager.getInstance().getBalanceTransactions()){
-            balance += (b instanceof CreditTransaction) ? b.getValue() : -b.getValue();
-        }
-
-        return getRightDoublePrecision(balance);
+        return getRightDoublePrecision(DataManager.getInstance().getBalance());
     }
 
     public static boolean isValidBarcode(String barcode) {
-
-        if (barcode == null || barcode.length() < 12 || barcode.length() > 14) return false;
-
-        if (!barcode.chars().allMatch(ch -> ch >= '0' && ch <= '9')) return false;
-
-
-        int sum = 0;
-        int mul_by = (barcode.length() % 2) == 0 ? 3 : 1;
-        for (int i = 0; i < barcode.length() - 1; i++) {
-            sum += Integer.valueOf(barcode.substring(i, i+1)) * mul_by;
-            mul_by ^= 0x2;
-        }
-
-        int compare_num = sum;
-        while (compare_num % 10 != 0) {
-            compare_num++;
-        }
-
-        return (int)(barcode.charAt(barcode.length() - 1) - '0') == (compare_num - sum);
+        return Validators.isValidGTIN(barcode);
     }
 
     public static boolean isValidRFID(String RFID) {
+        return parseRFID(RFID) >= 0;
+    }
 
-        if (RFID == null || RFID.isEmpty() || RFID.length() != 12) return false;
+    // Value of a 12-digit RFID, -1 if it is not one
+    public static long parseRFID(String RFID) {
+        return Validators.parseDigits(RFID, 12);
+    }
+
+    // 'value' as a 12-digit RFID, zero padded
+    public static String formatRFID(long value) {
 
-        if (!RFID.chars().allMatch(ch -> ch >= '0' && ch <= '9')) return false;
+        char[] digits = new char[12];
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
 
-        return true;
+        return new String(digits);
     }
 
     public static double getRightDoublePrecision(double value) {
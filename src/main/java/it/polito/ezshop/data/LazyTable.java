@@ -0,0 +1,138 @@
+package it.polito.ezshop.data;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// A table whose entities stay in the snapshot until one of them is needed.
+// The keys are known from the start, so lookups of missing keys, inserts of
+// new ones and counting do not decode anything. Like the other tables it can
+// be read from any thread and is changed under the store lock.
+class LazyTable<K, V> extends AbstractMap<K, V> {
+
+    interface Loader<K, V> {
+        void load(BiConsumer<K, V> into);
+    }
+
+    private final Map<K, V> entries;
+    private volatile Set<K> unloaded;
+    private Loader<K, V> loader;
+    // While loading: by this thread, and how many of the keys in the
+    // snapshot are in 'entries' already
+    private boolean loading;
+    private int decoded;
+
+    LazyTable(Map<K, V> resident, Set<K> keys, Loader<K, V> loader) {
+        this.entries = new ConcurrentHashMap<>(resident);
+        this.unloaded = keys.isEmpty() ? null : keys;
+        this.loader = loader;
+    }
+
+    // The entities available without decoding the snapshot
+    Collection<V> resident() {
+        return entries.values();
+    }
+
+    private boolean inSnapshot(Object key) {
+
+        Set<K> keys = unloaded;
+        return keys != null && keys.contains(key);
+    }
+
+    private synchronized void load() {
+
+        // Done, or being done by this thread: the entities it looks up while
+        // linking are all decoded already
+        if (unloaded == null || loading) return;
+
+        // Keys in the snapshot are loaded before being changed, so nothing
+        // decoded here can overwrite a newer entity. Until the segment is
+        // decoded, the other threads wait here.
+        loading = true;
+        try {
+            loader.load((key, value) -> {
+                if (entries.put(key, value) == null) decoded++;
+            });
+        } catch (RuntimeException e) {
+            // Not decoded: the keys stay in the snapshot, and the next lookup
+            // of one of them fails again
+            entries.keySet().removeAll(unloaded);
+            throw e;
+        } finally {
+            loading = false;
+            decoded = 0;
+        }
+
+        unloaded = null;
+        loader = null;
+    }
+
+    @Override
+    public V get(Object key) {
+
+        if (inSnapshot(key)) load();
+        return entries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key) || inSnapshot(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+
+        if (inSnapshot(key)) load();
+        return entries.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+
+        if (inSnapshot(key)) load();
+        return entries.remove(key);
+    }
+
+    @Override
+    public int size() {
+
+        if (unloaded == null) return entries.size();
+
+        // Not counted twice while being loaded
+        synchronized (this) {
+            Set<K> keys = unloaded;
+            return entries.size() + (keys == null ? 0 : keys.size() - decoded);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        unloaded = null;
+        loader = null;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        load();
+        return entries.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        load();
+        return entries.values();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        load();
+        return entries.entrySet();
+    }
+
+}
@@ -0,0 +1,28 @@
+package it.polito.ezshop.data;
+
+// Checks the running balance DataManager keeps against the balance
+// transactions it is made of. If they differ, the balance is rebuilt from the
+// transactions and saved with a new snapshot.
+//
+//   java it.polito.ezshop.data.LedgerCheck
+public class LedgerCheck {
+
+    private LedgerCheck() {
+    }
+
+    public static void main(String[] args) {
+
+        DataManager store = DataManager.getInstance();
+        double kept = store.getBalance();
+
+        if (store.rebuildBalance()) {
+            System.out.println("balance " + kept + " matches the ledger");
+        } else {
+            System.out.println("balance was " + kept + ", rebuilt as " + store.getBalance());
+            if (!store.checkpoint()) System.out.println("the rebuilt balance could not be saved");
+        }
+
+        System.exit(0);
+    }
+
+}
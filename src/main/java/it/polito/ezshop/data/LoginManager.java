@@ -1,19 +1,25 @@
 package it.polito.ezshop.data;
-import static java.util.stream.Collectors.*;
-import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class LoginManager {
-    
+
     private static LoginManager instance;
 
-    private it.polito.ezshop.model.User loggedUser;
+    // Every open session, by token
+    private final Map<String, Session> sessions;
+    // The session of tryLogin()/tryLogout(), used by the EZShop instances
+    // that did not log in on their own
+    private volatile Session defaultSession;
 
     private LoginManager() {
-        loggedUser = null;
+        sessions = new ConcurrentHashMap<>();
+        defaultSession = null;
     }
 
-    public static LoginManager getInstance() {
-        
+    public static synchronized LoginManager getInstance() {
+
         if (instance == null) {
             instance = new LoginManager();
         }
@@ -21,37 +27,70 @@ public class LoginManager {
         return instance;
     }
 
+    // A new session for the user, or null if the credentials are wrong
+    public Session openSession(String username, String password) {
+
+        Optional<it.polito.ezshop.model.User> requestedUser = DataManager.getInstance()
+            .findUserByUsername(username)
+            .filter(user -> user.getPassword().equals(password));
+
+        if (!requestedUser.isPresent()) return null;
+
+        Session session = new Session(requestedUser.get());
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    public Optional<Session> findSession(String token) {
+        return Optional.ofNullable(token == null ? null : sessions.get(token));
+    }
+
+    public boolean closeSession(Session session) {
+
+        if (session == null || sessions.remove(session.getToken()) == null) return false;
+
+        session.close();
+        return true;
+    }
+
+    public Session getDefaultSession() {
+        return defaultSession;
+    }
+
     public boolean isUserLogged() {
-        return loggedUser != null;
+        return defaultSession != null;
     }
 
     public boolean isUserLogged(it.polito.ezshop.model.User user) {
-        return user != null && isUserLogged() && loggedUser.equals(user);
+
+        Session session = defaultSession;
+        return user != null && session != null && session.getUser().equals(user);
     }
 
     public it.polito.ezshop.model.User getLoggedUser() {
-        return loggedUser;
+
+        Session session = defaultSession;
+        return session == null ? null : session.getUser();
     }
 
     public boolean tryLogin(String username, String password) {
-        
-        List<it.polito.ezshop.model.User> requestedUser = DataManager.getInstance()
-            .getUsers()
-            .stream()
-            .filter(user -> user.getUsername().equals(username) && user.getPassword().equals(password))
-            .collect(toList());
 
-        if (requestedUser.size() != 1) return false;
+        Session session = openSession(username, password);
+        if (session == null) return false;
 
-        loggedUser = requestedUser.get(0);
+        Session previous = defaultSession;
+        defaultSession = session;
+        closeSession(previous);
         return true;
     }
-    
+
     public boolean tryLogout() {
 
-        if (loggedUser == null) return false;
+        Session session = defaultSession;
+        if (session == null) return false;
 
-        loggedUser = null;
+        defaultSession = null;
+        closeSession(session);
         return true;
     }
 
@@ -0,0 +1,64 @@
+package it.polito.ezshop.data;
+
+import java.util.concurrent.CompletableFuture;
+
+// Where card payments go. The calls return at once and the futures complete
+// when the gateway has answered, so a till is not held while it does. A future
+// completed exceptionally means the answer did not arrive: nothing is assumed
+// to have happened on the card. Each payment and refund is named by a key, so
+// that one made again with the same card and amount, e.g. after a crash, is
+// not charged twice.
+public interface PaymentGateway {
+
+    // Money held on a card for a payment, until captured or released
+    final class Authorization {
+
+        private final String key;
+        private final String creditCard;
+        private final double amount;
+
+        public Authorization(String key, String creditCard, double amount) {
+            this.key = key;
+            this.creditCard = creditCard;
+            this.amount = amount;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getCreditCard() {
+            return creditCard;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+    }
+
+    // Holds 'amount' on the card: completes with null if the card is not
+    // registered or cannot pay it, or a payment with this key is going on or
+    // was charged with another card or amount
+    CompletableFuture<Authorization> authorize(String key, String creditCard, double amount);
+
+    // Charges the card with the money held, false if it could not
+    CompletableFuture<Boolean> capture(Authorization authorization);
+
+    // Gives the money held back to the card without charging it
+    CompletableFuture<Boolean> release(Authorization authorization);
+
+    // Gives 'amount' back to the card, false if it is not registered
+    CompletableFuture<Boolean> refund(String key, String creditCard, double amount);
+
+    // Gives back the 'amount' charged on the card with the payment 'key', false
+    // if that charge does not stand, e.g. given back already. Made again, the
+    // payment is charged again.
+    CompletableFuture<Boolean> cancel(String key, String creditCard, double amount);
+
+    // Forgets the keys used so far, when the ids they were made of start
+    // again; false if they could not be
+    default boolean forgetKeys() {
+        return true;
+    }
+
+}
@@ -0,0 +1,307 @@
+package it.polito.ezshop.data;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import it.polito.ezshop.model.Product;
+import it.polito.ezshop.model.ProductType;
+
+// The products by RFID, kept in columns: an open addressing table of RFID
+// values and, next to each, the product type (as an index in a list of the
+// types in use) with the availability in the low bit. No object is kept per
+// product: the Product instances are made when looked up, so a change to one
+// is stored by putting it back. Like the other tables it can be read from any
+// thread and is changed under the store lock.
+final class ProductTable extends AbstractMap<String, Product> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long FREE = -1;
+    private static final long DELETED = -2;
+    private static final int MIN_CAPACITY = 16;
+
+    // A slot is written product first and key last, and keeps its key until
+    // the slots are replaced: a reader that finds a key finds its product.
+    // The product types go with the slots referring to them: a type is added
+    // before the first slot referring to it is written, and kept until the
+    // slots are replaced. The array grows by doubling, the first 'typeCount'
+    // in use.
+    private static final class Slots {
+
+        final AtomicLongArray keys;
+        final AtomicIntegerArray products;
+        final int mask;
+        volatile ProductType[] types = new ProductType[0];
+        int typeCount;
+
+        Slots(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            products = new AtomicIntegerArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) keys.set(i, FREE);
+        }
+
+        // Index of 'type' in 'types', added if it is not there yet
+        int addType(ProductType type, Map<ProductType, Integer> indexes) {
+
+            Integer index = indexes.get(type);
+            if (index != null) return index;
+
+            index = typeCount++;
+            ProductType[] grown = index < types.length ? types : Arrays.copyOf(types, Math.max(MIN_CAPACITY, index * 2));
+            grown[index] = type;
+            types = grown;
+            indexes.put(type, index);
+            return index;
+        }
+    }
+
+    private transient volatile Slots slots;
+    private transient volatile int size;
+    // Slots taken, the deleted ones included
+    private transient int used;
+
+    // Indexes of the types of the current slots
+    private transient Map<ProductType, Integer> typeIndexes;
+
+    ProductTable() {
+        clear();
+    }
+
+    ProductTable(Map<String, Product> from) {
+        this();
+        putAll(from);
+    }
+
+    private static int home(long key, int mask) {
+
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ h >>> 32) & mask;
+    }
+
+    // Slot holding 'key', or -1
+    private static int find(Slots s, long key) {
+
+        for (int i = home(key, s.mask); ; i = (i + 1) & s.mask) {
+            long k = s.keys.get(i);
+            if (k == key) return i;
+            if (k == FREE) return -1;
+        }
+    }
+
+    private static long keyOf(Object key) {
+        return key instanceof String ? EZShop.parseRFID((String)key) : -1;
+    }
+
+    private int encode(Slots s, Product p) {
+        return s.addType(p.getRelativeProductType(), typeIndexes) << 1 | (p.isAvailable() ? 1 : 0);
+    }
+
+    private static Product decode(Slots s, long rfid, int product) {
+        return new Product(rfid, s.types[product >>> 1], (product & 1) != 0);
+    }
+
+    Product get(long rfid) {
+
+        Slots s = slots;
+        int i = rfid < 0 ? -1 : find(s, rfid);
+        return i < 0 ? null : decode(s, rfid, s.products.get(i));
+    }
+
+    // True if a product is stored with any of the 'count' RFIDs from 'from' on:
+    // each of them is looked up, or all the keys are read if they are fewer
+    boolean anyInRange(long from, long count) {
+
+        Slots s = slots;
+        if (count <= size) {
+            for (long rfid = from; rfid < from + count; rfid++) {
+                if (find(s, rfid) >= 0) return true;
+            }
+            return false;
+        }
+
+        for (int i = 0; i <= s.mask; i++) {
+            long k = s.keys.get(i);
+            if (k >= from && k - from < count) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Product get(Object key) {
+        return get(keyOf(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+
+        long rfid = keyOf(key);
+        return rfid >= 0 && find(slots, rfid) >= 0;
+    }
+
+    @Override
+    public Product put(String key, Product value) {
+
+        long rfid = keyOf(key);
+        if (rfid < 0 || value == null) throw new IllegalArgumentException(key);
+
+        Slots s = slots;
+        int i = find(s, rfid);
+        if (i >= 0) {
+            Product previous = decode(s, rfid, s.products.get(i));
+            s.products.set(i, encode(s, value));
+            return previous;
+        }
+
+        if ((used + 1) * 4 > (s.mask + 1) * 3) s = rehash(size + 1);
+
+        i = home(rfid, s.mask);
+        while (s.keys.get(i) != FREE) i = (i + 1) & s.mask;
+
+        s.products.set(i, encode(s, value));
+        s.keys.set(i, rfid);
+        used++;
+        size++;
+        return null;
+    }
+
+    @Override
+    public Product remove(Object key) {
+
+        long rfid = keyOf(key);
+        Slots s = slots;
+        int i = rfid < 0 ? -1 : find(s, rfid);
+        if (i < 0) return null;
+
+        Product previous = decode(s, rfid, s.products.get(i));
+        s.keys.set(i, DELETED);
+        size--;
+        return previous;
+    }
+
+    // New slots for at least 'needed' products, half full at most, with only
+    // the types of the products they hold
+    private Slots rehash(int needed) {
+
+        Slots from = slots;
+        Slots to = new Slots(Integer.highestOneBit(Math.max(MIN_CAPACITY, needed * 2 - 1)) << 1);
+        Map<ProductType, Integer> indexes = new IdentityHashMap<>();
+
+        for (int i = 0; i <= from.mask; i++) {
+            long k = from.keys.get(i);
+            if (k < 0) continue;
+
+            int product = from.products.get(i);
+            int type = to.addType(from.types[product >>> 1], indexes);
+
+            int j = home(k, to.mask);
+            while (to.keys.get(j) != FREE) j = (j + 1) & to.mask;
+            to.products.set(j, type << 1 | (product & 1));
+            to.keys.set(j, k);
+        }
+
+        slots = to;
+        typeIndexes = indexes;
+        used = size;
+        return to;
+    }
+
+    @Override
+    public void clear() {
+        slots = new Slots(MIN_CAPACITY);
+        typeIndexes = new IdentityHashMap<>();
+        size = 0;
+        used = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // The slots holding a product when the iteration starts
+    private abstract class SlotIterator<E> implements Iterator<E> {
+
+        private final Slots s = slots;
+        private int next = -1;
+        private long nextKey = FREE;
+
+        SlotIterator() {
+            advance();
+        }
+
+        private void advance() {
+
+            nextKey = FREE;
+            while (nextKey < 0 && ++next <= s.mask) nextKey = s.keys.get(next);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey >= 0;
+        }
+
+        @Override
+        public E next() {
+
+            if (!hasNext()) throw new NoSuchElementException();
+
+            E e = at(nextKey, decode(s, nextKey, s.products.get(next)));
+            advance();
+            return e;
+        }
+
+        abstract E at(long key, Product value);
+    }
+
+    @Override
+    public Collection<Product> values() {
+        return new AbstractCollection<Product>() {
+
+            @Override
+            public Iterator<Product> iterator() {
+                return new SlotIterator<Product>() {
+                    @Override
+                    Product at(long key, Product value) {
+                        return value;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, Product>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Product>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Product>> iterator() {
+                return new SlotIterator<Map.Entry<String, Product>>() {
+                    @Override
+                    Map.Entry<String, Product> at(long key, Product value) {
+                        return new SimpleImmutableEntry<>(EZShop.formatRFID(key), value);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // Written as the map the store used before
+    private Object writeReplace() {
+        return new ConcurrentHashMap<>(this);
+    }
+
+}
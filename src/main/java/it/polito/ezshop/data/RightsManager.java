@@ -10,7 +10,7 @@ public class RightsManager {
         
     }
 
-    public static RightsManager getInstance() {
+    public static synchronized RightsManager getInstance() {
         
         if (instance == null) {
             instance = new RightsManager();
@@ -19,40 +19,85 @@ public class RightsManager {
         return instance;
     }
 
+    private static boolean isOpen(Session session) {
+        return session != null && session.isOpen();
+    }
+
+    // Checks made by user are about the session opened with tryLogin()
+    private static Session sessionOf(it.polito.ezshop.model.User user) {
+        return LoginManager.getInstance().isUserLogged(user) ? LoginManager.getInstance().getDefaultSession() : null;
+    }
+
+    public boolean canManageUsers(Session session) {
+        return isOpen(session) && session.getRole() == Role.Administrator;
+    }
+
     public boolean canManageUsers(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user) && Role.valueOf(user.getRole()) == Role.Administrator;
+        return canManageUsers(sessionOf(user));
+    }
+
+    public boolean canManageProductsCatalogue(Session session) {
+        return isOpen(session) && session.getRole() != Role.Cashier;
     }
 
     public boolean canManageProductsCatalogue(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user) && Role.valueOf(user.getRole()) != Role.Cashier;
+        return canManageProductsCatalogue(sessionOf(user));
+    }
+
+    public boolean canListAllProductTypes(Session session) {
+        return isOpen(session);
     }
 
     public boolean canListAllProductTypes(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user);
+        return canListAllProductTypes(sessionOf(user));
+    }
+
+    public boolean canManageInventory(Session session) {
+        return isOpen(session) && session.getRole() != Role.Cashier;
     }
 
     public boolean canManageInventory(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user) && Role.valueOf(user.getRole()) != Role.Cashier;
+        return canManageInventory(sessionOf(user));
+    }
+
+    public boolean canManageCustomers(Session session) {
+        return isOpen(session);
     }
 
     public boolean canManageCustomers(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user);
+        return canManageCustomers(sessionOf(user));
+    }
+
+    public boolean canManageSaleTransactions(Session session) {
+        return isOpen(session);
     }
 
     public boolean canManageSaleTransactions(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user);
+        return canManageSaleTransactions(sessionOf(user));
+    }
+
+    public boolean canManagePayments(Session session) {
+        return isOpen(session);
     }
 
     public boolean canManagePayments(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user);
+        return canManagePayments(sessionOf(user));
+    }
+
+    public boolean canManageAccounting(Session session) {
+        return isOpen(session) && session.getRole() != Role.Cashier;
     }
 
     public boolean canManageAccounting(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user) && Role.valueOf(user.getRole()) != Role.Cashier;
+        return canManageAccounting(sessionOf(user));
+    }
+
+    public boolean canManageBalanceTransactions(Session session) {
+        return isOpen(session) && session.getRole() != Role.Cashier;
     }
 
     public boolean canManageBalanceTransactions(it.polito.ezshop.model.User user) {
-        return LoginManager.getInstance().isUserLogged(user) && Role.valueOf(user.getRole()) != Role.Cashier;
+        return canManageBalanceTransactions(sessionOf(user));
     }
 
 }
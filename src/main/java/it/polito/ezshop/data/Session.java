@@ -0,0 +1,50 @@
+package it.polito.ezshop.data;
+
+import java.util.UUID;
+
+// An operator logged in on one till. Each EZShop instance works for the
+// session it logged in with; a till can also be handed a session by token.
+public final class Session {
+
+    private final String token;
+    private final it.polito.ezshop.model.User user;
+    private volatile boolean open;
+
+    // Role of the user, parsed once: worked out again only if it is changed
+    private String roleName;
+    private RightsManager.Role role;
+
+    Session(it.polito.ezshop.model.User user) {
+        this.token = UUID.randomUUID().toString();
+        this.user = user;
+        this.open = true;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public it.polito.ezshop.model.User getUser() {
+        return user;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    void close() {
+        open = false;
+    }
+
+    synchronized RightsManager.Role getRole() {
+
+        String current = user.getRole();
+        if (!current.equals(roleName)) {
+            role = RightsManager.Role.valueOf(current);
+            roleName = current;
+        }
+
+        return role;
+    }
+
+}
@@ -0,0 +1,140 @@
+package it.polito.ezshop.data;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Card captures and refunds waiting to be applied to the card system. They
+// are settled in runs, 'periodMillis' after the first one waiting or as soon
+// as many are, each run one write for all the cards in it. An operation is
+// known by its key: one settled before with the same card and amount, e.g.
+// retried after a crash, is not applied again.
+public class SettlementQueue {
+
+    private static final int RUN_SIZE = 256;
+
+    private static final class Operation {
+
+        final String creditCard;
+        final double amount;
+        // Gives back the charge settled with the same key
+        final boolean cancels;
+        final CompletableFuture<Boolean> settled = new CompletableFuture<>();
+
+        Operation(String creditCard, double amount, boolean cancels) {
+            this.creditCard = creditCard;
+            this.amount = amount;
+            this.cancels = cancels;
+        }
+    }
+
+    private final CreditCardSystem cards;
+    private final long periodMillis;
+    private final ScheduledExecutorService runner;
+
+    // By key, guarded by this
+    private Map<String, Operation> waiting = new LinkedHashMap<>();
+
+    public SettlementQueue(CreditCardSystem cards, long periodMillis) {
+
+        if (periodMillis < 0) throw new IllegalArgumentException();
+
+        this.cards = cards;
+        this.periodMillis = periodMillis;
+        this.runner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ezshop-settlement");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static boolean isValidKey(String key) {
+        return key != null && !key.isEmpty() && key.chars().allMatch(ch -> Character.isLetterOrDigit(ch) || ch == '-');
+    }
+
+    // Queues taking 'amount' from the card, or giving it back if negative. The
+    // future completes once the run is written, with false if the card could
+    // not pay, or the key is settled or waiting already for another operation.
+    public CompletableFuture<Boolean> submit(String key, String creditCard, double amount) {
+        return queue(key, new Operation(creditCard, amount, false));
+    }
+
+    // Queues giving back the 'amount' taken from the card with the operation
+    // 'key', which is then no longer settled. The future completes once the run
+    // is written, with false if that charge does not stand, e.g. cancelled
+    // already, or the key is waiting already for another operation.
+    public CompletableFuture<Boolean> cancel(String key, String creditCard, double amount) {
+        return queue(key, new Operation(creditCard, -amount, true));
+    }
+
+    private synchronized CompletableFuture<Boolean> queue(String key, Operation operation) {
+
+        if (!isValidKey(key)) throw new IllegalArgumentException(key);
+
+        Operation queued = waiting.get(key);
+        if (queued != null) {
+            boolean same = queued.creditCard.equals(operation.creditCard) && queued.amount == operation.amount && queued.cancels == operation.cancels;
+            return same ? queued.settled : CompletableFuture.completedFuture(false);
+        }
+
+        if (operation.cancels) {
+            if (!cards.isSettled(key, operation.creditCard, -operation.amount)) return CompletableFuture.completedFuture(false);
+        } else if (cards.isSettled(key)) {
+            return CompletableFuture.completedFuture(cards.isSettled(key, operation.creditCard, operation.amount));
+        }
+
+        waiting.put(key, operation);
+        if (waiting.size() == 1) runner.schedule(this::settle, periodMillis, TimeUnit.MILLISECONDS);
+        else if (waiting.size() == RUN_SIZE) runner.execute(this::settle);
+
+        return operation.settled;
+    }
+
+    public boolean isSettled(String key) {
+        return cards.isSettled(key);
+    }
+
+    public boolean isSettled(String key, String creditCard, double amount) {
+        return cards.isSettled(key, creditCard, amount);
+    }
+
+    // Settles the operations waiting now
+    public void settle() {
+
+        Map<String, Operation> run;
+        synchronized (this) {
+            if (waiting.isEmpty()) return;
+
+            run = waiting;
+            waiting = new LinkedHashMap<>();
+        }
+
+        Map<String, Map<String, Double>> byCard = new LinkedHashMap<>();
+        Set<String> cancelling = new HashSet<>();
+        run.forEach((key, operation) -> {
+            byCard.computeIfAbsent(operation.creditCard, card -> new LinkedHashMap<>()).put(key, operation.amount);
+            if (operation.cancels) cancelling.add(key);
+        });
+
+        Set<String> settled;
+        try {
+            settled = cards.settle(byCard, cancelling);
+        } catch (RuntimeException e) {
+            settled = Collections.emptySet();
+        }
+
+        for (Map.Entry<String, Operation> operation : run.entrySet()) {
+            operation.getValue().settled.complete(settled.contains(operation.getKey()));
+        }
+    }
+
+    // Forgets the keys settled, when the ids they were made of start again
+    public boolean forgetSettled() {
+
+        settle();
+        return cards.forgetSettled();
+    }
+
+}
@@ -0,0 +1,101 @@
+package it.polito.ezshop.data;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// A stand-in for a remote gateway, to try the tills against its latency and
+// failures: each call reaches 'delegate' after a random delay between the two
+// given, and a share of them fails on the way without reaching it.
+public class SimulatedGateway implements PaymentGateway {
+
+    private final PaymentGateway delegate;
+    private final long minLatencyMillis;
+    private final long maxLatencyMillis;
+    private final double failureRate;
+    // Guarded by itself
+    private final Random random;
+    private final ScheduledExecutorService network;
+
+    public SimulatedGateway(PaymentGateway delegate, long minLatencyMillis, long maxLatencyMillis, double failureRate, long seed) {
+
+        if (minLatencyMillis < 0 || maxLatencyMillis < minLatencyMillis || failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException();
+        }
+
+        this.delegate = delegate;
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+        this.network = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "ezshop-simulated-gateway");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> request) {
+
+        long latency;
+        boolean fails;
+        synchronized (random) {
+            latency = minLatencyMillis + (long)(random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+            fails = random.nextDouble() < failureRate;
+        }
+
+        CompletableFuture<T> answer = new CompletableFuture<>();
+        network.schedule(() -> {
+            if (fails) {
+                answer.completeExceptionally(new IOException("simulated gateway failure"));
+                return;
+            }
+
+            try {
+                request.get().whenComplete((value, e) -> {
+                    if (e != null) answer.completeExceptionally(e);
+                    else answer.complete(value);
+                });
+            } catch (RuntimeException e) {
+                answer.completeExceptionally(e);
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+
+        return answer;
+    }
+
+    @Override
+    public CompletableFuture<Authorization> authorize(String key, String creditCard, double amount) {
+        return call(() -> delegate.authorize(key, creditCard, amount));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> capture(Authorization authorization) {
+        return call(() -> delegate.capture(authorization));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> release(Authorization authorization) {
+        return call(() -> delegate.release(authorization));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> refund(String key, String creditCard, double amount) {
+        return call(() -> delegate.refund(key, creditCard, amount));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cancel(String key, String creditCard, double amount) {
+        return call(() -> delegate.cancel(key, creditCard, amount));
+    }
+
+    @Override
+    public boolean forgetKeys() {
+        return delegate.forgetKeys();
+    }
+
+}
@@ -0,0 +1,656 @@
+package it.polito.ezshop.data;
+
+import it.polito.ezshop.model.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Binary snapshot of a DataManager. Each table is written as flat lists of
+// entities, and an entity points to another one through its table and key
+// instead of embedding it. Entities no longer stored in their table (e.g. the
+// product type of an old sale, deleted since) are written once in a segment
+// of their own and referenced by position.
+//
+// The entities of a table are grouped in segments listed in the header.
+// Segments holding what the shop needs to start (users, catalogue, stock,
+// customers, open sales) are decoded on load; the history (committed sales,
+// returns, orders, balance) is decoded the first time one of its entities is
+// needed. The header also lists the keys of those segments, so that looking
+// up another key does not load them, the running balance (version 3) and
+// whether the sales point to their payments (version 4).
+//
+// <magic><version>
+// <table count> { <table> <last id> }
+// <balance> <payments linked>
+// <segment count> { <table> <eager> <count> [<keys>] <offset> <length> }
+// { <segment> := { <type> <entity> } }
+public final class SnapshotCodec {
+
+    public static final int MAGIC = 0x455A5353; // "EZSS"
+    public static final short VERSION = 4;
+
+    // Implemented by the model classes: the matching Reader constructor reads
+    // the fields back in the same order.
+    public interface Entity {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    private interface Factory {
+        Object read(Reader in) throws IOException;
+    }
+
+    private static final String[] TABLES = { "users", "productTypes", "products", "positions", "orders", "customers",
+        "loyaltyCards", "sales", "cReturns", "dummyCredits", "dummyDebits", "balanceTransactions" };
+
+    private static final Map<String, Integer> TABLE_TAGS = new HashMap<>();
+    static {
+        for (int i = 0; i < TABLES.length; i++) {
+            TABLE_TAGS.put(TABLES[i], i + 1);
+        }
+    }
+
+    private static final Set<String> STRING_KEYED = new HashSet<>(Arrays.asList("products", "positions", "loyaltyCards"));
+
+    // Tables decoded on load. Of the sales, only the open ones are.
+    private static final Set<String> EAGER = new HashSet<>(Arrays.asList("users", "productTypes", "products",
+        "positions", "customers", "loyaltyCards"));
+
+    private static final String DETACHED = "";
+
+    private static final List<Class<?>> TYPES = Arrays.asList(it.polito.ezshop.model.User.class,
+        it.polito.ezshop.model.ProductType.class, Product.class, Position.class, it.polito.ezshop.model.Order.class,
+        it.polito.ezshop.model.Customer.class, LoyaltyCard.class, Sale.class, CReturn.class, DummyCredit.class,
+        DummyDebit.class, CreditTransaction.class, DebitTransaction.class);
+
+    private static final List<Factory> FACTORIES = Arrays.asList(it.polito.ezshop.model.User::new,
+        it.polito.ezshop.model.ProductType::new, Product::new, Position::new, it.polito.ezshop.model.Order::new,
+        it.polito.ezshop.model.Customer::new, LoyaltyCard::new, Sale::new, CReturn::new, DummyCredit::new,
+        DummyDebit::new, CreditTransaction::new, DebitTransaction::new);
+
+    private static final int NULL_REF = 0;
+    private static final int DETACHED_REF = 0xFF;
+
+    private SnapshotCodec() {
+    }
+
+    public static byte[] encode(DataManager store) throws IOException {
+        return new Writer(store).writeStore();
+    }
+
+    public static DataManager decode(InputStream in) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            bytes.write(buf, 0, n);
+        }
+
+        DataManager store = new DataManager();
+        read(ByteBuffer.wrap(bytes.toByteArray()), store);
+        return store;
+    }
+
+    // True if 'in' starts with a snapshot written by this codec. The stream
+    // is left where it was.
+    static boolean isSnapshot(BufferedInputStream in) throws IOException {
+
+        in.mark(4);
+        try {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    static boolean isSnapshot(ByteBuffer snapshot) {
+        return snapshot.remaining() >= 4 && snapshot.getInt(snapshot.position()) == MAGIC;
+    }
+
+    // Loads 'snapshot' into an empty DataManager. The tables holding the
+    // history keep reading 'snapshot' until they are decoded.
+    static void read(ByteBuffer snapshot, DataManager into) throws IOException {
+
+        ByteBuffer buf = snapshot.duplicate();
+        DataInputStream in = new DataInputStream(new BufferInput(buf));
+
+        if (in.readInt() != MAGIC) throw new StreamCorruptedException("not a snapshot");
+
+        int version = in.readShort();
+        if (version < 1 || version > VERSION) throw new StreamCorruptedException("unsupported version " + version);
+
+        if (version == 1) {
+            readTables(in, new Snapshot(into, version));
+        } else {
+            readSegments(in, buf, new Snapshot(into, version));
+        }
+    }
+
+    // Version 1: every table in full, then the detached entities
+    private static void readTables(DataInputStream in, Snapshot snapshot) throws IOException {
+
+        Reader reader = new Reader(in, snapshot);
+        DataManager store = snapshot.store;
+        store.restoreBalance(Long.MIN_VALUE);
+        store.restorePaymentLinks(false);
+
+        int tables = in.readUnsignedByte();
+        for (int t = 0; t < tables; t++) {
+            String name = reader.readString();
+            Map<Object, Object> table = snapshot.fill(name);
+
+            store.advanceSequence(name, in.readInt());
+            for (int i = in.readInt(); i > 0; i--) {
+                Object o = reader.readEntity();
+                table.put(store.keyOf(o), o);
+            }
+        }
+
+        snapshot.detached = new ArrayList<>();
+        for (int type = in.readUnsignedByte(); type != 0; type = in.readUnsignedByte()) {
+            snapshot.detached.add(reader.readEntity(type));
+        }
+
+        reader.resolveLinks();
+        snapshot.storeValues();
+    }
+
+    private static void readSegments(DataInputStream in, ByteBuffer buf, Snapshot snapshot) throws IOException {
+
+        DataManager store = snapshot.store;
+        Reader header = new Reader(in, snapshot);
+
+        for (int i = in.readUnsignedByte(); i > 0; i--) {
+            store.advanceSequence(header.readString(), in.readInt());
+        }
+
+        // Older snapshots: worked out from the ledger when first needed
+        store.restoreBalance(snapshot.version >= 3 ? in.readLong() : Long.MIN_VALUE);
+        store.restorePaymentLinks(snapshot.version >= 4 && in.readBoolean());
+
+        int segments = in.readInt();
+        String[] tables = new String[segments];
+        boolean[] eager = new boolean[segments];
+        int[] counts = new int[segments];
+        List<Set<Object>> keys = new ArrayList<>();
+        int[] offsets = new int[segments];
+        int[] lengths = new int[segments];
+
+        for (int i = 0; i < segments; i++) {
+            tables[i] = header.readString();
+            eager[i] = in.readBoolean();
+            counts[i] = in.readInt();
+
+            Set<Object> segmentKeys = new HashSet<>();
+            if (!eager[i] && !tables[i].equals(DETACHED)) {
+                for (int k = 0; k < counts[i]; k++) {
+                    segmentKeys.add(header.readKey(tables[i]));
+                }
+            }
+            keys.add(segmentKeys);
+
+            offsets[i] = in.readInt();
+            lengths[i] = in.readInt();
+        }
+
+        int base = buf.position();
+        List<Reader> decoded = new ArrayList<>();
+
+        for (int i = 0; i < segments; i++) {
+            ByteBuffer segment = slice(buf, base + offsets[i], lengths[i]);
+
+            int count = counts[i];
+            if (tables[i].equals(DETACHED)) {
+                snapshot.detachedSegment = segment;
+                snapshot.detachedCount = count;
+            } else if (eager[i]) {
+                Map<Object, Object> table = snapshot.fill(tables[i]);
+                decoded.add(readSegment(segment, count, snapshot, table::put));
+            } else {
+                store.setTable(tables[i], new LazyTable<>(store.table(tables[i]), keys.get(i), into -> {
+                    try {
+                        readSegment(segment, count, snapshot, into).resolveLinks();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+        }
+
+        // Every entity needed at start exists now: link them together
+        for (Reader reader : decoded) {
+            reader.resolveLinks();
+        }
+        snapshot.storeValues();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int offset, int length) throws IOException {
+
+        if (offset < 0 || length < 0 || offset + length > buf.limit()) throw new StreamCorruptedException("segment out of bounds");
+
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice();
+    }
+
+    private static Reader readSegment(ByteBuffer segment, int count, Snapshot snapshot, BiConsumer<Object, Object> into) throws IOException {
+
+        Reader reader = new Reader(new DataInputStream(new BufferInput(segment.duplicate())), snapshot);
+        for (int i = 0; i < count; i++) {
+            Object o = reader.readEntity();
+            into.accept(snapshot.store.keyOf(o), o);
+        }
+
+        return reader;
+    }
+
+    // What the readers of the segments of one snapshot share
+    private static final class Snapshot {
+
+        final DataManager store;
+        final int version;
+        ByteBuffer detachedSegment;
+        int detachedCount;
+        List<Object> detached;
+        // Entities of the tables keeping them as values (the products), held
+        // until they are linked
+        final Map<String, Map<Object, Object>> values = new HashMap<>();
+
+        Snapshot(DataManager store, int version) {
+            this.store = store;
+            this.version = version;
+        }
+
+        // Where the entities of 'table' are read into
+        Map<Object, Object> fill(String table) {
+            return store.keepsValues(table) ? values.computeIfAbsent(table, t -> new LinkedHashMap<>()) : store.table(table);
+        }
+
+        Object lookup(String table, Object key) {
+
+            Map<Object, Object> held = values.get(table);
+            Object o = held == null ? null : held.get(key);
+            return o != null ? o : store.lookup(table, key);
+        }
+
+        void storeValues() {
+            values.forEach((table, entities) -> store.table(table).putAll(entities));
+            values.clear();
+        }
+
+        Object detached(int index) throws IOException {
+
+            if (detached == null) {
+                detached = new ArrayList<>();
+                readSegment(detachedSegment, detachedCount, this, (key, o) -> detached.add(o)).resolveLinks();
+            }
+
+            return detached.get(index);
+        }
+    }
+
+    // Reads a ByteBuffer (e.g. a mapped file) as a stream
+    private static final class BufferInput extends InputStream {
+
+        private final ByteBuffer buf;
+
+        BufferInput(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    public static final class Writer {
+
+        private final DataManager store;
+        private final Map<Object, Integer> detached;
+        private final Deque<Object> toWrite;
+        private DataOutputStream out;
+
+        private Writer(DataManager store) {
+            this.store = store;
+            this.detached = new IdentityHashMap<>();
+            this.toWrite = new ArrayDeque<>();
+        }
+
+        // A segment encoded, waiting for the header to be written
+        private static final class Segment {
+
+            final String table;
+            final boolean eager;
+            final Collection<?> entities;
+            byte[] bytes;
+            int count;
+
+            Segment(String table, boolean eager, Collection<?> entities) {
+                this.table = table;
+                this.eager = eager;
+                this.entities = entities;
+            }
+        }
+
+        private byte[] writeStore() throws IOException {
+
+            List<Segment> segments = new ArrayList<>();
+            for (String name : TABLES) {
+                Collection<Object> entities = store.table(name).values();
+
+                if (name.equals("sales")) {
+                    List<Object> open = new ArrayList<>();
+                    List<Object> committed = new ArrayList<>();
+                    entities.forEach(o -> (((Sale)o).isCommitted() ? committed : open).add(o));
+
+                    segments.add(new Segment(name, true, open));
+                    segments.add(new Segment(name, false, committed));
+                } else {
+                    segments.add(new Segment(name, EAGER.contains(name), entities));
+                }
+            }
+
+            for (Segment segment : segments) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(segment.entities.size() * 64);
+                out = new DataOutputStream(bytes);
+                for (Object o : segment.entities) {
+                    writeEntity(o);
+                }
+                segment.count = segment.entities.size();
+                segment.bytes = bytes.toByteArray();
+            }
+
+            // Entities met while writing the others, and the ones they refer to
+            Segment detachedSegment = new Segment(DETACHED, false, Collections.emptyList());
+            ByteArrayOutputStream detachedBytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(detachedBytes);
+            while (!toWrite.isEmpty()) {
+                writeEntity(toWrite.poll());
+            }
+            detachedSegment.count = detached.size();
+            detachedSegment.bytes = detachedBytes.toByteArray();
+            segments.add(detachedSegment);
+
+            segments.removeIf(segment -> segment.count == 0);
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(segments.stream().mapToInt(segment -> segment.bytes.length).sum() + 1024);
+            out = new DataOutputStream(file);
+
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            out.writeByte(TABLES.length);
+            for (String name : TABLES) {
+                writeString(name);
+                out.writeInt(store.lastId(name));
+            }
+
+            store.getBalance();
+            out.writeLong(store.savedBalance());
+            out.writeBoolean(store.paymentsLinked());
+
+            out.writeInt(segments.size());
+            int offset = 0;
+            for (Segment segment : segments) {
+                writeString(segment.table);
+                out.writeBoolean(segment.eager);
+                out.writeInt(segment.count);
+                if (!segment.eager && !segment.table.equals(DETACHED)) {
+                    for (Object o : segment.entities) {
+                        writeKey(segment.table, store.keyOf(o));
+                    }
+                }
+                out.writeInt(offset);
+                out.writeInt(segment.bytes.length);
+                offset += segment.bytes.length;
+            }
+
+            for (Segment segment : segments) {
+                out.write(segment.bytes);
+            }
+
+            out.flush();
+            return file.toByteArray();
+        }
+
+        private void writeEntity(Object o) throws IOException {
+
+            int type = TYPES.indexOf(o.getClass());
+            if (type < 0) throw new NotSerializableException(o.getClass().getName());
+
+            out.writeByte(type + 1);
+            ((Entity)o).writeTo(this);
+        }
+
+        private void writeKey(String table, Object key) throws IOException {
+
+            if (STRING_KEYED.contains(table)) {
+                writeString((String)key);
+            } else {
+                out.writeInt((Integer)key);
+            }
+        }
+
+        public void writeInt(int value) throws IOException {
+            out.writeInt(value);
+        }
+
+        public void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            out.writeBoolean(value);
+        }
+
+        public void writeNullable(Integer value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeInt(value);
+        }
+
+        public void writeNullable(Double value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) out.writeDouble(value);
+        }
+
+        public void writeString(String value) throws IOException {
+
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void writeDate(LocalDate value) throws IOException {
+            out.writeLong(value == null ? Long.MIN_VALUE : value.toEpochDay());
+        }
+
+        public void writeRef(Object entity) throws IOException {
+
+            if (entity == null) {
+                out.writeByte(NULL_REF);
+                return;
+            }
+
+            String table = store.tableOf(entity);
+            Object key = store.keyOf(entity);
+
+            if (key != null && store.isStored(entity)) {
+                out.writeByte(TABLE_TAGS.get(table));
+                writeKey(table, key);
+                return;
+            }
+
+            Integer index = detached.get(entity);
+            if (index == null) {
+                index = detached.size();
+                detached.put(entity, index);
+                toWrite.add(entity);
+            }
+
+            out.writeByte(DETACHED_REF);
+            out.writeInt(index);
+        }
+
+        public void writeRefs(Collection<?> entities) throws IOException {
+
+            out.writeInt(entities.size());
+            for (Object o : entities) {
+                writeRef(o);
+            }
+        }
+    }
+
+    public static final class Reader {
+
+        // A reference read before the entity it points to
+        private static final class Link {
+
+            final int table;
+            final Object key;
+            final Consumer<Object> target;
+
+            Link(int table, Object key, Consumer<Object> target) {
+                this.table = table;
+                this.key = key;
+                this.target = target;
+            }
+        }
+
+        private final DataInputStream in;
+        private final Snapshot snapshot;
+        private final List<Link> links;
+
+        private Reader(DataInputStream in, Snapshot snapshot) {
+            this.in = in;
+            this.snapshot = snapshot;
+            this.links = new ArrayList<>();
+        }
+
+        // Format version of the snapshot being read
+        public int version() {
+            return snapshot.version;
+        }
+
+        private Object readEntity() throws IOException {
+            return readEntity(in.readUnsignedByte());
+        }
+
+        private Object readEntity(int type) throws IOException {
+
+            if (type < 1 || type > FACTORIES.size()) throw new StreamCorruptedException("unknown type " + type);
+            return FACTORIES.get(type - 1).read(this);
+        }
+
+        private Object readKey(String table) throws IOException {
+            return STRING_KEYED.contains(table) ? readString() : (Object)in.readInt();
+        }
+
+        // Gives every reference read its entity, once they all exist
+        private void resolveLinks() throws IOException {
+
+            for (Link link : links) {
+                if (link.table == DETACHED_REF) {
+                    link.target.accept(snapshot.detached((Integer)link.key));
+                } else {
+                    link.target.accept(snapshot.lookup(TABLES[link.table - 1], link.key));
+                }
+            }
+
+            links.clear();
+        }
+
+        public int readInt() throws IOException {
+            return in.readInt();
+        }
+
+        public double readDouble() throws IOException {
+            return in.readDouble();
+        }
+
+        public boolean readBoolean() throws IOException {
+            return in.readBoolean();
+        }
+
+        public Integer readNullableInteger() throws IOException {
+            return in.readBoolean() ? in.readInt() : null;
+        }
+
+        public Double readNullableDouble() throws IOException {
+            return in.readBoolean() ? in.readDouble() : null;
+        }
+
+        public String readString() throws IOException {
+
+            int length = in.readInt();
+            if (length < 0) return null;
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public LocalDate readDate() throws IOException {
+
+            long day = in.readLong();
+            return day == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(day);
+        }
+
+        // Reads a reference written by Writer.writeRef(). The entity may not
+        // have been read yet: 'target' receives it once the whole snapshot is.
+        public <T> void readRef(Class<T> type, Consumer<? super T> target) throws IOException {
+
+            int table = in.readUnsignedByte();
+            if (table == NULL_REF) {
+                target.accept(null);
+                return;
+            }
+
+            Object key;
+            if (table == DETACHED_REF) {
+                key = in.readInt();
+            } else if (table <= TABLES.length) {
+                key = readKey(TABLES[table - 1]);
+            } else {
+                throw new StreamCorruptedException("unknown table " + table);
+            }
+
+            links.add(new Link(table, key, o -> target.accept(type.cast(o))));
+        }
+
+        public <T> void readRefs(Class<T> type, Consumer<? super T> target) throws IOException {
+
+            for (int i = in.readInt(); i > 0; i--) {
+                readRef(type, target);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package it.polito.ezshop.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Converts an ezshop.ser written with Java serialization of the whole
+// DataManager into the SnapshotCodec format. DataManager reads such files
+// on its own as well, so running it is only needed to convert ahead of time.
+//
+//   java it.polito.ezshop.data.SnapshotMigrator [ezshop.ser]
+public class SnapshotMigrator {
+
+    // The tables of the serialized DataManager, as sets in the first builds
+    // and as maps keyed by id afterwards
+    private static class Tables implements Serializable {
+        Object balanceTransactions, cReturns, customers, dummyCredits, dummyDebits, loyaltyCards, orders, positions,
+            productTypes, products, sales, users;
+    }
+
+    // Same as Tables, from the builds that also saved the id sequences
+    private static class SequencedTables implements Serializable {
+        Object balanceTransactions, cReturns, customers, dummyCredits, dummyDebits, loyaltyCards, orders, positions,
+            productTypes, products, sales, sequences, users;
+    }
+
+    private SnapshotMigrator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Path snapshot = Paths.get(args.length > 0 ? args[0] : "ezshop.ser");
+        if (migrate(snapshot)) {
+            System.out.println(snapshot + " converted");
+        } else {
+            System.out.println(snapshot + " already up to date");
+        }
+    }
+
+    // Rewrites 'snapshot' in the SnapshotCodec format, unless it already is.
+    // The file is replaced atomically once the new one is on disk.
+    public static boolean migrate(Path snapshot) throws IOException {
+
+        try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(snapshot))) {
+            if (SnapshotCodec.isSnapshot(in)) return false;
+        }
+
+        DataManager store = DataManager.readSnapshot(snapshot);
+
+        Path tmp = Paths.get(snapshot + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            out.write(SnapshotCodec.encode(store));
+            out.getFD().sync();
+        }
+
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    static void readLegacy(InputStream in, DataManager into) throws IOException {
+
+        Object read;
+        try (ObjectInputStream legacy = new LegacyInputStream(in)) {
+            read = legacy.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+
+        if (read instanceof SequencedTables) {
+            SequencedTables t = (SequencedTables)read;
+            fill(into, t.balanceTransactions, t.cReturns, t.customers, t.dummyCredits, t.dummyDebits, t.loyaltyCards,
+                t.orders, t.positions, t.productTypes, t.products, t.sales, t.users);
+
+            if (t.sequences instanceof Map) {
+                ((Map<?, ?>)t.sequences).forEach((table, last) -> into.advanceSequence((String)table, ((AtomicInteger)last).get()));
+            }
+        } else if (read instanceof Tables) {
+            Tables t = (Tables)read;
+            fill(into, t.balanceTransactions, t.cReturns, t.customers, t.dummyCredits, t.dummyDebits, t.loyaltyCards,
+                t.orders, t.positions, t.productTypes, t.products, t.sales, t.users);
+        } else {
+            throw new InvalidClassException("not an EZShop snapshot");
+        }
+    }
+
+    private static void fill(DataManager into, Object... tables) {
+
+        into.restoreBalance(Long.MIN_VALUE);
+        into.restorePaymentLinks(false);
+
+        String[] names = { "balanceTransactions", "cReturns", "customers", "dummyCredits", "dummyDebits",
+            "loyaltyCards", "orders", "positions", "productTypes", "products", "sales", "users" };
+
+        for (int i = 0; i < names.length; i++) {
+            Collection<?> entities = tables[i] instanceof Map ? ((Map<?, ?>)tables[i]).values() : (Collection<?>)tables[i];
+            if (entities == null) continue;
+
+            Map<Object, Object> table = into.table(names[i]);
+            for (Object o : entities) {
+                table.put(into.keyOf(o), o);
+                into.advanceSequence(names[i], into.keyOf(o));
+            }
+        }
+    }
+
+    // Reads the serialized DataManager into one of the shapes above. Its own
+    // class has changed too much since to be read directly.
+    private static final class LegacyInputStream extends CompatibleObjectInputStream {
+
+        LegacyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        // The description is read field by field, as laid out by the
+        // serialization spec, so that it can be given another UID: classes
+        // that only gained fields since are read with their new fields left
+        // to the defaults.
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+
+            String name = readUTF();
+            long suid = readLong();
+            byte flags = readByte();
+
+            int count = readShort();
+            byte[] types = new byte[count];
+            String[] names = new String[count];
+            String[] typeNames = new String[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = readByte();
+                names[i] = readUTF();
+                if (types[i] == 'L' || types[i] == '[') typeNames[i] = (String)readObject();
+            }
+
+            if (name.equals(DataManager.class.getName())) {
+                return ObjectStreamClass.lookup(Arrays.asList(names).contains("sequences") ? SequencedTables.class : Tables.class);
+            }
+
+            ObjectStreamClass current = local(name, suid);
+            if (current != null) {
+                for (int i = 0; i < count && current != null; i++) {
+                    ObjectStreamField field = current.getField(names[i]);
+                    if (field == null || field.getTypeCode() != types[i] || !Objects.equals(field.getTypeString(), typeNames[i])) current = null;
+                }
+            }
+
+            return describe(name, current == null ? suid : current.getSerialVersionUID(), flags, types, names, typeNames);
+        }
+
+        private static ObjectStreamClass describe(String name, long suid, byte flags, byte[] types, String[] names, String[] typeNames) throws IOException, ClassNotFoundException {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeShort(STREAM_MAGIC);
+                out.writeShort(STREAM_VERSION);
+                out.writeByte(TC_CLASSDESC);
+                out.writeUTF(name);
+                out.writeLong(suid);
+                out.writeByte(flags);
+                out.writeShort(types.length);
+                for (int i = 0; i < types.length; i++) {
+                    out.writeByte(types[i]);
+                    out.writeUTF(names[i]);
+                    if (typeNames[i] != null) {
+                        out.writeByte(TC_STRING);
+                        out.writeUTF(typeNames[i]);
+                    }
+                }
+                out.writeByte(TC_ENDBLOCKDATA);
+                out.writeByte(TC_NULL);
+            }
+
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return (ObjectStreamClass)in.readObject();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package it.polito.ezshop.data;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+// Secondary index over a DataManager table, mapping a unique attribute of the
+// stored entities to the entity. It remembers the value each entity was
+// indexed under, so an entity edited in place is moved on its next update.
+// Lookups can run alongside a change; changes are made under the store lock.
+class UniqueIndex<K, T> {
+
+    private final Function<T, K> attribute;
+    private final Map<K, T> entities;
+    private final Map<T, K> values;
+
+    UniqueIndex(Function<T, K> attribute) {
+        this(attribute, new ConcurrentHashMap<>());
+    }
+
+    private UniqueIndex(Function<T, K> attribute, Map<K, T> entities) {
+        this.attribute = attribute;
+        this.entities = entities;
+        this.values = new IdentityHashMap<>();
+    }
+
+    // An index kept in the order of the values, for range lookups
+    static <K extends Comparable<? super K>, T> UniqueIndex<K, T> sorted(Function<T, K> attribute) {
+        return new UniqueIndex<>(attribute, new ConcurrentSkipListMap<>());
+    }
+
+    T get(K value) {
+        return value == null ? null : entities.get(value);
+    }
+
+    // Entities indexed under 'from' (included) up to 'to' (excluded), in order.
+    // Only for sorted indexes.
+    Collection<T> range(K from, K to) {
+        return ((NavigableMap<K, T>)entities).subMap(from, true, to, false).values();
+    }
+
+    // True if 'o' can be indexed in place of 'replaced' (the instance it
+    // updates, or null on insert) without clashing with another entity
+    boolean accepts(T o, T replaced) {
+
+        T owner = get(attribute.apply(o));
+        return owner == null || owner == o || owner == replaced;
+    }
+
+    void put(T o) {
+
+        remove(o);
+
+        K value = attribute.apply(o);
+        if (value == null) return;
+
+        entities.put(value, o);
+        values.put(o, value);
+    }
+
+    void remove(T o) {
+
+        K value = o == null ? null : values.remove(o);
+        if (value != null) entities.remove(value);
+    }
+
+    void rebuild(Collection<T> all) {
+
+        entities.clear();
+        values.clear();
+        all.forEach(this::put);
+    }
+
+}
@@ -0,0 +1,77 @@
+package it.polito.ezshop.data;
+
+// Checks on the codes the shop is given: bar codes, credit card numbers and the
+// ids made of a fixed number of digits. Each reads the chars once and
+// allocates nothing, as they run for every scanned item and payment.
+public final class Validators {
+
+    private Validators() {
+    }
+
+    // Value of a GTIN-12, 13 or 14 bar code with a right check digit, -1 if it
+    // is not one. The digits are read with a 1 in front, so that codes
+    // differing only in their leading zeros have different values.
+    public static long parseGTIN(CharSequence code) {
+
+        if (code == null || code.length() < 12 || code.length() > 14) return -1;
+
+        int last = code.length() - 1;
+        long value = 1;
+        int sum = 0;
+        for (int i = 0; i <= last; i++) {
+            int digit = code.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+
+            value = value * 10 + digit;
+            // Weighted 3 and 1 alternately, 3 next to the check digit
+            if (i < last) sum += (last - i) % 2 == 1 ? digit * 3 : digit;
+        }
+
+        return (10 - sum % 10) % 10 == code.charAt(last) - '0' ? value : -1;
+    }
+
+    public static boolean isValidGTIN(CharSequence code) {
+        return parseGTIN(code) >= 0;
+    }
+
+    // True if 'number' is digits only, the last one the Luhn check digit of the others
+    public static boolean isValidLuhn(CharSequence number) {
+
+        if (number == null || number.length() == 0) return false;
+
+        int last = number.length() - 1;
+        int sum = 0;
+        boolean doubled = true;
+        for (int i = last - 1; i >= 0; i--, doubled = !doubled) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return false;
+
+            if (doubled) digit = digit < 5 ? digit * 2 : digit * 2 - 9;
+            sum += digit;
+        }
+
+        int check = number.charAt(last) - '0';
+        return check >= 0 && check <= 9 && (sum * 9) % 10 == check;
+    }
+
+    // Value of an id of exactly 'length' digits (at most 18), -1 if it is not one
+    public static long parseDigits(CharSequence id, int length) {
+
+        if (id == null || id.length() != length) return -1;
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    public static boolean isDigits(CharSequence id, int length) {
+        return parseDigits(id, length) >= 0;
+    }
+
+}
@@ -4,11 +4,14 @@ import java.time.LocalDate;
 
 import it.polito.ezshop.data.BalanceOperation;
 import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
 
 //Baldaz
 
-public abstract class BalanceTransaction implements Serializable, BalanceOperation {
+public abstract class BalanceTransaction implements Serializable, BalanceOperation, SnapshotCodec.Entity {
     
+    private static final long serialVersionUID = 1L;
+
     private int balanceId;
     private String description;
     private double value;
@@ -23,6 +26,23 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
         setType((this instanceof CreditTransaction) ? "CREDIT" : "DEBIT");
     }
 
+    protected BalanceTransaction(SnapshotCodec.Reader in) throws IOException {
+        this.balanceId = in.readInt();
+        this.description = in.readString();
+        this.value = in.readDouble();
+        this.date = in.readDate();
+        this.type = in.readString();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeInt(this.balanceId);
+        out.writeString(this.description);
+        out.writeDouble(this.value);
+        out.writeDate(this.date);
+        out.writeString(this.type);
+    }
+
     @Override
     public int getBalanceId(){
         return this.balanceId;
@@ -33,16 +53,17 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
         if (balanceId <= 0)
             throw new IllegalArgumentException();
 
-        this.balanceId = balanceId;
-        Update();
+        // Taken by another transaction
+        if (!DataManager.getInstance().changeKey(this, () -> this.balanceId = balanceId))
+            throw new IllegalArgumentException();
     }
 
     public void setDescription(String descr){
         if(descr == null || descr.isEmpty())
             throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         this.description = descr;
-        Update();
     }
 
     public String getDescription(){
@@ -56,8 +77,7 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
     public void setValue(Double value){
         if(value == null || Double.isNaN(value) || Double.isInfinite(value) ||  value < 0) throw new IllegalArgumentException();
 
-        this.value = value.doubleValue();
-        Update();
+        DataManager.getInstance().changeEntry(this, () -> this.value = value.doubleValue());
     }
 
     @Override
@@ -69,8 +89,7 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
     public void setDate(LocalDate date){
         if(date == null) throw new IllegalArgumentException();
 
-        this.date = date;
-        Update();
+        DataManager.getInstance().changeEntry(this, () -> this.date = date);
     }
 
     @Override
@@ -86,7 +105,6 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
         }
 
         setValue(money);
-        Update();
     }
 
     @Override
@@ -101,8 +119,8 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
             throw new IllegalArgumentException();
         }
         
+        DataManager.getInstance().markDirty(this);
         this.type = type;
-        Update();
     }
 
     @Override
@@ -115,8 +133,4 @@ public abstract class BalanceTransaction implements Serializable, BalanceOperati
         return this.balanceId == ((BalanceTransaction)obj).balanceId;
     }
 
-    private void Update() {
-        DataManager.getInstance().updateBalanceTransaction(this);
-    }
-
 }
@@ -3,15 +3,23 @@ package it.polito.ezshop.model;
 import static it.polito.ezshop.data.EZShop.*;
 import static java.util.stream.Collectors.*;
 
+import java.io.IOException;
 import java.util.*;
 
-public class CReturn extends ProductList implements IDebit {
+import it.polito.ezshop.data.ChangeLog;
+import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
+
+public class CReturn extends ProductList implements IDebit, ChangeLog.Derived {
     
+    private static final long serialVersionUID = 1L;
+
     private Integer returnId;
     private Sale saleTransaction;
     private boolean committed;
     private Integer balanceId;
     private Set<Product> productRFIDs;
+    private transient ProductGroups rfidGroups;
 
     
     public CReturn(Integer returnId, Sale saleTransaction) {
@@ -23,9 +31,36 @@ public class CReturn extends ProductList implements IDebit {
 
         saleTransaction.addReturnTransaction(this);
     }
+
+    public CReturn(SnapshotCodec.Reader in) throws IOException {
+
+        super(in);
+
+        this.productRFIDs = new HashSet<>();
+
+        this.returnId = in.readNullableInteger();
+        in.readRef(Sale.class, sale -> this.saleTransaction = sale);
+        this.committed = in.readBoolean();
+        this.balanceId = in.readNullableInteger();
+        in.readRefs(Product.class, productRFIDs::add);
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+
+        super.writeTo(out);
+
+        out.writeNullable(this.returnId);
+        out.writeRef(this.saleTransaction);
+        out.writeBoolean(this.committed);
+        out.writeNullable(this.balanceId);
+        out.writeRefs(this.productRFIDs);
+    }
     
     public void setAsCommitted(){
+        DataManager.getInstance().markDirty(this);
         this.committed = true;
+        saleTransaction.returnCommitted(this);
     }
     
     public Integer getReturnId(){
@@ -34,7 +69,7 @@ public class CReturn extends ProductList implements IDebit {
 
     public void setReturnId(Integer returnId){
         if (returnId == null || returnId < 1) throw new IllegalArgumentException();
-        this.returnId = returnId;
+        if (!DataManager.getInstance().changeKey(this, () -> this.returnId = returnId)) throw new IllegalArgumentException();
     }
     
     public boolean isCommitted(){
@@ -47,24 +82,78 @@ public class CReturn extends ProductList implements IDebit {
 
     public void setSaleTransaction(Sale saleTransaction){
         if (saleTransaction == null) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
+        Sale previous = this.saleTransaction;
         this.saleTransaction = saleTransaction;
+
+        if (previous != null) previous.invalidateReturns();
+        saleTransaction.invalidateReturns();
     }
 
     public Integer getBalanceId() {
         return this.balanceId;
     }
     
+    // Null if not paid
     public void setBalanceId(Integer balanceId) {
-        if (balanceId < 1) throw new IllegalArgumentException();
+        if (balanceId != null && balanceId < 1) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.balanceId = balanceId;
     }
 
     public boolean addProductRFID(Product prod) {
-        return this.productRFIDs.add(prod);
+
+        DataManager.getInstance().markDirty(this);
+        boolean added;
+        synchronized (this) {
+            added = this.productRFIDs.add(prod);
+            if (added) rfidGroups().add(prod);
+        }
+
+        changed();
+        return added;
     }
 
     public boolean deleteProductRFID(Product prod) {
-        return this.productRFIDs.remove(prod);
+
+        DataManager.getInstance().markDirty(this);
+        boolean deleted;
+        synchronized (this) {
+            deleted = this.productRFIDs.remove(prod);
+            if (deleted) rfidGroups().remove(prod);
+        }
+
+        changed();
+        return deleted;
+    }
+
+    public boolean containsProductRFID(Product prod) {
+        return this.productRFIDs.contains(prod);
+    }
+
+    public Set<Product> getProductRFIDsByType(it.polito.ezshop.data.ProductType type) {
+        return rfidGroups().get(type);
+    }
+
+    private synchronized ProductGroups rfidGroups() {
+
+        if (rfidGroups == null) rfidGroups = new ProductGroups(productRFIDs);
+        return rfidGroups;
+    }
+
+    // The sale counts what is returned once the return is committed
+    @Override
+    protected void changed() {
+        if (saleTransaction != null && committed) saleTransaction.invalidateReturns();
+    }
+
+    @Override
+    public void stateRestored() {
+
+        synchronized (this) {
+            rfidGroups = null;
+        }
+        if (saleTransaction != null) saleTransaction.invalidateReturns();
     }
 
     public List<Product> getProducRFIDs() {
@@ -1,9 +1,14 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
+
 import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
 
 public class CreditTransaction extends BalanceTransaction {
 
+    private static final long serialVersionUID = 1L;
+
     private ICredit relatedCreditOperation;
  
     public CreditTransaction(int balanceId, ICredit credit) {
@@ -15,13 +20,24 @@ public class CreditTransaction extends BalanceTransaction {
         setRelatedCreditOperation(credit);
     }
 
+    public CreditTransaction(SnapshotCodec.Reader in) throws IOException {
+        super(in);
+        in.readRef(ICredit.class, credit -> this.relatedCreditOperation = credit);
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        super.writeTo(out);
+        out.writeRef(this.relatedCreditOperation);
+    }
+
     public void setRelatedCreditOperation(ICredit credit){
 
         if (credit == null) throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         this.relatedCreditOperation = credit;
         this.setValue(credit.getTotalValue());
-        DataManager.getInstance().updateBalanceTransaction(this);
     }
 
     public ICredit getRelatedCreditOperation(){
@@ -1,11 +1,14 @@
 package it.polito.ezshop.model;
 //Simone
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Optional;
 
 import it.polito.ezshop.data.*;
 
-public class Customer implements Serializable, it.polito.ezshop.data.Customer {
+public class Customer implements Serializable, it.polito.ezshop.data.Customer, SnapshotCodec.Entity {
+	private static final long serialVersionUID = 1L;
+
 	private Integer ID;
 	private String name;
 	private LoyaltyCard loyaltyCard; 
@@ -16,6 +19,19 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 		this.loyaltyCard = loyaltyCard;
 	}
 
+	public Customer(SnapshotCodec.Reader in) throws IOException {
+		this.ID = in.readNullableInteger();
+		this.name = in.readString();
+		in.readRef(LoyaltyCard.class, card -> this.loyaltyCard = card);
+	}
+
+	@Override
+	public void writeTo(SnapshotCodec.Writer out) throws IOException {
+		out.writeNullable(this.ID);
+		out.writeString(this.name);
+		out.writeRef(this.loyaltyCard);
+	}
+
 	
 	@Override
 	public String getCustomerName() {
@@ -27,8 +43,8 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 
 		if (customerName == null || customerName.isEmpty()) throw new IllegalArgumentException();
 
+		DataManager.getInstance().markDirty(this);
 		this.name=customerName;
-		DataManager.getInstance().updateCustomer(this);
 	}
 
 	@Override
@@ -43,23 +59,18 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 			
 			if (this.loyaltyCard != null) {
 				this.loyaltyCard.addCustomer(null);
-				DataManager.getInstance().updateLoyaltyCard(this.loyaltyCard);
 			}
 
+			DataManager.getInstance().markDirty(this);
 			this.loyaltyCard = null;
-			DataManager.getInstance().updateCustomer(this);
 			return;
 		}
 		
-		if (customerCard.length() != 10 || !customerCard.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
+		if (!Validators.isDigits(customerCard, 10)) {
 			throw new IllegalArgumentException();
 		}
 
-		Optional<LoyaltyCard> card = DataManager.getInstance()
-            .getLoyaltyCards()
-            .stream()
-            .filter(c -> c.getID().equals(customerCard))
-            .findFirst();
+		Optional<LoyaltyCard> card = DataManager.getInstance().findLoyaltyCardById(customerCard);
 
 		if (!(card.isPresent()) || (card.get().getCustomer() != null && !card.get().getCustomer().equals(this))) {
 			throw new IllegalArgumentException();
@@ -67,14 +78,11 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 
 		if (this.loyaltyCard != null) {
 			this.loyaltyCard.addCustomer(null);
-			DataManager.getInstance().updateLoyaltyCard(this.loyaltyCard);
 		}
 
+		DataManager.getInstance().markDirty(this);
 		this.loyaltyCard = card.get();
 		card.get().addCustomer(this);
-
-		DataManager.getInstance().updateLoyaltyCard(card.get());
-		DataManager.getInstance().updateCustomer(this);
 	}
 
 	@Override
@@ -86,8 +94,7 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 	public void setId(Integer id) {
 		if (id <= 0) throw new IllegalArgumentException();
 
-		this.ID=id;
-		DataManager.getInstance().updateCustomer(this);
+		if (!DataManager.getInstance().changeKey(this, () -> this.ID=id)) throw new IllegalArgumentException();
 	}
 
 	@Override
@@ -105,7 +112,7 @@ public class Customer implements Serializable, it.polito.ezshop.data.Customer {
 		}
 
 		loyaltyCard.addPoints(points);
-		DataManager.getInstance().updateCustomer(this);
+		DataManager.getInstance().markDirty(this);
 	}
 
 	public LoyaltyCard getLoyaltyCard() {
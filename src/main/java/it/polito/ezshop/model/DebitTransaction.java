@@ -1,11 +1,16 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
+
 import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
 
 //Baldaz
 
 public class DebitTransaction extends BalanceTransaction {
     
+    private static final long serialVersionUID = 1L;
+
     private IDebit relatedDebitOperation;
 
     public DebitTransaction(int balanceId, IDebit debit){
@@ -17,13 +22,24 @@ public class DebitTransaction extends BalanceTransaction {
         setRelatedDebitOperation(debit);
     }
 
+    public DebitTransaction(SnapshotCodec.Reader in) throws IOException {
+        super(in);
+        in.readRef(IDebit.class, debit -> this.relatedDebitOperation = debit);
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        super.writeTo(out);
+        out.writeRef(this.relatedDebitOperation);
+    }
+
     public void setRelatedDebitOperation(IDebit debit){
 
         if (debit == null) throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         this.relatedDebitOperation = debit;
         this.setValue(debit.getTotalValue());
-        DataManager.getInstance().updateBalanceTransaction(this);
     }
 
     public IDebit getRelatedDebitOperation(){
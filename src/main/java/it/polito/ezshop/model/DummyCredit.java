@@ -1,12 +1,16 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
 
 //Baldaz
 
-public class DummyCredit implements Serializable, ICredit {
+public class DummyCredit implements Serializable, ICredit, SnapshotCodec.Entity {
+
+    private static final long serialVersionUID = 1L;
 
     private int id;
     private Double value;
@@ -16,13 +20,24 @@ public class DummyCredit implements Serializable, ICredit {
         this.id = id;
     }
 
+    public DummyCredit(SnapshotCodec.Reader in) throws IOException {
+        this.id = in.readInt();
+        this.value = in.readNullableDouble();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeInt(this.id);
+        out.writeNullable(this.value);
+    }
+
     public void setValue(double value){
         if (value < 0.0 || Double.isNaN(value) || Double.isInfinite(value)) {
             throw new IllegalArgumentException();  
         }
 
+        DataManager.getInstance().markDirty(this);
         this.value = value;
-        DataManager.getInstance().updateDummyCredit(this);
     }
 
     public double getValue(){
@@ -1,11 +1,15 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
 
 //Baldaz
 
-public class DummyDebit implements Serializable, IDebit {
+public class DummyDebit implements Serializable, IDebit, SnapshotCodec.Entity {
+
+    private static final long serialVersionUID = 1L;
 
     public int id;
     private Double value;
@@ -15,14 +19,25 @@ public class DummyDebit implements Serializable, IDebit {
         setId(id);
     }
 
+    public DummyDebit(SnapshotCodec.Reader in) throws IOException {
+        this.id = in.readInt();
+        this.value = in.readNullableDouble();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeInt(this.id);
+        out.writeNullable(this.value);
+    }
+
     public void setValue(Double value){
 
         if (value <= 0.0 || Double.isNaN(value) || Double.isInfinite(value)) {
             throw new IllegalArgumentException();  
         }
 
+        DataManager.getInstance().markDirty(this);
         this.value = value;
-        DataManager.getInstance().updateDummyDebit(this);
     }
 
     private void setId(int id){
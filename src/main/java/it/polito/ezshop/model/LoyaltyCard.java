@@ -1,8 +1,15 @@
 package it.polito.ezshop.model;
 //Simone
+import java.io.IOException;
 import java.io.Serializable;
 
-public class LoyaltyCard implements Serializable {
+import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.SnapshotCodec;
+import it.polito.ezshop.data.Validators;
+
+public class LoyaltyCard implements Serializable, SnapshotCodec.Entity {
+	private static final long serialVersionUID = 1L;
+
 	private String ID;
 	private Integer points;
 	private Customer customer;
@@ -12,6 +19,19 @@ public class LoyaltyCard implements Serializable {
 		this.setPoints(points); 
 		this.addCustomer(customer);
 	}
+
+	public LoyaltyCard(SnapshotCodec.Reader in) throws IOException {
+		this.ID = in.readString();
+		this.points = in.readNullableInteger();
+		in.readRef(Customer.class, c -> this.customer = c);
+	}
+
+	@Override
+	public void writeTo(SnapshotCodec.Writer out) throws IOException {
+		out.writeString(this.ID);
+		out.writeNullable(this.points);
+		out.writeRef(this.customer);
+	}
 	
 	public String getID() {
 		return ID;
@@ -19,11 +39,11 @@ public class LoyaltyCard implements Serializable {
 
 	public void setID(String iD) {
 
-		if (iD == null || iD.isEmpty() || iD.length() != 10 || !iD.chars().allMatch(ch -> ch >= '0' && ch <= '9')) {
+		if (!Validators.isDigits(iD, 10)) {
             throw new IllegalArgumentException();
         }
 
-		this.ID = iD;
+		if (!DataManager.getInstance().changeKey(this, () -> this.ID = iD)) throw new IllegalArgumentException();
 	}
 
 	private void setPoints(Integer points){
@@ -37,6 +57,7 @@ public class LoyaltyCard implements Serializable {
 
 	public boolean addPoints(Integer points) { 
 		if(points == null || this.points + points < 0) return false;
+		DataManager.getInstance().markDirty(this);
 		this.points += points;
 		return true;
 	}
@@ -46,6 +67,7 @@ public class LoyaltyCard implements Serializable {
 	}
 
 	public void addCustomer(Customer customer) { 
+		DataManager.getInstance().markDirty(this);
 		this.customer = customer;
 	}
 
@@ -1,10 +1,15 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.EZShop;
+import it.polito.ezshop.data.SnapshotCodec;
+
+public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit, SnapshotCodec.Entity {
+    private static final long serialVersionUID = 1L;
 
-public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit {
     private Integer orderId;
     private Double pricePerUnit;
     private Integer quantity;
@@ -22,6 +27,28 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
         setProductCode(product.getBarCode());
     }
 
+    public Order(SnapshotCodec.Reader in) throws IOException {
+        this.orderId = in.readNullableInteger();
+        this.pricePerUnit = in.readNullableDouble();
+        this.quantity = in.readNullableInteger();
+        in.readRef(ProductType.class, prod -> this.product = prod);
+        this.balanceId = in.readNullableInteger();
+        String status = in.readString();
+        this.status = status == null ? null : EOrderStatus.valueOf(status);
+        this.productCode = in.readString();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeNullable(this.orderId);
+        out.writeNullable(this.pricePerUnit);
+        out.writeNullable(this.quantity);
+        out.writeRef(this.product);
+        out.writeNullable(this.balanceId);
+        out.writeString(this.status == null ? null : this.status.name());
+        out.writeString(this.productCode);
+    }
+
     @Override
     public Integer getBalanceId() {
         return this.balanceId;
@@ -31,6 +58,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
     public void setBalanceId(Integer balanceId) {
         if(balanceId < 1)
             throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.balanceId = balanceId;
     }
 
@@ -42,6 +70,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
     @Override
     public void setProductCode(String code) {
         if (!EZShop.isValidBarcode(code)) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.productCode = code;
     }
 
@@ -57,6 +86,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
             throw new IllegalArgumentException();  
         }
 
+        DataManager.getInstance().markDirty(this);
         this.pricePerUnit = pricePerUnit;
     }
 
@@ -68,6 +98,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
     @Override
     public void setQuantity(int quantity) {
         if (quantity <= 0) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.quantity = quantity;
     }
 
@@ -82,6 +113,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
             throw new IllegalArgumentException();
         }
 
+        DataManager.getInstance().markDirty(this);
         this.status = EOrderStatus.valueOf(status.toUpperCase());
     }
 
@@ -93,7 +125,7 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
     @Override
     public void setOrderId(Integer orderId) {
         if (orderId < 1) throw new IllegalArgumentException();
-        this.orderId = orderId;
+        if (!DataManager.getInstance().changeKey(this, () -> this.orderId = orderId)) throw new IllegalArgumentException();
     }
 
     public ProductType getRelatedProduct(){
@@ -101,10 +133,12 @@ public class Order implements Serializable, it.polito.ezshop.data.Order, IDebit
     }
 
     public void setAsPayed(){
+        DataManager.getInstance().markDirty(this);
         this.status = EOrderStatus.PAYED;
     }
 
     public void setAsCompleted(){
+        DataManager.getInstance().markDirty(this);
         this.status = EOrderStatus.COMPLETED;
     }
 
@@ -1,11 +1,14 @@
 package it.polito.ezshop.model;
 //Simone
+import java.io.IOException;
 import java.io.Serializable;
 
 import it.polito.ezshop.data.*;
 
-public class Position implements Serializable{
+public class Position implements Serializable, SnapshotCodec.Entity {
 	
+	private static final long serialVersionUID = 1L;
+
 	private Integer aisleID;
 	private String rackID;
 	private Integer levelID;
@@ -19,6 +22,21 @@ public class Position implements Serializable{
 		this.assignToProduct(product);
 	}
 
+	public Position(SnapshotCodec.Reader in) throws IOException {
+		this.aisleID = in.readNullableInteger();
+		this.rackID = in.readString();
+		this.levelID = in.readNullableInteger();
+		in.readRef(ProductType.class, prod -> this.product = prod);
+	}
+
+	@Override
+	public void writeTo(SnapshotCodec.Writer out) throws IOException {
+		out.writeNullable(this.aisleID);
+		out.writeString(this.rackID);
+		out.writeNullable(this.levelID);
+		out.writeRef(this.product);
+	}
+
 	public Integer getAisleID() {
 		return aisleID;
 	}
@@ -27,6 +45,7 @@ public class Position implements Serializable{
 
 		if (aisleID == null || aisleID <= 0) throw new IllegalArgumentException();
 
+		DataManager.getInstance().markDirty(this);
 		this.aisleID = aisleID;
 		DataManager.getInstance().updatePosition(this);
 	}
@@ -39,6 +58,7 @@ public class Position implements Serializable{
 
 		if (rackID == null || rackID.isEmpty()) throw new IllegalArgumentException();
 
+		DataManager.getInstance().markDirty(this);
 		this.rackID = rackID;
 		DataManager.getInstance().updatePosition(this);
 	}
@@ -51,6 +71,7 @@ public class Position implements Serializable{
 		
 		if (levelID == null || levelID <= 0) throw new IllegalArgumentException();
 		
+		DataManager.getInstance().markDirty(this);
 		this.levelID = levelID;
 		DataManager.getInstance().updatePosition(this);
 	}
@@ -60,8 +81,8 @@ public class Position implements Serializable{
 	}
 
 	public void assignToProduct(ProductType product) {
+		DataManager.getInstance().markDirty(this);
 		this.product = product;
-		DataManager.getInstance().updatePosition(this);
 	}
 
 	@Override
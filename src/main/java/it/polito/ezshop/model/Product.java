@@ -1,10 +1,27 @@
 package it.polito.ezshop.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
-public class Product implements Serializable {
+import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.EZShop;
+import it.polito.ezshop.data.SnapshotCodec;
+
+public class Product implements Serializable, SnapshotCodec.Entity {
     
-    private String rfid;
+    private static final long serialVersionUID = 1L;
+
+    // Serialized with the RFID as a string, as it used to be kept
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("rfid", String.class),
+        new ObjectStreamField("relativeProductType", ProductType.class),
+        new ObjectStreamField("available", Boolean.TYPE)
+    };
+
+    private long rfid;
     private ProductType relativeProductType;
     private boolean available;
 
@@ -14,8 +31,28 @@ public class Product implements Serializable {
         this.available = true;
     }
 
+    // A product as stored, rebuilt by the store
+    public Product(long rfid, ProductType relProductType, boolean available) {
+        this.rfid = rfid;
+        this.relativeProductType = relProductType;
+        this.available = available;
+    }
+
+    public Product(SnapshotCodec.Reader in) throws IOException {
+        this.rfid = EZShop.parseRFID(in.readString());
+        in.readRef(ProductType.class, pt -> this.relativeProductType = pt);
+        this.available = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeString(getRFID());
+        out.writeRef(this.relativeProductType);
+        out.writeBoolean(this.available);
+    }
+
     public String getRFID() {
-        return this.rfid;
+        return EZShop.formatRFID(this.rfid);
     }
 
     public ProductType getRelativeProductType() {
@@ -23,6 +60,7 @@ public class Product implements Serializable {
     }
 
     public void setAvailable(boolean val) {
+        DataManager.getInstance().markDirty(this);
         this.available = val;
     }
 
@@ -31,11 +69,12 @@ public class Product implements Serializable {
     }
 
     public void setRFID(String rfid){
-        if(!it.polito.ezshop.data.EZShop.isValidRFID(rfid)) {
+        if(!EZShop.isValidRFID(rfid)) {
             throw new IllegalArgumentException();
         }
         
-        this.rfid = rfid;
+        DataManager.getInstance().markDirty(this);
+        this.rfid = EZShop.parseRFID(rfid);
     }
     
     public void setRelativeProductType(ProductType pt){
@@ -43,17 +82,35 @@ public class Product implements Serializable {
             throw new IllegalArgumentException();
         }
         
+        DataManager.getInstance().markDirty(this);
         this.relativeProductType = pt;
     }
     
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("rfid", getRFID());
+        fields.put("relativeProductType", this.relativeProductType);
+        fields.put("available", this.available);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+        ObjectInputStream.GetField fields = in.readFields();
+        this.rfid = EZShop.parseRFID((String)fields.get("rfid", null));
+        this.relativeProductType = (ProductType)fields.get("relativeProductType", null);
+        this.available = fields.get("available", false);
+    }
+
     @Override
     public int hashCode() {
-        return rfid.hashCode();
+        return Long.hashCode(rfid);
     }
 
     @Override
     public boolean equals(Object obj) {
-        return this.rfid.equals(((Product)obj).rfid);
+        return this.rfid == ((Product)obj).rfid;
     }
 
 }
@@ -0,0 +1,39 @@
+package it.polito.ezshop.model;
+
+import java.util.*;
+
+// RFID items of a sale or a return, grouped by their product type. Only the
+// items are persisted: the groups are built from them when first needed and
+// kept up to date by the owner afterwards.
+final class ProductGroups {
+
+    private final Map<it.polito.ezshop.data.ProductType, Set<Product>> groups;
+
+    ProductGroups(Collection<Product> products) {
+        groups = new HashMap<>();
+        products.forEach(this::add);
+    }
+
+    void add(Product prod) {
+        groups.computeIfAbsent(prod.getRelativeProductType(), type -> new HashSet<>()).add(prod);
+    }
+
+    void remove(Product prod) {
+
+        Set<Product> group = groups.get(prod.getRelativeProductType());
+        if (group != null && group.remove(prod) && group.isEmpty()) groups.remove(prod.getRelativeProductType());
+    }
+
+    Set<Product> get(it.polito.ezshop.data.ProductType type) {
+
+        Set<Product> group = groups.get(type);
+        return group == null ? Collections.emptySet() : Collections.unmodifiableSet(group);
+    }
+
+    int count(it.polito.ezshop.data.ProductType type) {
+
+        Set<Product> group = groups.get(type);
+        return group == null ? 0 : group.size();
+    }
+
+}
@@ -2,14 +2,18 @@ package it.polito.ezshop.model;
 
 import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.ProductType;
+import it.polito.ezshop.data.SnapshotCodec;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-public abstract class ProductList implements Serializable {
+public abstract class ProductList implements Serializable, SnapshotCodec.Entity {
+
+    private static final long serialVersionUID = 1L;
 
     protected Map<ProductType, Integer> products;
 
@@ -17,6 +21,26 @@ public abstract class ProductList implements Serializable {
         products = new HashMap<>();
     }
 
+    protected ProductList(SnapshotCodec.Reader in) throws IOException {
+
+        products = new HashMap<>();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            Integer quantity = in.readNullableInteger();
+            in.readRef(ProductType.class, product -> products.put(product, quantity));
+        }
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+
+        out.writeInt(products.size());
+        for (Map.Entry<ProductType, Integer> entry : products.entrySet()) {
+            out.writeNullable(entry.getValue());
+            out.writeRef(entry.getKey());
+        }
+    }
+
     public List<ProductType> getProductsList(){
         return products.keySet().stream().collect(Collectors.toList());
     }
@@ -35,16 +59,18 @@ public abstract class ProductList implements Serializable {
             throw new IllegalArgumentException();
         }
 
+        DataManager.getInstance().markDirty(this);
+
         if (!replace && products.containsKey(product))
             products.replace(product, products.get(product)+quantity);
         else
             products.put(product, quantity);
 
-        if (this instanceof Sale) {
-            DataManager.getInstance().updateSale((Sale)this);
-        } else if (this instanceof CReturn) {
-            DataManager.getInstance().updateReturn((CReturn)this);
-        }
+        changed();
+    }
+
+    // Called once the quantities have changed
+    protected void changed() {
     }
 
 }
@@ -1,15 +1,25 @@
 package it.polito.ezshop.model;
 //simone
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
 import it.polito.ezshop.data.*;
 
-public class ProductType implements Serializable, it.polito.ezshop.data.ProductType {
+public class ProductType implements Serializable, it.polito.ezshop.data.ProductType, SnapshotCodec.Entity, ChangeLog.Derived {
+
+	private static final long serialVersionUID = 1L;
+
+	// Changes whenever the price of any product type does, for the totals
+	// computed from them
+	private static final AtomicLong PRICES = new AtomicLong();
 
 	private int productId;
 	private String barcode;
+	// The bar code as parsed by Validators.parseGTIN, 0 until first needed
+	private transient volatile long barcodeValue;
 	private String description;
 	private Double selfPrice;
 	private int quantity;
@@ -28,6 +38,29 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 		this.setLocation(position);//position
 	}
 
+	public ProductType(SnapshotCodec.Reader in) throws IOException {
+		this.productId = in.readInt();
+		this.barcode = in.readString();
+		this.description = in.readString();
+		this.selfPrice = in.readNullableDouble();
+		this.quantity = in.readInt();
+		this.discountRate = in.readNullableDouble();
+		this.notes = in.readString();
+		in.readRef(Position.class, pos -> this.position = pos);
+	}
+
+	@Override
+	public void writeTo(SnapshotCodec.Writer out) throws IOException {
+		out.writeInt(this.productId);
+		out.writeString(this.barcode);
+		out.writeString(this.description);
+		out.writeNullable(this.selfPrice);
+		out.writeInt(this.quantity);
+		out.writeNullable(this.discountRate);
+		out.writeString(this.notes);
+		out.writeRef(this.position);
+	}
+
 	public Double getSelfPrice() {
 		return this.selfPrice;
 	}
@@ -80,8 +113,8 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
             throw new IllegalArgumentException();  
         }
 
+		DataManager.getInstance().markDirty(this);
 		this.discountRate = discountRate;
-		DataManager.getInstance().updateProductType(this);
 	}
 
 	@Override
@@ -89,8 +122,8 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 		
 		if (quantity < 0) throw new IllegalArgumentException();
 		
+		DataManager.getInstance().markDirty(this);
 		this.quantity = quantity;
-		DataManager.getInstance().updateProductType(this);
 	}
 
 
@@ -102,17 +135,14 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 				this.position.assignToProduct(null);
 			}
 
+			DataManager.getInstance().markDirty(this);
 			this.position = null;
 			return;
 		}
 
 		if (!(location.matches("[1-9][0-9]*-[a-zA-Z]+-[1-9][0-9]*"))) throw new IllegalArgumentException();
 		
-		Optional<Position> pos = DataManager.getInstance()
-			.getPositions()
-			.stream()
-			.filter(ps -> ps.toString().equals(location))
-			.findFirst();
+		Optional<Position> pos = DataManager.getInstance().findPositionByLocation(location);
 
 		Position assignTo = pos.orElse(null);
 		
@@ -130,14 +160,12 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 		if (assignTo.getAssignedProduct() != this && !assingToPosition(assignTo)) {
 			throw new IllegalArgumentException();
 		}
-		
-		DataManager.getInstance().updateProductType(this);
 	}
 
 	@Override
 	public void setNote(String note) {
+		DataManager.getInstance().markDirty(this);
 		this.notes=note;
-		DataManager.getInstance().updateProductType(this);
 	}
 
 	@Override
@@ -147,21 +175,32 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
             throw new IllegalArgumentException();
         }
 
+		DataManager.getInstance().markDirty(this);
 		this.description=productDescription;
-		DataManager.getInstance().updateProductType(this);
 
 	}
 
 	@Override
 	public void setBarCode(String barCode) {
 
-		if (!EZShop.isValidBarcode(barCode)) throw new IllegalArgumentException();
+		long value = Validators.parseGTIN(barCode);
+		if (value < 0) throw new IllegalArgumentException();
 
+		DataManager.getInstance().markDirty(this);
 		this.barcode=barCode;
+		this.barcodeValue = value;
 		DataManager.getInstance().updateProductType(this);
 
 	}
 
+	// The bar code as a number, for hashing and lookups: -1 if it is not valid
+	public long getBarCodeValue() {
+
+		long value = barcodeValue;
+		if (value == 0) barcodeValue = value = Validators.parseGTIN(barcode);
+		return value;
+	}
+
 	@Override
 	public void setPricePerUnit(Double pricePerUnit) {
 
@@ -169,16 +208,25 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
             throw new IllegalArgumentException();  
         }
 
+		DataManager.getInstance().markDirty(this);
 		this.selfPrice = pricePerUnit;
-		DataManager.getInstance().updateProductType(this);
+		PRICES.incrementAndGet();
+	}
 
+	static long pricesVersion() {
+		return PRICES.get();
+	}
+
+	@Override
+	public void stateRestored() {
+		PRICES.incrementAndGet();
+		barcodeValue = 0;
 	}
 
 	@Override
 	public void setId(Integer id) {
 		if (id <= 0) throw new IllegalArgumentException();
-		this.productId=id;
-		DataManager.getInstance().updateProductType(this);
+		if (!DataManager.getInstance().changeKey(this, () -> this.productId=id)) throw new IllegalArgumentException();
 
 	}
 
@@ -186,8 +234,8 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 
 		if (getQuantity() + quantity < 0) return false;
 
+		DataManager.getInstance().markDirty(this);
 		this.quantity+=quantity;
-		DataManager.getInstance().updateProductType(this);
 
 		return true;
 	}
@@ -202,6 +250,7 @@ public class ProductType implements Serializable, it.polito.ezshop.data.ProductT
 			pos.assignToProduct(null);
 		}
 		
+		DataManager.getInstance().markDirty(this);
 		this.position = pos;
 		pos.assignToProduct(this);
 		
@@ -1,9 +1,12 @@
 package it.polito.ezshop.model;
 
+import it.polito.ezshop.data.ChangeLog;
 import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.SaleTransaction;
+import it.polito.ezshop.data.SnapshotCodec;
 import it.polito.ezshop.data.TicketEntry;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -11,7 +14,11 @@ import java.util.stream.Collectors;
 import static it.polito.ezshop.data.EZShop.*;
 import static java.util.stream.Collectors.*;
 
-public class Sale extends ProductList implements SaleTransaction, ICredit {
+public class Sale extends ProductList implements SaleTransaction, ICredit, ChangeLog.Derived {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum PaymentMethod { CASH, CREDIT_CARD }
 
     private Integer ticketNumber;
     private LocalDate date;
@@ -22,6 +29,50 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
     private Set<CReturn> returnTransactions;
     private double price;
     private Set<Product> productRFIDs;
+    // Credit transaction that paid the sale, null while unpaid. The method is
+    // null for payments recorded before it was kept.
+    private Integer paymentId;
+    private PaymentMethod paymentMethod;
+    private transient Totals totals;
+    private transient Returns returns;
+    private transient ProductGroups rfidGroups;
+
+    // Prices worked out in one pass over the products and the RFIDs. Dropped
+    // by every change to them, and when any product type changes price.
+    private static final class Totals {
+
+        final long prices;
+        double price;
+        double originalPrice;
+
+        Totals(long prices) {
+            this.prices = prices;
+        }
+    }
+
+    // What the committed returns took back. Added to as each return is
+    // committed; worked out again only if a committed return changes.
+    private static final class Returns {
+
+        final Set<CReturn> counted = new HashSet<>();
+        final Map<it.polito.ezshop.data.ProductType, Integer> quantities = new HashMap<>();
+        // RFIDs of the sale returned, by product type
+        final Map<it.polito.ezshop.data.ProductType, Integer> rfids = new HashMap<>();
+        final Set<Product> products = new HashSet<>();
+
+        void add(CReturn ret, Sale sale) {
+
+            if (!counted.add(ret)) return;
+
+            for (it.polito.ezshop.data.ProductType prod : ret.getProductsList()) {
+                quantities.merge(prod, ret.getQuantityByProduct(prod), Integer::sum);
+            }
+
+            for (Product prod : ret.getProducRFIDs()) {
+                if (products.add(prod) && sale.containsProductRFID(prod)) rfids.merge(prod.getRelativeProductType(), 1, Integer::sum);
+            }
+        }
+    }
 
     public Sale(Integer ticketNumber, Double discountRate, LoyaltyCard loyaltyCard) {
         
@@ -38,6 +89,60 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
         this.productRFIDs = new HashSet<>();
     }
 
+    public Sale(SnapshotCodec.Reader in) throws IOException {
+
+        super(in);
+
+        this.productsDiscountRate = new HashMap<>();
+        this.returnTransactions = new HashSet<>();
+        this.productRFIDs = new HashSet<>();
+
+        this.ticketNumber = in.readNullableInteger();
+        this.date = in.readDate();
+        this.discountRate = in.readNullableDouble();
+        in.readRef(LoyaltyCard.class, card -> this.loyaltyCard = card);
+        this.committed = in.readBoolean();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            Double rate = in.readNullableDouble();
+            in.readRef(ProductType.class, product -> productsDiscountRate.put(product, rate));
+        }
+
+        in.readRefs(CReturn.class, returnTransactions::add);
+        this.price = in.readDouble();
+        in.readRefs(Product.class, productRFIDs::add);
+
+        if (in.version() >= 4) {
+            this.paymentId = in.readNullableInteger();
+            String method = in.readString();
+            this.paymentMethod = method == null ? null : PaymentMethod.valueOf(method);
+        }
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+
+        super.writeTo(out);
+
+        out.writeNullable(this.ticketNumber);
+        out.writeDate(this.date);
+        out.writeNullable(this.discountRate);
+        out.writeRef(this.loyaltyCard);
+        out.writeBoolean(this.committed);
+
+        out.writeInt(productsDiscountRate.size());
+        for (Map.Entry<ProductType, Double> entry : productsDiscountRate.entrySet()) {
+            out.writeNullable(entry.getValue());
+            out.writeRef(entry.getKey());
+        }
+
+        out.writeRefs(this.returnTransactions);
+        out.writeDouble(this.price);
+        out.writeRefs(this.productRFIDs);
+        out.writeNullable(this.paymentId);
+        out.writeString(this.paymentMethod == null ? null : this.paymentMethod.name());
+    }
+
 
     @Override
     public Integer getTicketNumber() {
@@ -49,8 +154,7 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
         
         if (ticketNumber < 1) throw new IllegalArgumentException();
 
-        this.ticketNumber = ticketNumber;
-        Update();
+        if (!DataManager.getInstance().changeKey(this, () -> this.ticketNumber = ticketNumber)) throw new IllegalArgumentException();
     }
 
     @Override
@@ -62,14 +166,9 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
 
                 @Override
                 public int getAmount() {
-                    int returnedCount = 0;
-
-                    returnedCount = (int)getProducRFIDs().stream()
-                        .filter(prod -> prod.getRelativeProductType().equals(p))
-                        .filter(prod -> isProductRFIDReturned(prod))
-                        .count();
 
-                    return getQuantityByProduct(p) - getReturnedQuantityByProduct((it.polito.ezshop.model.ProductType)p) - returnedCount;
+                    Returns returns = returns();
+                    return getQuantityByProduct(p) - returns.quantities.getOrDefault(p, 0) - returns.rfids.getOrDefault(p, 0);
                 }
 
                 @Override
@@ -131,25 +230,21 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
             throw new IllegalArgumentException();
 
         boolean isAnEntryWrong = entries.stream().anyMatch(te -> !DataManager.getInstance()
-            .getProductTypes()
-            .stream()
-            .map(ProductType::getBarCode)
-            .collect(toList())
-            .contains(te.getBarCode()));
+            .findProductTypeByBarCode(te.getBarCode())
+            .isPresent());
 
         if (isAnEntryWrong) throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         products = entries.stream()
             .collect(Collectors
                 .toMap(t -> DataManager
                         .getInstance()
-                        .getProductTypes()
-                        .stream()
-                        .filter(p -> p.getBarCode().equals(t.getBarCode()))
-                        .findFirst()
+                        .findProductTypeByBarCode(t.getBarCode())
                         .get(),
                     t -> t.getAmount()));
 
+        invalidateTotals();
     }
 
     @Override
@@ -164,32 +259,16 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
             throw new IllegalArgumentException();  
         } 
 
+        DataManager.getInstance().markDirty(this);
         this.discountRate = discountRate;
-        Update();
+        invalidateTotals();
     }
 
     @Override
     public double getPrice() {
         
         if (!Double.isNaN(this.price)) return this.price;
-
-        double price = 0.0;
-        for (it.polito.ezshop.data.ProductType prod : getProductsList()) {
-            it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
-
-            price += (xProd.getPricePerUnit() * (getQuantityByProduct(xProd) - getReturnedQuantityByProduct(xProd))) * (1 - getDiscountRateForProductGroup(xProd));
-        }
-
-        for (Product prod : getProducRFIDs()) {
-            it.polito.ezshop.model.ProductType relProdType = prod.getRelativeProductType();
-            
-            if (!isProductRFIDReturned(prod)) {
-                price += relProdType.getPricePerUnit() * (1- getDiscountRateForProductGroup(relProdType));
-            }
-        }
-
-        price *= (1-getDiscountRate());
-        return getRightDoublePrecision(price);
+        return totals().price;
     }
 
     @Override
@@ -198,26 +277,97 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
         if (price < 0.0)
             throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         this.price = price;
-        Update();
     }
 
     public double getOriginalSalePrice() {
-        
+        return totals().originalPrice;
+    }
+
+    // Same sums, in the same order, as when they were worked out on every
+    // call, with the per-product counts looked up instead of counted again
+    private synchronized Totals totals() {
+
+        Totals totals = this.totals;
+        if (totals != null && totals.prices == ProductType.pricesVersion()) return totals;
+
+        totals = new Totals(ProductType.pricesVersion());
+        Returns returns = returns();
+
         double price = 0.0;
-        for (it.polito.ezshop.data.ProductType prod : getProductsList()) {
+        double originalPrice = 0.0;
+        for (it.polito.ezshop.data.ProductType prod : products.keySet()) {
             it.polito.ezshop.model.ProductType xProd = (it.polito.ezshop.model.ProductType)prod;
 
-            price += (xProd.getPricePerUnit() * getQuantityByProduct(xProd))*(1 - getDiscountRateForProductGroup(xProd));
+            int quantity = getQuantityByProduct(xProd);
+            price += (xProd.getPricePerUnit() * (quantity - returns.quantities.getOrDefault(xProd, 0))) * (1 - getDiscountRateForProductGroup(xProd));
+            originalPrice += (xProd.getPricePerUnit() * quantity)*(1 - getDiscountRateForProductGroup(xProd));
         }
 
-        for (Product prod : getProducRFIDs()) {
+        for (Product prod : productRFIDs) {
             it.polito.ezshop.model.ProductType relProdType = prod.getRelativeProductType();
-            price += relProdType.getPricePerUnit() * (1- getDiscountRateForProductGroup(relProdType));
+
+            if (!returns.products.contains(prod)) {
+                price += relProdType.getPricePerUnit() * (1- getDiscountRateForProductGroup(relProdType));
+            }
+            originalPrice += relProdType.getPricePerUnit() * (1- getDiscountRateForProductGroup(relProdType));
+        }
+
+        price *= (1-getDiscountRate());
+        originalPrice *= 1 - getDiscountRate();
+        totals.price = getRightDoublePrecision(price);
+        totals.originalPrice = getRightDoublePrecision(originalPrice);
+
+        this.totals = totals;
+        return totals;
+    }
+
+    // Called after every change the totals depend on
+    synchronized void invalidateTotals() {
+        this.totals = null;
+    }
+
+    private synchronized Returns returns() {
+
+        if (returns == null) {
+            returns = new Returns();
+            for (CReturn ret : returnTransactions) {
+                if (ret.isCommitted()) returns.add(ret, this);
+            }
         }
 
-        price *= 1 - getDiscountRate();
-        return getRightDoublePrecision(price);
+        return returns;
+    }
+
+    // Called by a return of this sale once it is committed
+    synchronized void returnCommitted(CReturn ret) {
+
+        if (returns != null) returns.add(ret, this);
+        this.totals = null;
+    }
+
+    // Called after a change to a committed return, or to the RFIDs sold
+    synchronized void invalidateReturns() {
+        this.returns = null;
+        this.totals = null;
+    }
+
+    @Override
+    protected void changed() {
+        invalidateTotals();
+    }
+
+    private synchronized ProductGroups rfidGroups() {
+
+        if (rfidGroups == null) rfidGroups = new ProductGroups(productRFIDs);
+        return rfidGroups;
+    }
+
+    @Override
+    public synchronized void stateRestored() {
+        rfidGroups = null;
+        invalidateReturns();
     }
 
     public double getDiscountRateForProductGroup(ProductType product){
@@ -228,8 +378,9 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
 
         if (returnT == null || returnTransactions.contains(returnT)) throw new IllegalArgumentException();
 
+        DataManager.getInstance().markDirty(this);
         returnTransactions.add(returnT);
-        Update();
+        if (returnT.isCommitted()) invalidateReturns();
     }
 
     public void applyDiscountRateToProductGroup(ProductType product, double discountRate) {
@@ -238,18 +389,19 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
             throw new IllegalArgumentException();  
         }
         
+        DataManager.getInstance().markDirty(this);
+
         if (productsDiscountRate.containsKey(product)) {
         	  this.productsDiscountRate.replace(product, discountRate);
         } else {
         	 this.productsDiscountRate.put(product, discountRate);
         }
-        
-        Update();
+        invalidateTotals();
     }
 
     public void attachLoyaltyCard(LoyaltyCard loyaltyCard){
+        DataManager.getInstance().markDirty(this);
         this.loyaltyCard = loyaltyCard;
-        Update();
     }
 
     public LoyaltyCard getAttachedLoyaltyCard(){
@@ -257,13 +409,27 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
     }
 
     public void setAsCommitted(){
+        DataManager.getInstance().markDirty(this);
         this.committed = true;
-        Update();
     }
 
     public boolean isCommitted(){
         return this.committed;
     }
+
+    public void setPayment(Integer balanceId, PaymentMethod method) {
+        DataManager.getInstance().markDirty(this);
+        this.paymentId = balanceId;
+        this.paymentMethod = method;
+    }
+
+    public Integer getPaymentId() {
+        return this.paymentId;
+    }
+
+    public PaymentMethod getPaymentMethod() {
+        return this.paymentMethod;
+    }
     
     @Override
     public Double getTotalValue() {
@@ -272,7 +438,7 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
 
     @Override
     public Integer getQuantityByProduct(it.polito.ezshop.data.ProductType product) {
-        return super.getQuantityByProduct(product) + (int)getProducRFIDs().stream().filter(p -> p.getRelativeProductType().equals(product)).count();
+        return super.getQuantityByProduct(product) + rfidGroups().count(product);
     }
     
     public LocalDate getDate(){
@@ -280,11 +446,33 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
     }
 
     public boolean addProductRFID(Product prod) {
-        return this.productRFIDs.add(prod);
+
+        DataManager.getInstance().markDirty(this);
+        synchronized (this) {
+            boolean added = this.productRFIDs.add(prod);
+            if (added) rfidGroups().add(prod);
+            invalidateReturns();
+            return added;
+        }
     }
 
     public boolean deleteProductRFID(Product prod) {
-        return this.productRFIDs.remove(prod);
+
+        DataManager.getInstance().markDirty(this);
+        synchronized (this) {
+            boolean deleted = this.productRFIDs.remove(prod);
+            if (deleted) rfidGroups().remove(prod);
+            invalidateReturns();
+            return deleted;
+        }
+    }
+
+    public boolean containsProductRFID(Product prod) {
+        return this.productRFIDs.contains(prod);
+    }
+
+    public Set<Product> getProductRFIDsByType(it.polito.ezshop.data.ProductType type) {
+        return rfidGroups().get(type);
     }
 
     public List<Product> getProducRFIDs() {
@@ -303,24 +491,12 @@ public class Sale extends ProductList implements SaleTransaction, ICredit {
         return this.getTicketNumber() == ((Sale)obj).getTicketNumber();
     }
     
-    private void Update() {
-        DataManager.getInstance().updateSale(this);
-    }
-    
     public int getReturnedQuantityByProduct(ProductType xProd) {
-        
-        return returnTransactions.stream()
-            .filter(ret -> ret.isCommitted())
-            .filter(ret -> ret.getProductsList().contains(xProd))
-            .mapToInt(ret -> ret.getQuantityByProduct(xProd))
-            .sum();  
+        return returns().quantities.getOrDefault(xProd, 0);
     }
 
     public boolean isProductRFIDReturned(Product prod) {
-
-        return returnTransactions.stream()
-            .filter(ret -> ret.isCommitted())
-            .anyMatch(ret -> ret.getProducRFIDs().contains(prod));
+        return returns().products.contains(prod);
     }
 
 }
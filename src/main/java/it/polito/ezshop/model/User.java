@@ -1,10 +1,13 @@
 package it.polito.ezshop.model;
 //Simone
+import java.io.IOException;
 import java.io.Serializable;
 import it.polito.ezshop.data.*;
 
-public class User implements Serializable, it.polito.ezshop.data.User {
+public class User implements Serializable, it.polito.ezshop.data.User, SnapshotCodec.Entity {
     
+    private static final long serialVersionUID = 1L;
+
     private int id;
     private String username;
     private String password;
@@ -17,6 +20,21 @@ public class User implements Serializable, it.polito.ezshop.data.User {
         setRole(role);
     }
 
+    public User(SnapshotCodec.Reader in) throws IOException {
+        this.id = in.readInt();
+        this.username = in.readString();
+        this.password = in.readString();
+        this.role = in.readString();
+    }
+
+    @Override
+    public void writeTo(SnapshotCodec.Writer out) throws IOException {
+        out.writeInt(this.id);
+        out.writeString(this.username);
+        out.writeString(this.password);
+        out.writeString(this.role);
+    }
+
     @Override
     public String getPassword() {
         return this.password;
@@ -40,15 +58,14 @@ public class User implements Serializable, it.polito.ezshop.data.User {
     @Override
     public void setId(Integer id) {
         if (id <= 0) throw new IllegalArgumentException();
-        this.id = id;
-        DataManager.getInstance().updateUser(this);
+        if (!DataManager.getInstance().changeKey(this, () -> this.id = id)) throw new IllegalArgumentException();
     }
 
     @Override
     public void setPassword(String password) {
         if (password == null || password.isEmpty()) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.password = password;
-        DataManager.getInstance().updateUser(this);
     }
 
     @Override
@@ -57,13 +74,14 @@ public class User implements Serializable, it.polito.ezshop.data.User {
             throw new IllegalArgumentException();
         }
 
+        DataManager.getInstance().markDirty(this);
         this.role = role;
-        DataManager.getInstance().updateUser(this);
     }
 
     @Override
     public void setUsername(String username) {
         if (username == null || username.isEmpty()) throw new IllegalArgumentException();
+        DataManager.getInstance().markDirty(this);
         this.username = username;
         DataManager.getInstance().updateUser(this);
     }
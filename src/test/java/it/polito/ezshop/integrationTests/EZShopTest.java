@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import java.nio.file.*;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.io.FileWriter;
@@ -15,17 +16,22 @@ import static java.util.stream.Collectors.*;
 import org.junit.*;
 import it.polito.ezshop.model.*;
 import it.polito.ezshop.data.BalanceOperation;
+import it.polito.ezshop.data.CardSystemGateway;
+import it.polito.ezshop.data.CreditCardSystem;
 import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.EZShop;
 import it.polito.ezshop.data.EZShopInterface;
 import it.polito.ezshop.data.LoginManager;
+import it.polito.ezshop.data.PaymentGateway;
 import it.polito.ezshop.data.RightsManager;
+import it.polito.ezshop.data.SimulatedGateway;
 import it.polito.ezshop.data.TicketEntry;
 import it.polito.ezshop.exceptions.*;
 
 public class EZShopTest {
     
     private List<String> lines = new ArrayList<>();
+    private byte[] journal;
 
     @Before
     @After
@@ -84,6 +90,7 @@ public class EZShopTest {
             DataManager.getInstance().deleteProduct(p);
         }
 
+        DataManager.getInstance().resetSequences();
     }
 
     @Before 
@@ -91,6 +98,10 @@ public class EZShopTest {
         Stream<String> stream = Files.lines(Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt"));
         this.lines = stream.collect(toList());
         stream.close();
+
+        // The changes not written to the file yet
+        Path journal = Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt.journal");
+        this.journal = Files.exists(journal) ? Files.readAllBytes(journal) : null;
     }
 
     @After
@@ -109,6 +120,10 @@ public class EZShopTest {
         }
 
         writer.close();
+
+        Path journal = Paths.get("src/main/java/it/polito/ezshop/utils/CreditCards.txt.journal");
+        if (this.journal != null) Files.write(journal, this.journal);
+        else Files.deleteIfExists(journal);
     }
 
     @Test
@@ -395,6 +410,71 @@ public class EZShopTest {
         assertEquals(-1, ez.returnCreditCardPayment(123, "9254347527611304"), 0.01);
     }
 
+    @Test
+    public void testSalePaidOnlyOnce() throws Exception {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        EZShopInterface ez = new EZShop();
+
+        Integer prodId = ez.createProductType("test", "1231231231232", 2.0, "");
+        ez.updatePosition(prodId, "1-a-1");
+        ez.updateQuantity(prodId, 5);
+
+        Integer saleTrans = ez.startSaleTransaction();
+        ez.addProductToSale(saleTrans, "1231231231232", 3);
+        ez.endSaleTransaction(saleTrans);
+
+        assertEquals(4.0, ez.receiveCashPayment(saleTrans, 10), 0.01);
+        assertEquals(-1, ez.receiveCashPayment(saleTrans, 10), 0.01);
+        assertFalse(ez.receiveCreditCardPayment(saleTrans, "4485370086510891"));
+        assertEquals(1, ez.getCreditsAndDebits(null, null).size());
+
+        Sale s = DataManager.getInstance().findSaleById(saleTrans).get();
+        assertEquals(Sale.PaymentMethod.CASH, s.getPaymentMethod());
+        assertFalse(ez.deleteSaleTransaction(saleTrans));
+    }
+
+    @Test
+    public void testCardChargeCancelledWhenNotRecorded() throws Exception {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        EZShop ez = new EZShop();
+
+        Integer prodId = ez.createProductType("test", "1231231231232", 2.0, "");
+        ez.updatePosition(prodId, "1-a-1");
+        ez.updateQuantity(prodId, 5);
+
+        Integer saleTrans = ez.startSaleTransaction();
+        ez.addProductToSale(saleTrans, "1231231231232", 3);
+        ez.endSaleTransaction(saleTrans);
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        try {
+            Files.write(cards, "4485370086510891;150.00".getBytes());
+            CreditCardSystem system = new CreditCardSystem(cards);
+            EZShop till = new EZShop(null, new SimulatedGateway(new CardSystemGateway(system), 100, 100, 0.0, 1));
+
+            CompletableFuture<Boolean> paid = till.receiveCreditCardPaymentAsync(saleTrans, "4485370086510891");
+            // Paid in cash while the card is charged
+            assertEquals(4.0, ez.receiveCashPayment(saleTrans, 10), 0.01);
+            assertFalse(paid.join());
+
+            // Given back, and charged again if paid again with the same key
+            assertTrue(system.hasEnoughBalance("4485370086510891", 150.0));
+            assertFalse(system.isSettled("sale-" + saleTrans));
+            assertEquals(Sale.PaymentMethod.CASH, DataManager.getInstance().findSaleById(saleTrans).get().getPaymentMethod());
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(Paths.get(cards + ".journal"));
+        }
+    }
+
     @Test
     public void testReturnCreditCardPayamentWithRightsAndEverythingCorrect() throws UnauthorizedException, InvalidTransactionIdException, InvalidPaymentException, InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, InvalidQuantityException, InvalidProductIdException, InvalidLocationException, InvalidCreditCardException {
 
@@ -430,6 +510,73 @@ public class EZShopTest {
 
     }
 
+    @Test
+    public void testReturnPaidBackOnce() throws Exception {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        EZShopInterface ez = new EZShop();
+
+        Integer prodId = ez.createProductType("test", "1231231231232", 2.0, "");
+        ez.updatePosition(prodId, "1-a-1");
+        ez.updateQuantity(prodId, 5);
+
+        Integer saleTrans = ez.startSaleTransaction();
+        ez.addProductToSale(saleTrans, "1231231231232", 3);
+        ez.endSaleTransaction(saleTrans);
+        ez.receiveCashPayment(saleTrans, ez.getSaleTransaction(saleTrans).getPrice());
+
+        Integer returnTrans = ez.startReturnTransaction(saleTrans);
+        ez.returnProduct(returnTrans, "1231231231232", 2);
+        ez.endReturnTransaction(returnTrans, true);
+
+        assertEquals(4.0, ez.returnCreditCardPayment(returnTrans, "9254347527611304"), 0.01);
+        Integer balanceId = DataManager.getInstance().findReturnById(returnTrans).get().getBalanceId();
+
+        // Neither booked again nor given to the card again
+        assertEquals(-1, ez.returnCreditCardPayment(returnTrans, "9254347527611304"), 0.01);
+        assertEquals(-1, ez.returnCashPayment(returnTrans), 0.01);
+        assertEquals(2, ez.getCreditsAndDebits(null, null).size());
+        assertEquals(balanceId, DataManager.getInstance().findReturnById(returnTrans).get().getBalanceId());
+        assertFalse(CreditCardSystem.getInstance().hasEnoughBalance("9254347527611304", 15.51));
+    }
+
+    @Test
+    public void testReturnCreditCardPaymentGatewayFailing() throws UnauthorizedException, InvalidTransactionIdException, InvalidPaymentException, InvalidProductDescriptionException, InvalidProductCodeException, InvalidPricePerUnitException, InvalidQuantityException, InvalidProductIdException, InvalidLocationException, InvalidCreditCardException {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        EZShop ez = new EZShop();
+
+        Integer prodId = ez.createProductType("test", "1231231231232", 2.0, "");
+        ez.updatePosition(prodId, "1-a-1");
+        ez.updateQuantity(prodId, 5);
+
+        Integer saleTrans = ez.startSaleTransaction();
+        ez.addProductToSale(saleTrans, "1231231231232", 3);
+        ez.endSaleTransaction(saleTrans);
+        ez.receiveCashPayment(saleTrans, ez.getSaleTransaction(saleTrans).getPrice());
+
+        Integer returnTrans = ez.startReturnTransaction(saleTrans);
+        ez.returnProduct(returnTrans, "1231231231232", 2);
+        ez.endReturnTransaction(returnTrans, true);
+
+        int operations = ez.getCreditsAndDebits(null, null).size();
+        Integer balanceId = DataManager.getInstance().findReturnById(returnTrans).get().getBalanceId();
+
+        EZShop failing = new EZShop(null, new SimulatedGateway(CardSystemGateway.getInstance(), 0, 0, 1.0, 1));
+        assertEquals(-1.0, failing.returnCreditCardPaymentAsync(returnTrans, "9254347527611304").join(), 0.0);
+
+        // Neither the refund nor the return pointing to it are left
+        assertEquals(operations, ez.getCreditsAndDebits(null, null).size());
+        assertEquals(balanceId, DataManager.getInstance().findReturnById(returnTrans).get().getBalanceId());
+        assertEquals(0.0, ez.computeBalance() - 6.0, 0.01);
+    }
+
     @Test 
     public void testReset(){
         User u = new User(1, "TenaciousD", "stepnyevadeilfisco", "ShopManager");
@@ -758,6 +905,35 @@ public class EZShopTest {
         assertTrue(ez.receiveCreditCardPayment(1, "4485370086510891"));
     }
 
+    @Test
+    public void testReceiveCreditCardPaymentAsync() throws InvalidCreditCardException, InvalidTransactionIdException, UnauthorizedException {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        Sale s = new Sale(1, 0.0, null);
+        ProductType p = new ProductType(36, "1231231231232", "test", 1.5, 3, 0.0, "", "1-a-1");
+        s.addProduct(p,1);
+        DataManager.getInstance().insertSale(s);
+        new EZShop().endSaleTransaction(1);
+
+        EZShop failing = new EZShop(null, new SimulatedGateway(CardSystemGateway.getInstance(), 0, 0, 1.0, 1));
+        assertFalse(failing.receiveCreditCardPaymentAsync(1, "4485370086510891").join());
+        assertFalse(DataManager.getInstance().findPaymentBySale(s).isPresent());
+
+        // Two tills paying the same sale: the card is charged once
+        PaymentGateway gateway = new SimulatedGateway(CardSystemGateway.getInstance(), 20, 40, 0.0, 1);
+        CompletableFuture<Boolean> first = new EZShop(null, gateway).receiveCreditCardPaymentAsync(1, "4485370086510891");
+        CompletableFuture<Boolean> second = new EZShop(null, gateway).receiveCreditCardPaymentAsync(1, "4485370086510891");
+        assertFalse(first.isDone());
+
+        assertTrue(first.join() ^ second.join());
+        assertTrue(DataManager.getInstance().findPaymentBySale(s).isPresent());
+        assertTrue(CreditCardSystem.getInstance().hasEnoughBalance("4485370086510891", 148.5));
+        assertFalse(CreditCardSystem.getInstance().hasEnoughBalance("4485370086510891", 148.51));
+    }
+
     //recordOrderArrival()
 
     @Test
@@ -1938,6 +2114,31 @@ public class EZShopTest {
         assertEquals(1, (res.stream().filter(b -> b.getType() == "DEBIT" && b.getMoney() == 50).count()));
     }
 
+    @Test
+    public void testGetCreditsAndDebitsByPage() throws Exception {
+
+        User u = new User(1, "ciao", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u);
+        LoginManager.getInstance().tryLogin("ciao", "pwd");
+
+        EZShop ez = new EZShop();
+        for (int i = 1; i <= 5; i++) {
+            ez.recordBalanceUpdate(i);
+        }
+
+        List<BalanceOperation> all = ez.getCreditsAndDebits(null, null);
+        List<BalanceOperation> paged = new ArrayList<>();
+        List<BalanceOperation> page = ez.getCreditsAndDebits(null, null, null, 2);
+        while (!page.isEmpty()) {
+            paged.addAll(page);
+            page = ez.getCreditsAndDebits(null, null, page.get(page.size() - 1), 2);
+        }
+
+        assertEquals(5, paged.size());
+        assertEquals(all, paged);
+        assertEquals(0, ez.getCreditsAndDebits(null, LocalDate.now().minusDays(1), null, 2).size());
+    }
+
     @Test
     public void testComputePointsForSaleWithoutLoggedUser() {
         EZShopInterface ez = new EZShop();
@@ -3144,6 +3345,35 @@ public class EZShopTest {
 
     }
 
+    @Test
+    public void testLoginSessionPerInstance() throws InvalidUsernameException, InvalidPasswordException, UnauthorizedException {
+
+        User manager = new User(1, "manager", "pwd", "ShopManager");
+        User cashier = new User(2, "cashier", "pwd", "Cashier");
+        DataManager.getInstance().insertUser(manager);
+        DataManager.getInstance().insertUser(cashier);
+
+        EZShop till1 = new EZShop();
+        EZShop till2 = new EZShop();
+        assertEquals(manager, till1.login("manager", "pwd"));
+        assertEquals(cashier, till2.login("cashier", "pwd"));
+        assertFalse(LoginManager.getInstance().isUserLogged());
+
+        assertTrue(till1.recordBalanceUpdate(10.0));
+        assertThrows(UnauthorizedException.class, () -> till2.recordBalanceUpdate(10.0));
+
+        // A session can be picked up by token from another instance
+        EZShop till3 = new EZShop(LoginManager.getInstance().findSession(till1.getSession().getToken()).get());
+        assertTrue(till3.recordBalanceUpdate(5.0));
+
+        assertTrue(till2.logout());
+        assertTrue(till1.recordBalanceUpdate(1.0));
+        assertThrows(UnauthorizedException.class, () -> till2.recordBalanceUpdate(10.0));
+
+        assertTrue(till1.logout());
+        assertThrows(UnauthorizedException.class, () -> till3.recordBalanceUpdate(10.0));
+    }
+
     @Test
     public void testCreateProductTypeCashier() {
 
@@ -4555,7 +4785,7 @@ public class EZShopTest {
         DataManager.getInstance().insertUser(u);
         LoginManager.getInstance().tryLogin("ciao", "pwd");
 
-        User u2 = new User(7, "ciao", "pwd", "Cashier");
+        User u2 = new User(7, "ciao2", "pwd", "Cashier");
         DataManager.getInstance().insertUser(u2);
 
         EZShopInterface ez = new EZShop();
@@ -4728,6 +4958,7 @@ public class EZShopTest {
 
         assertThrows(InvalidRFIDException.class,() -> ez.recordOrderArrivalRFID(1, "a"));
         assertThrows(InvalidRFIDException.class,() -> ez.recordOrderArrivalRFID(1, "4"));
+        assertThrows(InvalidRFIDException.class,() -> ez.recordOrderArrivalRFID(1, "999999999990"));
     }
 
     @Test
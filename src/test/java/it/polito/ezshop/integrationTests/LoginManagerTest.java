@@ -12,6 +12,7 @@ import org.junit.Test;
 import it.polito.ezshop.model.User;
 import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.LoginManager;
+import it.polito.ezshop.data.Session;
 
 public class LoginManagerTest {
     
@@ -133,6 +134,32 @@ public class LoginManagerTest {
         assertTrue(LoginManager.getInstance().tryLogin("ciao", "pwd"));
         assertEquals(u, LoginManager.getInstance().getLoggedUser());
     }
-    
+
+    @Test
+    public void testLoginManagerOpenSessions() {
+        User u1 = new User(1, "ciao", "pwd", "Cashier");
+        User u2 = new User(2, "ciao2", "pwd", "ShopManager");
+        DataManager.getInstance().insertUser(u1);
+        DataManager.getInstance().insertUser(u2);
+
+        assertNull(LoginManager.getInstance().openSession("ciao", "wrong"));
+
+        Session s1 = LoginManager.getInstance().openSession("ciao", "pwd");
+        Session s2 = LoginManager.getInstance().openSession("ciao2", "pwd");
+
+        assertEquals(u1, s1.getUser());
+        assertEquals(u2, s2.getUser());
+        assertFalse(s1.getToken().equals(s2.getToken()));
+        assertEquals(s2, LoginManager.getInstance().findSession(s2.getToken()).get());
+        assertFalse(LoginManager.getInstance().isUserLogged());
+
+        assertTrue(LoginManager.getInstance().closeSession(s1));
+        assertFalse(LoginManager.getInstance().closeSession(s1));
+        assertFalse(s1.isOpen());
+        assertTrue(s2.isOpen());
+        assertFalse(LoginManager.getInstance().findSession(s1.getToken()).isPresent());
+
+        assertTrue(LoginManager.getInstance().closeSession(s2));
+    }
 
 }
@@ -66,4 +66,68 @@ public class ProductTest {
         assertEquals(false, p.isAvailable());
     }
 
+    @Test
+    public void testProductsByRFID() {
+
+        ProductType pt = new ProductType(1, "1231231231232", "des", 0.4, 2, 0.0, "not", null);
+        DataManager.getInstance().insertProductType(pt);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(DataManager.getInstance().insertProduct(new Product(String.format("%012d", 999999999000L + i), pt)));
+        }
+        assertFalse(DataManager.getInstance().insertProduct(new Product("999999999500", pt)));
+        assertEquals(1000, DataManager.getInstance().getProducts().size());
+
+        Product p = DataManager.getInstance().findProductByRFID("999999999999").get();
+        assertEquals("999999999999", p.getRFID());
+        assertEquals(new Product("999999999999", pt), p);
+        assertEquals(new Product("999999999999", pt).hashCode(), p.hashCode());
+        assertFalse(DataManager.getInstance().findProductByRFID("99999999999").isPresent());
+        assertFalse(DataManager.getInstance().findProductByRFID("000000000000").isPresent());
+
+        // Deleted and inserted again, among the others
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(DataManager.getInstance().deleteProduct(DataManager.getInstance().findProductByRFID(String.format("%012d", 999999999000L + i)).get()));
+        }
+        assertEquals(500, DataManager.getInstance().getProducts().size());
+        assertFalse(DataManager.getInstance().findProductByRFID("999999999000").isPresent());
+        assertTrue(DataManager.getInstance().findProductByRFID("999999999001").isPresent());
+        assertTrue(DataManager.getInstance().anyProductInRFIDRange(999999999000L, 2));
+        assertFalse(DataManager.getInstance().anyProductInRFIDRange(999999999000L, 1));
+
+        assertTrue(DataManager.getInstance().insertProduct(new Product("999999999000", pt)));
+        assertTrue(DataManager.getInstance().findProductByRFID("999999999000").isPresent());
+        assertEquals(501, DataManager.getInstance().getProducts().size());
+    }
+
+    @Test
+    public void testProductsStoredAsValues() {
+
+        ProductType pt = new ProductType(1, "1231231231232", "des", 0.4, 2, 0.0, "not", null);
+        ProductType other = new ProductType(2, "12345678901231", "des", 0.4, 2, 0.0, "not", null);
+        DataManager.getInstance().insertProductType(pt);
+        DataManager.getInstance().insertProductType(other);
+
+        assertTrue(DataManager.getInstance().insertProduct(new Product("000000000001", pt)));
+        assertTrue(DataManager.getInstance().insertProduct(new Product("000000000002", other)));
+
+        // Stored only once updated
+        Product p = DataManager.getInstance().findProductByRFID("000000000001").get();
+        p.setAvailable(false);
+        assertTrue(DataManager.getInstance().findProductByRFID("000000000001").get().isAvailable());
+        assertTrue(DataManager.getInstance().updateProduct(p));
+        assertFalse(DataManager.getInstance().findProductByRFID("000000000001").get().isAvailable());
+        assertSame(pt, DataManager.getInstance().findProductByRFID("000000000001").get().getRelativeProductType());
+        assertSame(other, DataManager.getInstance().findProductByRFID("000000000002").get().getRelativeProductType());
+
+        DataManager.getInstance().beginTransaction();
+        p.setAvailable(true);
+        DataManager.getInstance().updateProduct(p);
+        assertTrue(DataManager.getInstance().findProductByRFID("000000000001").get().isAvailable());
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertFalse(DataManager.getInstance().findProductByRFID("000000000001").get().isAvailable());
+    }
+
 }
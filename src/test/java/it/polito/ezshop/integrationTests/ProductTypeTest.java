@@ -2,6 +2,7 @@ package it.polito.ezshop.integrationTests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -54,6 +55,27 @@ public class ProductTypeTest {
         assertEquals(expectedPos, p.getAssignedPosition());
     }
 
+    @Test
+    public void testBarCodeValue() {
+
+        ProductType p = new ProductType(36, "1231231231232", "test", 1.4, 1, 0.0, "", "1-a-1");
+        assertEquals(11231231231232L, p.getBarCodeValue());
+
+        DataManager.getInstance().insertProductType(p);
+        DataManager.getInstance().beginTransaction();
+        p.setBarCode("999999999993");
+        assertSame(p, DataManager.getInstance().findProductTypeByBarCode("999999999993").get());
+        assertEquals(1999999999993L, p.getBarCodeValue());
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertEquals(11231231231232L, p.getBarCodeValue());
+        assertSame(p, DataManager.getInstance().findProductTypeByBarCode("1231231231232").get());
+        assertFalse(DataManager.getInstance().findProductTypeByBarCode("999999999993").isPresent());
+        assertFalse(DataManager.getInstance().findProductTypeByBarCode("01231231231232").isPresent());
+        assertFalse(DataManager.getInstance().findProductTypeByBarCode("asd").isPresent());
+    }
+
     @Test
     public void testProductTypeConstructorInvalidID0() {
         assertThrows(IllegalArgumentException.class, () -> {
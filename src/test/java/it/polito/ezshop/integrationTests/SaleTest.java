@@ -4,6 +4,7 @@ import it.polito.ezshop.data.DataManager;
 import it.polito.ezshop.data.TicketEntry;
 import it.polito.ezshop.model.LoyaltyCard;
 import it.polito.ezshop.model.Position;
+import it.polito.ezshop.model.Product;
 import it.polito.ezshop.model.ProductType;
 import it.polito.ezshop.model.Sale;
 import it.polito.ezshop.model.CReturn;
@@ -48,6 +49,133 @@ public class SaleTest {
         assertEquals(0.0, s.getTotalValue(), 0.005);
     }
 
+    @Test
+    public void testTotalsFollowChanges() {
+
+        ProductType pt = new ProductType(1, "1231231231232", "test", 2.0, 10, 0.0, "", null);
+        DataManager.getInstance().insertProductType(pt);
+
+        Sale s = new Sale(1, 0.0, null);
+        DataManager.getInstance().insertSale(s);
+        s.addProduct(pt, 3);
+        assertEquals(6.0, s.getPrice(), 0.005);
+
+        s.addProduct(pt, 2);
+        assertEquals(10.0, s.getPrice(), 0.005);
+
+        s.applyDiscountRateToProductGroup(pt, 0.5);
+        assertEquals(5.0, s.getPrice(), 0.005);
+
+        s.setDiscountRate(0.2);
+        assertEquals(4.0, s.getPrice(), 0.005);
+
+        pt.setPricePerUnit(4.0);
+        assertEquals(8.0, s.getPrice(), 0.005);
+        assertEquals(8.0, s.getTotalValue(), 0.005);
+
+        // Counted once committed
+        CReturn r = new CReturn(1, s);
+        r.addProduct(pt, 1);
+        assertEquals(8.0, s.getPrice(), 0.005);
+        assertEquals(5, s.getEntries().get(0).getAmount());
+
+        r.setAsCommitted();
+        assertEquals(6.4, s.getPrice(), 0.005);
+        assertEquals(8.0, s.getTotalValue(), 0.005);
+        assertEquals(1, s.getReturnedQuantityByProduct(pt));
+        assertEquals(4, s.getEntries().get(0).getAmount());
+
+        DataManager.getInstance().beginTransaction();
+        s.addProduct(pt, 5);
+        assertEquals(14.4, s.getPrice(), 0.005);
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+        assertEquals(6.4, s.getPrice(), 0.005);
+    }
+
+    @Test
+    public void testReturnsCountedOnCommit() {
+
+        ProductType pt = new ProductType(1, "1231231231232", "test", 2.0, 10, 0.0, "", null);
+        Product item = new Product("000000001000", pt);
+
+        Sale s = new Sale(1, 0.0, null);
+        DataManager.getInstance().insertSale(s);
+        s.addProduct(pt, 5);
+        s.addProductRFID(item);
+        assertEquals(0, s.getReturnedQuantityByProduct(pt));
+
+        CReturn first = new CReturn(1, s);
+        DataManager.getInstance().insertReturn(first);
+        first.addProduct(pt, 2);
+        first.setAsCommitted();
+        assertEquals(2, s.getReturnedQuantityByProduct(pt));
+
+        CReturn second = new CReturn(2, s);
+        DataManager.getInstance().insertReturn(second);
+        second.addProduct(pt, 1);
+        second.addProductRFID(item);
+        assertEquals(2, s.getReturnedQuantityByProduct(pt));
+        assertFalse(s.isProductRFIDReturned(item));
+
+        DataManager.getInstance().beginTransaction();
+        second.setAsCommitted();
+        assertEquals(3, s.getReturnedQuantityByProduct(pt));
+        assertTrue(s.isProductRFIDReturned(item));
+        assertEquals(2, s.getEntries().get(0).getAmount());
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertFalse(second.isCommitted());
+        assertEquals(2, s.getReturnedQuantityByProduct(pt));
+        assertFalse(s.isProductRFIDReturned(item));
+        assertEquals(4, s.getEntries().get(0).getAmount());
+
+        second.setAsCommitted();
+        assertEquals(3, s.getReturnedQuantityByProduct(pt));
+        assertEquals(2, s.getEntries().get(0).getAmount());
+    }
+
+    @Test
+    public void testRFIDsGroupedByProductType() {
+
+        ProductType milk = new ProductType(1, "1231231231232", "milk", 2.0, 10, 0.0, "", null);
+        ProductType bread = new ProductType(2, "12345678901231", "bread", 1.0, 10, 0.0, "", null);
+
+        Sale s = new Sale(1, 0.0, null);
+        DataManager.getInstance().insertSale(s);
+        for (int i = 0; i < 300; i++) {
+            assertTrue(s.addProductRFID(new Product(String.format("%012d", 1000 + i), i % 3 == 0 ? bread : milk)));
+        }
+
+        assertEquals(Integer.valueOf(200), s.getQuantityByProduct(milk));
+        assertEquals(Integer.valueOf(100), s.getQuantityByProduct(bread));
+        assertEquals(100, s.getProductRFIDsByType(bread).size());
+        assertEquals(500.0, s.getTotalValue(), 0.005);
+
+        Product first = s.getProductRFIDsByType(bread).iterator().next();
+        assertTrue(s.containsProductRFID(first));
+
+        DataManager.getInstance().beginTransaction();
+        assertTrue(s.deleteProductRFID(first));
+        assertFalse(s.containsProductRFID(first));
+        assertEquals(Integer.valueOf(99), s.getQuantityByProduct(bread));
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertEquals(Integer.valueOf(100), s.getQuantityByProduct(bread));
+        assertTrue(s.getProductRFIDsByType(bread).contains(first));
+
+        CReturn r = new CReturn(1, s);
+        r.addProductRFID(first);
+        assertEquals(1, r.getProductRFIDsByType(bread).size());
+        assertEquals(0, r.getProductRFIDsByType(milk).size());
+        assertFalse(s.isProductRFIDReturned(first));
+        r.setAsCommitted();
+        assertTrue(s.isProductRFIDReturned(first));
+        assertEquals(499.0, s.getPrice(), 0.005);
+    }
+
     @Test
     public void testSetInvalidTicketNumber() {
         Sale s = new Sale(1, 0.0, null);
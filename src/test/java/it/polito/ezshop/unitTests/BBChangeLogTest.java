@@ -0,0 +1,207 @@
+package it.polito.ezshop.unitTests;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.junit.*;
+
+import it.polito.ezshop.data.ChangeLog;
+import it.polito.ezshop.model.LoyaltyCard;
+
+public class BBChangeLogTest {
+
+    private Path log;
+    private Map<Object, LoyaltyCard> cards;
+    private ChangeLog.Entities entities;
+
+    @Before
+    public void setUp() throws IOException {
+
+        log = Files.createTempFile("ezshop", ".log");
+        cards = new HashMap<>();
+
+        entities = new ChangeLog.Entities() {
+
+            @Override
+            public String tableOf(Object o) {
+                return o instanceof LoyaltyCard ? "loyaltyCards" : null;
+            }
+
+            @Override
+            public Object keyOf(Object o) {
+                return ((LoyaltyCard)o).getID();
+            }
+
+            @Override
+            public boolean isLive(Object o) {
+                return cards.containsKey(keyOf(o));
+            }
+
+            @Override
+            public Object lookup(String table, Object key) {
+                return cards.get(key);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(log);
+    }
+
+    private int replay() throws IOException {
+        return ChangeLog.replay(log, entities, (op, key, o) -> {
+            if (op == ChangeLog.Op.DELETE) {
+                cards.remove(key);
+                return null;
+            }
+
+            cards.put(key, (LoyaltyCard)o);
+            return o;
+        });
+    }
+
+    @Test
+    public void testReplayAppliesRecordsInOrder() throws IOException {
+
+        LoyaltyCard c1 = new LoyaltyCard("0000000001", 0, null);
+        LoyaltyCard c2 = new LoyaltyCard("0000000002", 0, null);
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            cl.append(ChangeLog.Op.INSERT, c1.getID(), c1);
+            cl.append(ChangeLog.Op.INSERT, c2.getID(), c2);
+            c1.addPoints(15);
+            cl.append(ChangeLog.Op.UPDATE, c1.getID(), c1);
+            cl.append(ChangeLog.Op.DELETE, c2.getID(), c2);
+            assertEquals(4, cl.size());
+        }
+
+        assertEquals(4, replay());
+        assertEquals(1, cards.size());
+        assertEquals(Integer.valueOf(15), cards.get("0000000001").getPoints());
+    }
+
+    @Test
+    public void testReplayKeepsStoredInstance() throws IOException {
+
+        LoyaltyCard c1 = new LoyaltyCard("0000000001", 0, null);
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            c1.addPoints(3);
+            cl.append(ChangeLog.Op.UPDATE, c1.getID(), c1);
+        }
+
+        LoyaltyCard stored = new LoyaltyCard("0000000001", 0, null);
+        cards.put(stored.getID(), stored);
+
+        replay();
+        assertSame(stored, cards.get("0000000001"));
+        assertEquals(Integer.valueOf(3), stored.getPoints());
+    }
+
+    @Test
+    public void testReplayDeletesStoredInstance() throws IOException {
+
+        LoyaltyCard c1 = new LoyaltyCard("0000000001", 0, null);
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            c1.addPoints(3);
+            cl.append(ChangeLog.Op.DELETE, c1.getID(), c1);
+            cl.append(ChangeLog.Op.DELETE, "0000000002", new LoyaltyCard("0000000002", 0, null));
+        }
+
+        LoyaltyCard stored = new LoyaltyCard("0000000001", 0, null);
+        cards.put(stored.getID(), stored);
+
+        List<Object> deleted = new ArrayList<>();
+        assertEquals(2, ChangeLog.replay(log, entities, (op, key, o) -> {
+            deleted.add(o);
+            return null;
+        }));
+        assertEquals(1, deleted.size());
+        assertSame(stored, deleted.get(0));
+        assertEquals(Integer.valueOf(0), stored.getPoints());
+    }
+
+    @Test
+    public void testReplayDropsTornRecord() throws IOException {
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            cl.append(ChangeLog.Op.INSERT, "0000000001", new LoyaltyCard("0000000001", 0, null));
+            cl.append(ChangeLog.Op.INSERT, "0000000002", new LoyaltyCard("0000000002", 0, null));
+        }
+
+        long size = Files.size(log);
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            ch.truncate(size - 5);
+        }
+
+        assertEquals(1, replay());
+        assertTrue(cards.containsKey("0000000001"));
+        assertFalse(cards.containsKey("0000000002"));
+        assertTrue(Files.size(log) < size - 5);
+    }
+
+    @Test
+    public void testReplayKeepsUnreadableRecord() throws IOException {
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            cl.append(ChangeLog.Op.INSERT, "0000000001", new LoyaltyCard("0000000001", 0, null));
+        }
+
+        // Framed and checked like any other, but not an object stream
+        byte[] garbage = "not a record".getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(garbage, 0, garbage.length);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(log, StandardOpenOption.APPEND))) {
+            out.writeInt(garbage.length);
+            out.writeInt((int)crc.getValue());
+            out.write(garbage);
+        }
+
+        long size = Files.size(log);
+        assertThrows(ChangeLog.UnreadableRecordException.class, this::replay);
+        assertEquals(size, Files.size(log));
+    }
+
+    @Test
+    public void testAsyncRecordsWrittenInOrder() throws IOException {
+
+        LoyaltyCard c1 = new LoyaltyCard("0000000001", 0, null);
+
+        try (ChangeLog cl = new ChangeLog(log, entities, 0)) {
+            for (int i = 1; i <= 200; i++) {
+                c1.addPoints(1);
+                cl.append(ChangeLog.Op.UPDATE, c1.getID(), c1);
+                cl.sync(ChangeLog.Durability.ASYNC);
+            }
+
+            cl.append(ChangeLog.Op.INSERT, "0000000002", new LoyaltyCard("0000000002", 0, null));
+            cl.sync(ChangeLog.Durability.SYNC);
+
+            assertEquals(201, replay());
+            assertEquals(Integer.valueOf(200), cards.get("0000000001").getPoints());
+
+            c1.addPoints(1);
+            cl.append(ChangeLog.Op.UPDATE, c1.getID(), c1);
+            cl.sync(ChangeLog.Durability.ASYNC);
+        }
+
+        // Queued records are written on close
+        assertEquals(202, replay());
+        assertEquals(Integer.valueOf(201), cards.get("0000000001").getPoints());
+    }
+
+    @Test
+    public void testReplayMissingLog() throws IOException {
+        Files.delete(log);
+        assertEquals(0, replay());
+    }
+
+}
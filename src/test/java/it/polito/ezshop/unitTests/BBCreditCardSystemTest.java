@@ -1,7 +1,14 @@
 package it.polito.ezshop.unitTests;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
 
 import it.polito.ezshop.data.CreditCardSystem;
 import org.junit.*;
@@ -186,4 +193,186 @@ public class BBCreditCardSystemTest {
         assertFalse(CreditCardSystem.getInstance().updateBalance("9254347527611304", Double.NEGATIVE_INFINITY));
     }
 
+    //Ledger and journal
+
+    @Test
+    public void testBalancesJournaledThenWritten() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            String content = "#comment\n4485370086510891;150.00\n5100293991053009;10.00";
+            Files.write(cards, content.getBytes(StandardCharsets.UTF_8));
+
+            CreditCardSystem system = new CreditCardSystem(cards);
+            assertTrue(system.updateBalance("4485370086510891", 20.0));
+            assertFalse(system.updateBalance("5100293991053009", 20.0));
+            assertTrue(system.hasEnoughBalance("4485370086510891", 130.0));
+            assertFalse(system.hasEnoughBalance("4485370086510891", 130.01));
+
+            // Only journaled so far, and found again after a restart
+            assertEquals(content, new String(Files.readAllBytes(cards), StandardCharsets.UTF_8));
+            CreditCardSystem restarted = new CreditCardSystem(cards);
+            assertFalse(restarted.hasEnoughBalance("4485370086510891", 130.01));
+            assertTrue(restarted.updateBalance("4485370086510891", -0.5));
+
+            assertTrue(restarted.flush());
+            assertEquals("#comment\n4485370086510891;130.5\n5100293991053009;10.00", new String(Files.readAllBytes(cards), StandardCharsets.UTF_8));
+            assertTrue(new CreditCardSystem(cards).hasEnoughBalance("4485370086510891", 130.5));
+
+            // Changed from outside: read again
+            Files.write(cards, "4485370086510891;1.00".getBytes(StandardCharsets.UTF_8));
+            assertFalse(restarted.hasEnoughBalance("4485370086510891", 2.0));
+            assertFalse(restarted.isRegistered("5100293991053009"));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    @Test
+    public void testCancelledChargeJournaled() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            Files.write(cards, "4485370086510891;150.00".getBytes(StandardCharsets.UTF_8));
+
+            CreditCardSystem system = new CreditCardSystem(cards);
+            assertEquals(Collections.singleton("sale-1"), system.settle(Collections.singletonMap("4485370086510891", Collections.singletonMap("sale-1", 20.0))));
+            assertTrue(system.isSettled("sale-1", "4485370086510891", 20.0));
+            assertFalse(system.isSettled("sale-1", "4485370086510891", 10.0));
+
+            Map<String, Map<String, Double>> cancel = Collections.singletonMap("4485370086510891", Collections.singletonMap("sale-1", -20.0));
+            assertEquals(Collections.singleton("sale-1"), system.settle(cancel, Collections.singleton("sale-1")));
+            // Given back already
+            assertEquals(Collections.emptySet(), system.settle(cancel, Collections.singleton("sale-1")));
+
+            CreditCardSystem restarted = new CreditCardSystem(cards);
+            assertFalse(restarted.isSettled("sale-1"));
+            assertTrue(restarted.hasEnoughBalance("4485370086510891", 150.0));
+            assertFalse(restarted.hasEnoughBalance("4485370086510891", 150.01));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    @Test
+    public void testSettledKeysBounded() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            Files.write(cards, "4485370086510891;10000.00".getBytes(StandardCharsets.UTF_8));
+
+            Map<String, Double> sales = new LinkedHashMap<>();
+            for (int i = 1; i <= 1100; i++) sales.put("sale-" + i, 1.0);
+
+            CreditCardSystem system = new CreditCardSystem(cards);
+            assertEquals(1100, system.settle(Collections.singletonMap("4485370086510891", sales)).size());
+            assertTrue(system.flush());
+
+            // The oldest forgotten, the others kept in the file
+            CreditCardSystem restarted = new CreditCardSystem(cards);
+            assertFalse(restarted.isSettled("sale-76"));
+            assertTrue(restarted.isSettled("sale-77"));
+            assertTrue(restarted.isSettled("sale-1100", "4485370086510891", 1.0));
+            assertTrue(Files.readAllLines(cards).get(1).startsWith("#settled sale-77:"));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    @Test
+    public void testSettlementRunsJournaledThenWritten() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            Files.write(cards, "#comment\n4485370086510891;150.00\n5100293991053009;10.00".getBytes(StandardCharsets.UTF_8));
+
+            Map<String, Map<String, Double>> run = new HashMap<>();
+            run.put("4485370086510891", new LinkedHashMap<>());
+            run.get("4485370086510891").put("sale-1", 20.0);
+            run.get("4485370086510891").put("return-1", -5.0);
+            run.put("5100293991053009", Collections.singletonMap("sale-2", 20.0));
+
+            CreditCardSystem system = new CreditCardSystem(cards);
+            assertEquals(new HashSet<>(Arrays.asList("sale-1", "return-1")), system.settle(run));
+            // Settled before: not applied again
+            assertEquals(new HashSet<>(Arrays.asList("sale-1", "return-1")), system.settle(run));
+            assertFalse(system.hasEnoughBalance("4485370086510891", 135.01));
+
+            CreditCardSystem restarted = new CreditCardSystem(cards);
+            assertTrue(restarted.isSettled("sale-1"));
+            assertFalse(restarted.isSettled("sale-2"));
+            assertFalse(restarted.hasEnoughBalance("4485370086510891", 135.01));
+
+            assertTrue(restarted.flush());
+            assertEquals("#comment\n4485370086510891;135.0\n5100293991053009;10.00\n#settled sale-1:4485370086510891:20.0,return-1:4485370086510891:-5.0", new String(Files.readAllBytes(cards), StandardCharsets.UTF_8));
+            CreditCardSystem written = new CreditCardSystem(cards);
+            assertTrue(written.isSettled("return-1"));
+
+            assertTrue(written.forgetSettled());
+            assertFalse(new CreditCardSystem(cards).isSettled("return-1"));
+            assertTrue(written.flush());
+            assertEquals("#comment\n4485370086510891;135.0\n5100293991053009;10.00", new String(Files.readAllBytes(cards), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    @Test
+    public void testJournalReplayedOntoChangedFile() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            Files.write(cards, "4485370086510891;150.00".getBytes(StandardCharsets.UTF_8));
+            CreditCardSystem system = new CreditCardSystem(cards);
+            assertTrue(system.updateBalance("4485370086510891", 100.0));
+
+            // Changed from outside while running, and while not running
+            Files.write(cards, "4485370086510891;170.00\n5100293991053009;10.00\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(system.hasEnoughBalance("4485370086510891", 70.0));
+            assertFalse(system.hasEnoughBalance("4485370086510891", 70.01));
+            assertTrue(system.updateBalance("5100293991053009", 5.0));
+
+            Files.write(cards, "4485370086510891;20.00\n5100293991053009;10.00\n".getBytes(StandardCharsets.UTF_8));
+            CreditCardSystem restarted = new CreditCardSystem(cards);
+            assertTrue(restarted.hasEnoughBalance("4485370086510891", 20.0));
+            assertFalse(restarted.hasEnoughBalance("5100293991053009", 5.01));
+            assertEquals("4485370086510891;20.00\n5100293991053009;5.0", new String(Files.readAllBytes(cards), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    @Test
+    public void testJournalWrittenBeforeCrashNotReplayed() throws IOException {
+
+        Path cards = Files.createTempFile("cards", ".txt");
+        Path journal = Paths.get(cards + ".journal");
+        try {
+            Files.write(cards, "4485370086510891;50.0".getBytes(StandardCharsets.UTF_8));
+            String written = Files.size(cards) + " " + Files.getLastModifiedTime(cards);
+
+            // The file written with the run, the journal not started over
+            Files.write(journal, ("#base 0 other\n+|4485370086510891;100.0|end\n#written " + written + "\n").getBytes(StandardCharsets.UTF_8));
+            assertTrue(new CreditCardSystem(cards).hasEnoughBalance("4485370086510891", 50.0));
+
+            // Then changed from outside: written before or after cannot be told
+            Files.write(journal, ("#base 0 other\n+|4485370086510891;100.0|end\n#written 0 another\n").getBytes(StandardCharsets.UTF_8));
+            assertThrows(IllegalStateException.class, () -> new CreditCardSystem(cards).hasEnoughBalance("4485370086510891", 1.0));
+            assertTrue(Files.readAllLines(journal).contains("+|4485370086510891;100.0|end"));
+        } finally {
+            Files.deleteIfExists(cards);
+            Files.deleteIfExists(journal);
+        }
+    }
+
 }
@@ -6,6 +6,13 @@ import it.polito.ezshop.model.*;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.*;
 
@@ -59,6 +66,7 @@ public class BBDataManagerTest {
             DataManager.getInstance().deleteBalanceTransaction(u);
         }
 
+        DataManager.getInstance().resetSequences();
     }
 
     ////Deletes
@@ -1014,4 +1022,575 @@ public class BBDataManagerTest {
         assertEquals(bt.getDescription(),"prova");
     }
 
+    ////Finds
+
+    //findUserById()
+
+    @Test
+    public void testFindUserById() {
+
+        User u = new User(1, "we", "mbare", "Administrator");
+        if (!DataManager.getInstance().insertUser(u)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(u, DataManager.getInstance().findUserById(1).get());
+        assertFalse("User not stored, empty expected", DataManager.getInstance().findUserById(2).isPresent());
+        assertFalse("Null id, empty expected", DataManager.getInstance().findUserById(null).isPresent());
+    }
+
+    //findProductTypeById()
+
+    @Test
+    public void testFindProductTypeById() {
+
+        ProductType p = new ProductType(1, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        if (!DataManager.getInstance().insertProductType(p)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(p, DataManager.getInstance().findProductTypeById(1).get());
+        assertFalse("ProductType not stored, empty expected", DataManager.getInstance().findProductTypeById(2).isPresent());
+    }
+
+    //findLoyaltyCardById()
+
+    @Test
+    public void testFindLoyaltyCardById() {
+
+        LoyaltyCard lc = new LoyaltyCard("0000000001", 0, null);
+        if (!DataManager.getInstance().insertLoyaltyCard(lc)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(lc, DataManager.getInstance().findLoyaltyCardById("0000000001").get());
+        assertFalse("LoyaltyCard not stored, empty expected", DataManager.getInstance().findLoyaltyCardById("0000000002").isPresent());
+    }
+
+    //findSaleById()
+
+    @Test
+    public void testFindSaleById() {
+
+        Sale s = new Sale(1, 0.0, null);
+        if (!DataManager.getInstance().insertSale(s)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(s, DataManager.getInstance().findSaleById(1).get());
+        DataManager.getInstance().deleteSale(s);
+        assertFalse("Sale deleted, empty expected", DataManager.getInstance().findSaleById(1).isPresent());
+    }
+
+    //findReturnById()
+
+    @Test
+    public void testFindReturnById() {
+
+        Sale s = new Sale(1, 0.0, null);
+        CReturn r = new CReturn(1, s);
+        if (!DataManager.getInstance().insertReturn(r)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(r, DataManager.getInstance().findReturnById(1).get());
+        assertFalse("Return not stored, empty expected", DataManager.getInstance().findReturnById(2).isPresent());
+    }
+
+    //updatePosition()
+
+    @Test
+    public void testUpdatePositionOntoStoredOne() {
+
+        Position p1 = new Position(1, "a", 1, null);
+        Position p2 = new Position(2, "a", 1, null);
+        if (!DataManager.getInstance().insertPosition(p1) || !DataManager.getInstance().insertPosition(p2)) {
+            throw new RuntimeException();
+        }
+
+        p2.setAisleID(1);
+        assertFalse("Position 1-a-1 already stored, false expected", DataManager.getInstance().updatePosition(p2));
+    }
+
+    //findProductTypeByBarCode()
+
+    @Test
+    public void testFindProductTypeByBarCode() {
+
+        ProductType p = new ProductType(1, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        if (!DataManager.getInstance().insertProductType(p)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(p, DataManager.getInstance().findProductTypeByBarCode("1231231231232").get());
+
+        p.setBarCode("0000000000000");
+        assertFalse("Old barcode, empty expected", DataManager.getInstance().findProductTypeByBarCode("1231231231232").isPresent());
+        assertSame(p, DataManager.getInstance().findProductTypeByBarCode("0000000000000").get());
+    }
+
+    @Test
+    public void testInsertProductTypeWithDuplicatedBarCode() {
+
+        ProductType p1 = new ProductType(1, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        ProductType p2 = new ProductType(2, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        if (!DataManager.getInstance().insertProductType(p1)) {
+            throw new RuntimeException();
+        }
+
+        assertFalse("Barcode already stored, false expected", DataManager.getInstance().insertProductType(p2));
+    }
+
+    @Test
+    public void testUpdateProductTypeWithDuplicatedBarCode() {
+
+        ProductType p1 = new ProductType(1, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        ProductType p2 = new ProductType(2, "0000000000000", "description", 1.0, 1, 0.0, "", "");
+        if (!DataManager.getInstance().insertProductType(p1) || !DataManager.getInstance().insertProductType(p2)) {
+            throw new RuntimeException();
+        }
+
+        p2.setBarCode("1231231231232");
+        assertFalse("Barcode already stored, false expected", DataManager.getInstance().updateProductType(p2));
+        assertSame(p1, DataManager.getInstance().findProductTypeByBarCode("1231231231232").get());
+    }
+
+    //findUserByUsername()
+
+    @Test
+    public void testFindUserByUsername() {
+
+        User u = new User(1, "we", "mbare", "Administrator");
+        if (!DataManager.getInstance().insertUser(u)) {
+            throw new RuntimeException();
+        }
+
+        assertSame(u, DataManager.getInstance().findUserByUsername("we").get());
+        assertFalse("Duplicated username, false expected", DataManager.getInstance().insertUser(new User(2, "we", "pwd", "Cashier")));
+
+        DataManager.getInstance().deleteUser(u);
+        assertFalse("User deleted, empty expected", DataManager.getInstance().findUserByUsername("we").isPresent());
+    }
+
+    //findProductByRFID()
+
+    @Test
+    public void testFindProductByRFID() {
+
+        ProductType pt = new ProductType(1, "1231231231232", "description", 1.0, 1, 0.0, "", "");
+        Product p = new Product("000000000001", pt);
+        if (!DataManager.getInstance().insertProduct(p)) {
+            throw new RuntimeException();
+        }
+
+        // Kept as a value: an equal instance is returned
+        Product found = DataManager.getInstance().findProductByRFID("000000000001").get();
+        assertEquals(p, found);
+        assertSame(pt, found.getRelativeProductType());
+        assertTrue(found.isAvailable());
+        assertFalse("Product not stored, empty expected", DataManager.getInstance().findProductByRFID("000000000002").isPresent());
+    }
+
+    ////Sequences
+
+    @Test
+    public void testNextIdIsNotReused() {
+
+        Sale s = new Sale(DataManager.getInstance().nextSaleId(), 0.0, null);
+        if (!DataManager.getInstance().insertSale(s)) {
+            throw new RuntimeException();
+        }
+
+        int id = DataManager.getInstance().nextSaleId();
+        assertEquals(s.getTicketNumber() + 1, id);
+        assertEquals(id + 1, DataManager.getInstance().nextSaleId());
+    }
+
+    @Test
+    public void testNextIdAfterStoredIds() {
+
+        User u1 = new User(1, "we", "mbare", "Administrator");
+        User u2 = new User(5, "ciao", "mbare", "Cashier");
+        if (!DataManager.getInstance().insertUser(u1) || !DataManager.getInstance().insertUser(u2)) {
+            throw new RuntimeException();
+        }
+
+        assertEquals(6, DataManager.getInstance().nextUserId());
+
+        DataManager.getInstance().deleteUser(u2);
+        assertEquals("Ids are not reused while the table is not empty", 7, DataManager.getInstance().nextUserId());
+
+        DataManager.getInstance().deleteUser(u1);
+        assertEquals("Ids are not reused once the table is empty", 8, DataManager.getInstance().nextUserId());
+
+        DataManager.getInstance().resetSequences();
+        assertEquals("Sequences reset, ids start over", 1, DataManager.getInstance().nextUserId());
+    }
+
+    @Test
+    public void testNextLoyaltyCardId() {
+
+        LoyaltyCard lc = new LoyaltyCard("0000000041", 0, null);
+        if (!DataManager.getInstance().insertLoyaltyCard(lc)) {
+            throw new RuntimeException();
+        }
+
+        assertEquals(42, DataManager.getInstance().nextLoyaltyCardId());
+    }
+
+    ////Units of work
+
+    @Test
+    public void testUnitOfWork() {
+
+        DataManager.getInstance().beginUnitOfWork();
+        User u = new User(1, "we", "mbare", "Administrator");
+        assertTrue(DataManager.getInstance().insertUser(u));
+        u.setRole("Cashier");
+        assertTrue("Changes are visible before the end of the unit of work", DataManager.getInstance().findUserById(1).isPresent());
+        assertTrue(DataManager.getInstance().endUnitOfWork());
+
+        assertEquals("Cashier", DataManager.getInstance().findUserById(1).get().getRole());
+    }
+
+    @Test
+    public void testNestedUnitOfWork() {
+
+        DataManager.getInstance().beginUnitOfWork();
+        DataManager.getInstance().beginUnitOfWork();
+        assertTrue(DataManager.getInstance().insertUser(new User(1, "we", "mbare", "Administrator")));
+        assertTrue(DataManager.getInstance().endUnitOfWork());
+        assertTrue(DataManager.getInstance().endUnitOfWork());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEndUnitOfWorkWithoutBegin() {
+        DataManager.getInstance().endUnitOfWork();
+    }
+
+    @Test
+    public void testCommit() {
+
+        DataManager.getInstance().beginTransaction();
+        assertTrue(DataManager.getInstance().insertUser(new User(1, "we", "mbare", "Administrator")));
+        assertTrue(DataManager.getInstance().commit());
+
+        assertTrue(DataManager.getInstance().findUserById(1).isPresent());
+    }
+
+    @Test
+    public void testRollbackInsert() {
+
+        DataManager.getInstance().beginTransaction();
+        assertTrue(DataManager.getInstance().insertUser(new User(DataManager.getInstance().nextUserId(), "we", "mbare", "Administrator")));
+        DataManager.getInstance().rollback();
+        assertTrue(DataManager.getInstance().commit());
+
+        assertFalse(DataManager.getInstance().findUserById(1).isPresent());
+        assertFalse(DataManager.getInstance().findUserByUsername("we").isPresent());
+        assertEquals(1, DataManager.getInstance().nextUserId());
+    }
+
+    @Test
+    public void testRollbackUpdate() {
+
+        ProductType p = new ProductType(1, "1231231231232", "austrolopiteco", 0.1, 1, 0.0, "", null);
+        assertTrue(DataManager.getInstance().insertProductType(p));
+
+        DataManager.getInstance().beginTransaction();
+        p.setBarCode("012345678905");
+        p.addQuantityOffset(5);
+        assertTrue(DataManager.getInstance().updateProductType(p));
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertEquals("1231231231232", p.getBarCode());
+        assertEquals(Integer.valueOf(1), p.getQuantity());
+        assertSame(p, DataManager.getInstance().findProductTypeByBarCode("1231231231232").get());
+        assertFalse(DataManager.getInstance().findProductTypeByBarCode("012345678905").isPresent());
+    }
+
+    @Test
+    public void testRollbackDelete() {
+
+        Sale s = new Sale(1, 0.0, null);
+        assertTrue(DataManager.getInstance().insertSale(s));
+
+        DataManager.getInstance().beginTransaction();
+        s.setAsCommitted();
+        assertTrue(DataManager.getInstance().deleteSale(s));
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertSame(s, DataManager.getInstance().findSaleById(1).get());
+        assertFalse(s.isCommitted());
+    }
+
+    @Test
+    public void testRollbackPosition() {
+
+        Position p = new Position(1, "a", 1, null);
+        assertTrue(DataManager.getInstance().insertPosition(p));
+
+        DataManager.getInstance().beginTransaction();
+        p.setAisleID(2);
+        assertTrue(DataManager.getInstance().updatePosition(p));
+        DataManager.getInstance().rollback();
+        DataManager.getInstance().commit();
+
+        assertSame(p, DataManager.getInstance().findPositionByLocation("1-a-1").get());
+        assertFalse(DataManager.getInstance().findPositionByLocation("2-a-1").isPresent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRollbackWithoutBegin() {
+        DataManager.getInstance().rollback();
+    }
+
+    @Test
+    public void testConcurrentSalesNeverOversell() throws Exception {
+
+        ProductType pt = new ProductType(1, "1231231231232", "austrolopiteco", 2.0, 10, 0.0, "", null);
+        assertTrue(DataManager.getInstance().insertProductType(pt));
+
+        AtomicInteger sold = new AtomicInteger();
+        ExecutorService tills = Executors.newFixedThreadPool(4);
+        List<Future<?>> sales = new ArrayList<>();
+
+        for (int i = 0; i < 40; i++) {
+            sales.add(tills.submit(() -> {
+                DataManager dm = DataManager.getInstance();
+                dm.beginTransaction();
+                try {
+                    Sale s = new Sale(dm.nextSaleId(), 0.0, null);
+                    if (pt.getQuantity() < 1) return;
+
+                    s.addProduct(pt, 1);
+                    pt.addQuantityOffset(-1);
+                    if (dm.insertSale(s) && dm.updateProductType(pt)) sold.incrementAndGet();
+                } finally {
+                    dm.commit();
+                }
+            }));
+        }
+
+        for (Future<?> sale : sales) {
+            sale.get(10, TimeUnit.SECONDS);
+        }
+        tills.shutdown();
+
+        assertEquals(10, sold.get());
+        assertEquals(Integer.valueOf(0), pt.getQuantity());
+        assertEquals(10, DataManager.getInstance().getSales().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCommitFromOtherThread() throws Throwable {
+
+        ExecutorService till = Executors.newSingleThreadExecutor();
+
+        DataManager.getInstance().beginTransaction();
+        try {
+            till.submit(() -> DataManager.getInstance().commit()).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } finally {
+            DataManager.getInstance().commit();
+            till.shutdown();
+        }
+    }
+
+    @Test
+    public void testRunningBalance() {
+
+        DataManager dm = DataManager.getInstance();
+        assertEquals(0.0, dm.getBalance(), 0.0);
+
+        DummyCredit c = new DummyCredit(1, 100.25);
+        DummyDebit d = new DummyDebit(1, 40.1);
+        CreditTransaction ct = new CreditTransaction(1, c);
+        DebitTransaction dt = new DebitTransaction(2, d);
+        assertTrue(dm.insertBalanceTransaction(ct));
+        assertTrue(dm.insertBalanceTransaction(dt));
+        assertEquals(60.15, dm.getBalance(), 0.0);
+
+        // Edited in place
+        ct.setValue(120.0);
+        assertTrue(dm.updateBalanceTransaction(ct));
+        assertEquals(79.9, dm.getBalance(), 0.0);
+
+        dm.beginTransaction();
+        assertTrue(dm.deleteBalanceTransaction(ct));
+        assertEquals(-40.1, dm.getBalance(), 0.0);
+        dm.rollback();
+        dm.commit();
+        assertEquals(79.9, dm.getBalance(), 0.0);
+
+        assertTrue(dm.rebuildBalance());
+
+        // Edited through the entry alone
+        dt.setValue(50.0);
+        assertEquals(70.0, dm.getBalance(), 0.0);
+        dt.setDescription("rent");
+        dt.setDate(LocalDate.now().minusDays(1));
+        // Moved by the difference, never worked out again
+        assertTrue(dm.rebuildBalance());
+
+        assertTrue(dm.deleteBalanceTransaction(dt));
+        assertTrue(dm.deleteBalanceTransaction(ct));
+        assertEquals(0.0, dm.getBalance(), 0.0);
+    }
+
+    @Test
+    public void testLedgerByDate() {
+
+        DataManager dm = DataManager.getInstance();
+        LocalDate today = LocalDate.now();
+
+        List<BalanceTransaction> ledger = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            BalanceTransaction b = new CreditTransaction(i, new DummyCredit(i, i));
+            b.setDate(today.minusDays(i % 3));
+            assertTrue(dm.insertBalanceTransaction(b));
+            ledger.add(b);
+        }
+
+        // By date, then by id
+        assertEquals(Arrays.asList(ledger.get(1), ledger.get(4), ledger.get(0), ledger.get(3), ledger.get(2), ledger.get(5)), dm.findBalanceTransactions(null, null));
+        assertEquals(Arrays.asList(ledger.get(0), ledger.get(3)), dm.findBalanceTransactions(today.minusDays(1), today.minusDays(1)));
+        assertEquals(Arrays.asList(ledger.get(0), ledger.get(3), ledger.get(2), ledger.get(5)), dm.findBalanceTransactions(today.minusDays(1), null));
+        assertEquals(0, dm.findBalanceTransactions(today, today.minusDays(1)).size());
+        assertEquals(6, dm.findBalanceTransactions(LocalDate.MIN, LocalDate.MAX).size());
+
+        // Pages
+        assertEquals(Arrays.asList(ledger.get(1), ledger.get(4)), dm.findBalanceTransactions(null, null, null, 2));
+        assertEquals(Arrays.asList(ledger.get(0), ledger.get(3)), dm.findBalanceTransactions(null, null, ledger.get(4), 2));
+        assertEquals(Arrays.asList(ledger.get(5)), dm.findBalanceTransactions(null, null, ledger.get(2), 2));
+
+        // Kept up to date
+        ledger.get(5).setDate(today.minusDays(5));
+        assertTrue(dm.updateBalanceTransaction(ledger.get(5)));
+        assertTrue(dm.deleteBalanceTransaction(ledger.get(0)));
+        assertEquals(Arrays.asList(ledger.get(5), ledger.get(1), ledger.get(4)), dm.findBalanceTransactions(null, today.minusDays(2)));
+        assertEquals(Arrays.asList(ledger.get(3)), dm.findBalanceTransactions(today.minusDays(1), today.minusDays(1)));
+
+        dm.beginTransaction();
+        assertTrue(dm.deleteBalanceTransaction(ledger.get(3)));
+        dm.rollback();
+        dm.commit();
+        assertEquals(Arrays.asList(ledger.get(3)), dm.findBalanceTransactions(today.minusDays(1), today.minusDays(1)));
+
+        // Edited through the entry alone
+        ledger.get(3).setDate(today.minusDays(5));
+        assertEquals(Arrays.asList(ledger.get(3), ledger.get(5)), dm.findBalanceTransactions(today.minusDays(5), today.minusDays(5)));
+        assertEquals(0, dm.findBalanceTransactions(today.minusDays(1), today.minusDays(1)).size());
+    }
+
+    @Test
+    public void testIdChangeMovesEntity() {
+
+        DataManager dm = DataManager.getInstance();
+        LocalDate today = LocalDate.now();
+
+        BalanceTransaction b1 = new CreditTransaction(1, new DummyCredit(1, 10.0));
+        BalanceTransaction b2 = new CreditTransaction(2, new DummyCredit(2, 20.0));
+        assertTrue(dm.insertBalanceTransaction(b1));
+        assertTrue(dm.insertBalanceTransaction(b2));
+        assertEquals(Arrays.asList(b1, b2), dm.findBalanceTransactions(today, today));
+
+        b1.setBalanceId(3);
+        assertSame(b1, dm.findBalanceTransactionById(3).get());
+        assertFalse(dm.findBalanceTransactionById(1).isPresent());
+        assertEquals(Arrays.asList(b2, b1), dm.findBalanceTransactions(today, today));
+        assertEquals(30.0, dm.getBalance(), 0.0);
+        assertEquals(4, dm.nextBalanceTransactionId());
+
+        // Taken
+        assertThrows(IllegalArgumentException.class, () -> b1.setBalanceId(2));
+        assertEquals(3, b1.getBalanceId());
+        assertSame(b2, dm.findBalanceTransactionById(2).get());
+
+        Order o = new Order(1, 1.0, 1, new ProductType(1, "1231231231232", "austrolopiteco", 0.1, 1, 0.0, "", null), EOrderStatus.ISSUED);
+        assertTrue(dm.insertOrder(o));
+
+        dm.beginTransaction();
+        o.setOrderId(5);
+        assertSame(o, dm.findOrderById(5).get());
+        dm.rollback();
+        dm.commit();
+
+        assertEquals(Integer.valueOf(1), o.getOrderId());
+        assertSame(o, dm.findOrderById(1).get());
+        assertFalse(dm.findOrderById(5).isPresent());
+    }
+
+    @Test
+    public void testPaymentLinkedToSale() {
+
+        DataManager dm = DataManager.getInstance();
+
+        Sale s = new Sale(1, 0.0, null);
+        s.setAsCommitted();
+        assertTrue(dm.insertSale(s));
+        assertFalse(dm.findPaymentBySale(s).isPresent());
+
+        CreditTransaction ct = new CreditTransaction(1, s);
+        assertTrue(dm.insertBalanceTransaction(ct));
+        assertEquals(Integer.valueOf(1), s.getPaymentId());
+        assertSame(ct, dm.findPaymentBySale(s).get());
+
+        // A second credit does not take the place of the first
+        CreditTransaction again = new CreditTransaction(2, s);
+        assertTrue(dm.insertBalanceTransaction(again));
+        assertSame(ct, dm.findPaymentBySale(s).get());
+        assertTrue(dm.deleteBalanceTransaction(again));
+        assertSame(ct, dm.findPaymentBySale(s).get());
+
+        dm.beginTransaction();
+        assertTrue(dm.deleteBalanceTransaction(ct));
+        assertFalse(dm.findPaymentBySale(s).isPresent());
+        assertEquals(null, s.getPaymentId());
+        dm.rollback();
+        dm.commit();
+        assertSame(ct, dm.findPaymentBySale(s).get());
+    }
+
+    @Test
+    public void testInsertProductsInRFIDRange() {
+
+        DataManager dm = DataManager.getInstance();
+        ProductType pt = new ProductType(1, "1231231231232", "test", 2.0, 0, 0.0, "", null);
+
+        assertTrue(dm.insertProduct(new Product("000000000100", pt)));
+
+        List<Product> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(new Product(String.format("%012d", 1000 + i), pt));
+        }
+        assertTrue(dm.insertProducts(batch));
+        assertEquals(51, dm.getProducts().size());
+
+        assertTrue(dm.anyProductInRFIDRange(1049, 10));
+        assertTrue(dm.anyProductInRFIDRange(990, 11));
+        assertFalse(dm.anyProductInRFIDRange(990, 10));
+        assertFalse(dm.anyProductInRFIDRange(1050, 1000));
+
+        // All or none
+        assertFalse(dm.insertProducts(Arrays.asList(new Product("000000002000", pt), new Product("000000001049", pt))));
+        assertFalse(dm.insertProducts(Arrays.asList(new Product("000000002000", pt), new Product("000000002000", pt))));
+        assertFalse(dm.findProductByRFID("000000002000").isPresent());
+        assertFalse(dm.anyProductInRFIDRange(2000, 1));
+
+        assertTrue(dm.deleteProduct(batch.get(49)));
+        assertFalse(dm.anyProductInRFIDRange(1049, 10));
+
+        dm.beginTransaction();
+        assertTrue(dm.insertProducts(Arrays.asList(new Product("000000002000", pt))));
+        assertTrue(dm.anyProductInRFIDRange(2000, 1));
+        dm.rollback();
+        dm.commit();
+        assertFalse(dm.anyProductInRFIDRange(2000, 1));
+        assertTrue(dm.anyProductInRFIDRange(1048, 1));
+    }
+
 }
@@ -0,0 +1,185 @@
+package it.polito.ezshop.unitTests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.*;
+
+import it.polito.ezshop.data.CardSystemGateway;
+import it.polito.ezshop.data.CreditCardSystem;
+import it.polito.ezshop.data.PaymentGateway;
+import it.polito.ezshop.data.SettlementQueue;
+import it.polito.ezshop.data.SimulatedGateway;
+
+public class BBPaymentGatewayTest {
+
+    private Path cards;
+    private CreditCardSystem system;
+
+    @Before
+    public void setUp() throws IOException {
+
+        cards = Files.createTempFile("cards", ".txt");
+        Files.write(cards, "4485370086510891;150.00\n5100293991053009;10.00".getBytes(StandardCharsets.UTF_8));
+        system = new CreditCardSystem(cards);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(cards);
+        Files.deleteIfExists(Paths.get(cards + ".journal"));
+    }
+
+    @Test
+    public void testAuthorizeHoldsMoney() {
+
+        PaymentGateway gateway = new CardSystemGateway(system);
+
+        PaymentGateway.Authorization first = gateway.authorize("sale-1", "4485370086510891", 100.0).join();
+        assertNotNull(first);
+        // Going on already
+        assertNull(gateway.authorize("sale-1", "4485370086510891", 10.0).join());
+        // 50 left to hold
+        assertNull(gateway.authorize("sale-2", "4485370086510891", 60.0).join());
+        PaymentGateway.Authorization second = gateway.authorize("sale-2", "4485370086510891", 50.0).join();
+        assertNotNull(second);
+
+        assertTrue(gateway.release(second).join());
+        assertFalse(gateway.release(second).join());
+        assertTrue(gateway.capture(first).join());
+        assertFalse(gateway.capture(first).join());
+        assertTrue(system.hasEnoughBalance("4485370086510891", 50.0));
+        assertFalse(system.hasEnoughBalance("4485370086510891", 50.01));
+
+        assertNull(gateway.authorize("sale-3", "1234567890318", 1.0).join());
+    }
+
+    @Test
+    public void testRefund() {
+
+        PaymentGateway gateway = new CardSystemGateway(system);
+
+        assertTrue(gateway.refund("return-1", "5100293991053009", 5.0).join());
+        assertTrue(system.hasEnoughBalance("5100293991053009", 15.0));
+        // Made again: given once
+        assertTrue(gateway.refund("return-1", "5100293991053009", 5.0).join());
+        assertFalse(system.hasEnoughBalance("5100293991053009", 15.01));
+        assertFalse(gateway.refund("return-2", "1234567890318", 5.0).join());
+        assertFalse(gateway.refund("return-2", "5100293991053009", -5.0).join());
+    }
+
+    @Test
+    public void testPaymentRetriedAfterCrash() {
+
+        PaymentGateway gateway = new CardSystemGateway(system);
+        PaymentGateway.Authorization authorization = gateway.authorize("sale-1", "5100293991053009", 8.0).join();
+        assertTrue(gateway.capture(authorization).join());
+
+        // Not recorded by the shop: paid again after a restart, with the 2 left
+        PaymentGateway restarted = new CardSystemGateway(new CreditCardSystem(cards));
+        PaymentGateway.Authorization retried = restarted.authorize("sale-1", "5100293991053009", 8.0).join();
+        assertNotNull(retried);
+        assertTrue(restarted.capture(retried).join());
+        assertTrue(new CreditCardSystem(cards).hasEnoughBalance("5100293991053009", 2.0));
+        assertFalse(new CreditCardSystem(cards).hasEnoughBalance("5100293991053009", 2.01));
+
+        // Ids starting again
+        restarted.forgetKeys();
+        assertNull(restarted.authorize("sale-1", "5100293991053009", 8.0).join());
+    }
+
+    @Test
+    public void testCancelledPaymentChargedAgain() {
+
+        PaymentGateway gateway = new CardSystemGateway(system);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            PaymentGateway.Authorization authorization = gateway.authorize("sale-1", "5100293991053009", 8.0).join();
+            assertTrue(gateway.capture(authorization).join());
+            assertFalse(system.hasEnoughBalance("5100293991053009", 2.01));
+
+            // Not recorded by the shop: given back each time, once
+            assertTrue(gateway.cancel("sale-1", "5100293991053009", 8.0).join());
+            assertFalse(gateway.cancel("sale-1", "5100293991053009", 8.0).join());
+            assertTrue(system.hasEnoughBalance("5100293991053009", 10.0));
+            assertFalse(system.hasEnoughBalance("5100293991053009", 10.01));
+        }
+
+        // Charged on another card: the key stands for that charge only
+        PaymentGateway.Authorization authorization = gateway.authorize("sale-1", "4485370086510891", 20.0).join();
+        assertTrue(gateway.capture(authorization).join());
+        assertNull(gateway.authorize("sale-1", "5100293991053009", 8.0).join());
+        assertFalse(gateway.cancel("sale-1", "5100293991053009", 8.0).join());
+        assertFalse(gateway.cancel("sale-1", "4485370086510891", 10.0).join());
+        assertTrue(system.hasEnoughBalance("4485370086510891", 130.0));
+        assertFalse(system.hasEnoughBalance("4485370086510891", 130.01));
+    }
+
+    @Test
+    public void testSettlementRun() {
+
+        // Settled only when asked
+        SettlementQueue queue = new SettlementQueue(system, 60_000);
+        CompletableFuture<Boolean> first = queue.submit("sale-1", "4485370086510891", 100.0);
+        CompletableFuture<Boolean> second = queue.submit("sale-2", "4485370086510891", 40.0);
+        CompletableFuture<Boolean> refund = queue.submit("return-1", "5100293991053009", -5.0);
+        CompletableFuture<Boolean> unpaid = queue.submit("sale-3", "5100293991053009", 20.0);
+        assertSame(first, queue.submit("sale-1", "4485370086510891", 100.0));
+        assertFalse(queue.submit("sale-1", "5100293991053009", 100.0).join());
+        assertFalse(first.isDone());
+
+        queue.settle();
+        assertTrue(first.join());
+        assertTrue(second.join());
+        // Those of a card are settled together: 10 cannot pay the 15 they come to
+        assertFalse(refund.join());
+        assertFalse(unpaid.join());
+        assertTrue(system.hasEnoughBalance("4485370086510891", 10.0));
+        assertFalse(system.hasEnoughBalance("4485370086510891", 10.01));
+        assertTrue(system.hasEnoughBalance("5100293991053009", 10.0));
+        assertFalse(system.hasEnoughBalance("5100293991053009", 10.01));
+
+        assertTrue(queue.isSettled("sale-1"));
+        assertFalse(queue.isSettled("sale-3"));
+        assertTrue(queue.submit("sale-1", "4485370086510891", 100.0).join());
+        assertThrows(IllegalArgumentException.class, () -> queue.submit("sale|1", "4485370086510891", 1.0));
+    }
+
+    @Test
+    public void testSimulatedLatency() {
+
+        PaymentGateway gateway = new SimulatedGateway(new CardSystemGateway(system), 50, 100, 0.0, 1);
+
+        long start = System.nanoTime();
+        CompletableFuture<PaymentGateway.Authorization> authorization = gateway.authorize("sale-1", "4485370086510891", 20.0);
+        assertFalse(authorization.isDone());
+
+        assertTrue(gateway.capture(authorization.join()).join());
+        assertTrue(System.nanoTime() - start >= 100_000_000L);
+        assertFalse(system.hasEnoughBalance("4485370086510891", 130.01));
+    }
+
+    @Test
+    public void testSimulatedFailures() {
+
+        PaymentGateway gateway = new SimulatedGateway(new CardSystemGateway(system), 0, 0, 1.0, 1);
+
+        try {
+            gateway.refund("return-1", "5100293991053009", 5.0).join();
+            fail();
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // Failed on the way: the card system was not reached
+        assertFalse(system.hasEnoughBalance("5100293991053009", 10.01));
+
+        assertThrows(IllegalArgumentException.class, () -> new SimulatedGateway(gateway, 10, 5, 0.0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new SimulatedGateway(gateway, 0, 5, 1.5, 1));
+    }
+
+}
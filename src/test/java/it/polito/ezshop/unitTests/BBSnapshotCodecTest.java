@@ -0,0 +1,171 @@
+package it.polito.ezshop.unitTests;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.LocalDate;
+
+import org.junit.*;
+
+import it.polito.ezshop.data.DataManager;
+import it.polito.ezshop.data.EZShop;
+import it.polito.ezshop.data.SnapshotCodec;
+import it.polito.ezshop.data.SnapshotMigrator;
+import it.polito.ezshop.model.*;
+
+public class BBSnapshotCodecTest {
+
+    private Path snapshot;
+
+    @Before
+    public void setUp() throws IOException {
+
+        new EZShop().reset();
+        snapshot = Files.createTempFile("ezshop", ".ser");
+
+        DataManager dm = DataManager.getInstance();
+
+        ProductType pt = new ProductType(1, "1231231231232", "austrolopiteco", 2.0, 10, 0.0, "", null);
+        dm.insertProductType(pt);
+        pt.setLocation("1-a-1");
+
+        Product p = new Product("000000001000", pt);
+        dm.insertProduct(p);
+
+        LoyaltyCard card = new LoyaltyCard("0000000001", 5, null);
+        dm.insertLoyaltyCard(card);
+        Customer c = new Customer(1, "mbare", null);
+        dm.insertCustomer(c);
+        c.setCustomerCard("0000000001");
+
+        Sale s = new Sale(1, 0.1, card);
+        s.addProduct(pt, 3);
+        s.addProductRFID(p);
+        s.applyDiscountRateToProductGroup(pt, 0.5);
+        s.setAsCommitted();
+        dm.insertSale(s);
+
+        CReturn r = new CReturn(1, s);
+        r.addProduct(pt, 1);
+        r.setAsCommitted();
+        dm.insertReturn(r);
+
+        dm.insertBalanceTransaction(new CreditTransaction(1, s));
+        dm.insertBalanceTransaction(new DebitTransaction(2, r));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        new EZShop().reset();
+        Files.deleteIfExists(snapshot);
+    }
+
+    private static DataManager roundTrip(DataManager dm) throws IOException {
+        return SnapshotCodec.decode(new ByteArrayInputStream(SnapshotCodec.encode(dm)));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+
+        DataManager read = roundTrip(DataManager.getInstance());
+
+        ProductType pt = read.findProductTypeById(1).get();
+        assertEquals("1231231231232", pt.getBarCode());
+        assertEquals(Integer.valueOf(10), pt.getQuantity());
+        assertEquals("1-a-1", pt.getLocation());
+        assertSame(pt, pt.getAssignedPosition().getAssignedProduct());
+        assertSame(pt, read.findProductByRFID("000000001000").get().getRelativeProductType());
+
+        Customer c = read.findCustomerById(1).get();
+        assertSame(c, read.findLoyaltyCardById("0000000001").get().getCustomer());
+        assertEquals(Integer.valueOf(5), c.getPoints());
+
+        Sale s = read.findSaleById(1).get();
+        assertTrue(s.isCommitted());
+        assertSame(c.getLoyaltyCard(), s.getAttachedLoyaltyCard());
+        assertEquals(Integer.valueOf(4), s.getQuantityByProduct(pt));
+        assertEquals(0.5, s.getDiscountRateForProductGroup(pt), 0.0);
+        assertEquals(1, s.getReturnedQuantityByProduct(pt));
+        assertEquals(DataManager.getInstance().findSaleById(1).get().getPrice(), s.getPrice(), 0.001);
+
+        CReturn r = read.findReturnById(1).get();
+        assertSame(s, r.getSaleTransaction());
+
+        assertSame(s, ((CreditTransaction)read.findBalanceTransactionById(1).get()).getRelatedCreditOperation());
+        assertSame(r, ((DebitTransaction)read.findBalanceTransactionById(2).get()).getRelatedDebitOperation());
+        assertEquals(LocalDate.now(), read.findBalanceTransactionById(1).get().getDate());
+        assertEquals(Integer.valueOf(1), s.getPaymentId());
+        assertSame(read.findBalanceTransactionById(1).get(), read.findPaymentBySale(s).get());
+
+        assertEquals(3, read.nextBalanceTransactionId());
+        assertEquals(DataManager.getInstance().getBalance(), read.getBalance(), 0.0);
+        assertTrue(read.rebuildBalance());
+    }
+
+    @Test
+    public void testRoundTripDeletedProductType() throws IOException {
+
+        ProductType pt = DataManager.getInstance().findProductTypeById(1).get();
+        pt.setLocation("");
+        DataManager.getInstance().deleteProduct(DataManager.getInstance().findProductByRFID("000000001000").get());
+        DataManager.getInstance().deleteProductType(pt);
+
+        DataManager read = roundTrip(DataManager.getInstance());
+
+        assertFalse(read.findProductTypeById(1).isPresent());
+        Sale s = read.findSaleById(1).get();
+        assertEquals(1, s.getProductsList().size());
+        assertEquals("1231231231232", s.getProductsList().get(0).getBarCode());
+        assertSame(s.getProductsList().get(0), read.findReturnById(1).get().getProductsList().get(0));
+    }
+
+    @Test
+    public void testHistoryLoadedOnDemand() throws IOException {
+
+        Sale open = new Sale(2, 0.0, null);
+        open.addProduct(DataManager.getInstance().findProductTypeById(1).get(), 2);
+        DataManager.getInstance().insertSale(open);
+
+        DataManager read = roundTrip(DataManager.getInstance());
+
+        // Counting and new ids do not need the committed sales
+        assertEquals(2, read.getSales().size());
+        assertEquals(3, read.nextSaleId());
+        assertEquals(3, read.nextBalanceTransactionId());
+
+        assertFalse(read.findSaleById(3).isPresent());
+
+        // History reached from a return first
+        CReturn r = read.findReturnById(1).get();
+        assertSame(r.getSaleTransaction(), read.findSaleById(1).get());
+        assertTrue(r.getSaleTransaction().isCommitted());
+        assertFalse(read.findSaleById(2).get().isCommitted());
+        assertEquals(2, read.getSales().size());
+    }
+
+    @Test
+    public void testMigrateSerializedStore() throws IOException {
+
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(snapshot))) {
+            out.writeObject(DataManager.getInstance());
+        }
+
+        assertTrue(SnapshotMigrator.migrate(snapshot));
+        assertFalse(SnapshotMigrator.migrate(snapshot));
+
+        DataManager read;
+        try (InputStream in = Files.newInputStream(snapshot)) {
+            read = SnapshotCodec.decode(in);
+        }
+
+        assertEquals(1, read.getSales().size());
+        assertSame(read.findProductTypeById(1).get(), read.findProductByRFID("000000001000").get().getRelativeProductType());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testDecodeGarbage() throws IOException {
+        SnapshotCodec.decode(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6 }));
+    }
+
+}
@@ -0,0 +1,51 @@
+package it.polito.ezshop.unitTests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import it.polito.ezshop.data.Validators;
+
+public class BBValidatorsTest {
+
+    @Test
+    public void testParseGTIN() {
+        assertEquals(1_123456789012L, Validators.parseGTIN("123456789012"));
+        assertEquals(1_0000000000000L, Validators.parseGTIN("0000000000000"));
+        assertEquals(1_99999999999997L, Validators.parseGTIN("99999999999997"));
+        // Leading zeros kept apart
+        assertNotEquals(Validators.parseGTIN("000000000000"), Validators.parseGTIN("0000000000000"));
+    }
+
+    @Test
+    public void testParseInvalidGTIN() {
+        assertEquals(-1, Validators.parseGTIN(null));
+        assertEquals(-1, Validators.parseGTIN("12345678901"));
+        assertEquals(-1, Validators.parseGTIN("123456789013"));
+        assertEquals(-1, Validators.parseGTIN("12345678901/"));
+        assertEquals(-1, Validators.parseGTIN("1234567890:2"));
+        assertEquals(-1, Validators.parseGTIN("000000000000000"));
+    }
+
+    @Test
+    public void testLuhn() {
+        assertTrue(Validators.isValidLuhn("4485370086510891"));
+        assertTrue(Validators.isValidLuhn("0"));
+        assertFalse(Validators.isValidLuhn("4485370086510892"));
+        assertFalse(Validators.isValidLuhn("4485370086510:91"));
+        assertFalse(Validators.isValidLuhn("448537008651089/"));
+        assertFalse(Validators.isValidLuhn(""));
+        assertFalse(Validators.isValidLuhn(null));
+    }
+
+    @Test
+    public void testDigits() {
+        assertEquals(1234567890L, Validators.parseDigits("1234567890", 10));
+        assertEquals(1L, Validators.parseDigits("000000000001", 12));
+        assertEquals(-1, Validators.parseDigits("123456789", 10));
+        assertEquals(-1, Validators.parseDigits("12345678a0", 10));
+        assertFalse(Validators.isDigits(null, 10));
+        assertFalse(Validators.isDigits("", 10));
+    }
+
+}